@@ -31,6 +31,15 @@ public interface ConnectionProvider {
 		}
 	}
 
+	/**
+	 * Return the provider of connections used by queries, which may differ from the provider of connections used by
+	 * statements, e.g to read from replicas. The default implementation returns this provider.
+	 * @see com.github.fjdbc.connection.RoutingConnectionProvider
+	 */
+	public default ConnectionProvider getReadProvider() {
+		return this;
+	}
+
 	public default void commit(Connection cnx) {
 		if (cnx == null) return;
 		try {
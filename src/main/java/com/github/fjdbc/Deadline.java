@@ -0,0 +1,285 @@
+package com.github.fjdbc;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import com.github.fjdbc.internal.Threads;
+
+/**
+ * A time limit for database operations, which can also be cancelled from another thread.
+ * <p>
+ * Operations executed by {@link #call(Supplier)} or {@link #run(Runnable)} inherit the deadline: queries, statements,
+ * composite operations, and nested calls. For each statement:
+ * <ul>
+ * <li>The query timeout is set to the remaining time, rounded up to the second (see
+ * {@link Statement#setQueryTimeout(int)}).
+ * <li>The statement is cancelled when the deadline expires, or when {@link #cancel()} is called (see
+ * {@link Statement#cancel()}).
+ * <li>The deadline is checked between rows, and between the operations of a
+ * {@link com.github.fjdbc.op.CompositeOperation}.
+ * </ul>
+ * When the deadline expires, operations fail with a {@link RuntimeSQLException} wrapping a
+ * {@link SQLTimeoutException}. When it is cancelled, they fail with a {@link CancellationException}. The exception
+ * thrown by the driver for a cancelled statement is translated, and becomes the cause. In both cases, resources are
+ * released and the transaction is rolled back as with any other failure.
+ * <p>
+ * Streams returned by {@link com.github.fjdbc.query.Query#stream()} keep the deadline of the thread that created
+ * them.
+ */
+public class Deadline {
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+	/**
+	 * The deadline, in {@link System#nanoTime()} units, or {@link Long#MAX_VALUE} if there is no time limit.
+	 */
+	private final long deadlineNanos;
+	private final Set<Statement> runningStatements = ConcurrentHashMap.newKeySet();
+	private volatile boolean cancelled = false;
+	/**
+	 * The number of calls to {@link #call(Supplier)} in progress, in all threads.
+	 */
+	private final AtomicInteger activeCalls = new AtomicInteger();
+	private final ReentrantLock timerLock = new ReentrantLock();
+	private ScheduledFuture<?> timer;
+
+	private Deadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * Create a deadline expiring after the specified duration.
+	 */
+	public static Deadline after(long timeout, TimeUnit unit) {
+		assert timeout >= 0;
+		return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	/**
+	 * Create a deadline without time limit, that can only be cancelled.
+	 */
+	public static Deadline none() {
+		return new Deadline(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Return the deadline inherited by the current thread, or {@code null}.
+	 */
+	public static Deadline current() {
+		return current.get();
+	}
+
+	/**
+	 * Execute the specified operation in the current thread, using this deadline. If the current thread already has
+	 * a deadline, the operation must also complete before it.
+	 * @return the result of the operation.
+	 */
+	public <T> T call(Supplier<T> operation) {
+		final Deadline outer = current.get();
+		check();
+		if (outer != null) outer.check();
+		// the outer deadline is still checked through the nested one.
+		final Deadline effective = outer == null ? this : new Nested(this, outer);
+		current.set(effective);
+		activeCalls.incrementAndGet();
+		try {
+			return operation.get();
+		} catch (final RuntimeSQLException e) {
+			// the statement was cancelled by the timer, or by cancel().
+			if (e.get() instanceof SQLTimeoutException) throw e;
+			final RuntimeException failure = effective.getFailure(e.get());
+			throw failure == null ? e : failure;
+		} finally {
+			current.set(outer);
+			if (activeCalls.decrementAndGet() == 0) cancelTimer();
+		}
+	}
+
+	/**
+	 * Execute the specified operation in the current thread, using this deadline.
+	 * @see #call(Supplier)
+	 */
+	public void run(Runnable operation) {
+		call(() -> {
+			operation.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Cancel the statements being executed using this deadline, and make the operations fail at the next check. It is
+	 * not possible to execute operations using this deadline afterwards.
+	 */
+	public void cancel() {
+		cancelled = true;
+		cancelStatements();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isExpired() {
+		return getRemainingNanos() <= 0;
+	}
+
+	/**
+	 * Return the time remaining before the deadline, in nanoseconds, or {@link Long#MAX_VALUE} if there is no time
+	 * limit.
+	 */
+	public long getRemainingNanos() {
+		return deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+	}
+
+	/**
+	 * Throw an exception if this deadline is cancelled or expired.
+	 * @throws CancellationException
+	 *         if the deadline is cancelled.
+	 * @throws RuntimeSQLException
+	 *         wrapping a {@link SQLTimeoutException}, if the deadline is expired.
+	 */
+	public void check() {
+		final RuntimeException failure = getFailure(null);
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Return the exception thrown by {@link #check()}, or {@code null} if this deadline is neither cancelled nor
+	 * expired.
+	 * @param cause
+	 *        The cause of the exception, or {@code null}.
+	 */
+	private RuntimeException getFailure(Throwable cause) {
+		if (isCancelled()) {
+			final CancellationException res = new CancellationException("The operation was cancelled");
+			if (cause != null) res.initCause(cause);
+			return res;
+		}
+		if (isExpired()) return new RuntimeSQLException(new SQLTimeoutException("The deadline is exceeded", cause));
+		return null;
+	}
+
+	/**
+	 * Apply this deadline to a statement created by the library. The statement is registered until
+	 * {@link #statementClosing(Statement)} is called.
+	 */
+	public void statementCreated(Statement st) throws SQLException {
+		check();
+		runningStatements.add(st);
+		try {
+			// cancel() may have run before the statement was registered.
+			if (cancelled) check();
+			if (deadlineNanos != Long.MAX_VALUE) applyTimeout(st);
+		} catch (final SQLException | RuntimeException e) {
+			runningStatements.remove(st);
+			throw e;
+		}
+	}
+
+	/**
+	 * Set the query timeout of the statement, and start the timer cancelling the statements.
+	 */
+	private void applyTimeout(Statement st) throws SQLException {
+		final long seconds = (getRemainingNanos() + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+		final int timeout = (int) Math.min(Integer.MAX_VALUE, Math.max(1, seconds));
+		try {
+			if (st.getQueryTimeout() == 0 || st.getQueryTimeout() > timeout) st.setQueryTimeout(timeout);
+		} catch (final SQLFeatureNotSupportedException e) {
+			// the statement is cancelled by the timer anyway.
+		}
+		// the query timeout is rounded to the second, and not supported by all drivers.
+		timerLock.lock();
+		try {
+			if (timer == null) {
+				timer = Threads.getScheduler().schedule(this::cancelStatements, getRemainingNanos(),
+						TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			timerLock.unlock();
+		}
+	}
+
+	/**
+	 * Unregister a statement registered by {@link #statementCreated(Statement)}.
+	 */
+	public void statementClosing(Statement st) {
+		runningStatements.remove(st);
+		if (activeCalls.get() == 0) cancelTimer();
+	}
+
+	/**
+	 * Cancel the timer once the operations using this deadline are complete, so that the scheduler does not keep this
+	 * deadline reachable until it expires. A later statement schedules a new timer.
+	 */
+	private void cancelTimer() {
+		timerLock.lock();
+		try {
+			// streams may hold statements after the call returned.
+			if (timer == null || activeCalls.get() > 0 || !runningStatements.isEmpty()) return;
+			timer.cancel(false);
+			timer = null;
+		} finally {
+			timerLock.unlock();
+		}
+	}
+
+	private void cancelStatements() {
+		for (final Statement st : runningStatements) {
+			try {
+				st.cancel();
+			} catch (final SQLException e) {
+				// the operation will be stopped by check() anyway.
+			}
+		}
+	}
+
+	/**
+	 * A deadline nested in another: the earliest deadline applies.
+	 */
+	private static class Nested extends Deadline {
+		private final Deadline inner;
+		private final Deadline outer;
+
+		public Nested(Deadline inner, Deadline outer) {
+			super(Math.min(inner.deadlineNanos, outer.deadlineNanos));
+			this.inner = inner;
+			this.outer = outer;
+		}
+
+		@Override
+		public void cancel() {
+			inner.cancel();
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return inner.isCancelled() || outer.isCancelled();
+		}
+
+		@Override
+		public void statementCreated(Statement st) throws SQLException {
+			inner.statementCreated(st);
+			try {
+				outer.statementCreated(st);
+			} catch (final SQLException | RuntimeException e) {
+				inner.statementClosing(st);
+				throw e;
+			}
+		}
+
+		@Override
+		public void statementClosing(Statement st) {
+			inner.statementClosing(st);
+			outer.statementClosing(st);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.github.fjdbc;
 
+import java.nio.file.Path;
 import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.util.ArrayList;
@@ -7,11 +8,17 @@ import java.util.Collection;
 import java.util.List;
 import java.util.stream.Stream;
 
+import com.github.fjdbc.internal.QueryCacheInvalidator;
 import com.github.fjdbc.internal.StatementOperationImpl;
+import com.github.fjdbc.op.BulkLoadOperation;
 import com.github.fjdbc.op.CompositeOperation;
 import com.github.fjdbc.op.DbOperation;
 import com.github.fjdbc.op.StatementOperation;
+import com.github.fjdbc.query.ExportFormat;
+import com.github.fjdbc.query.MultiQuery;
+import com.github.fjdbc.query.OffHeapTable;
 import com.github.fjdbc.query.Query;
+import com.github.fjdbc.query.QueryCache;
 import com.github.fjdbc.query.ResultSetExtractor;
 import com.github.fjdbc.sql.BatchStatementOperation;
 import com.github.fjdbc.sql.SqlBuilder.SqlFragment;
@@ -21,6 +28,12 @@ import com.github.fjdbc.sql.SqlBuilder.SqlFragment;
  */
 public class Fjdbc {
 	private final ConnectionProvider cnxProvider;
+	/**
+	 * The provider of connections used by queries.
+	 */
+	private final ConnectionProvider readProvider;
+	private final QueryCache cache;
+	private final QueryCacheInvalidator cacheInvalidator;
 	private final List<SQLConsumer<Statement>> beforeExecutionConsumers = new ArrayList<>(2);
 	private final List<SQLConsumer<Statement>> afterExecutionConsumers = new ArrayList<>(2);
 
@@ -31,6 +44,32 @@ public class Fjdbc {
 	 */
 	public Fjdbc(ConnectionProvider connectionProvider) {
 		this.cnxProvider = connectionProvider;
+		this.readProvider = connectionProvider.getReadProvider();
+		this.cache = null;
+		this.cacheInvalidator = null;
+	}
+
+	/**
+	 * Create a facade to the FJDBC library, caching the results of queries.
+	 * <p>
+	 * Queries created by this instance are cached, see {@link Query#setCache(QueryCache)}. Statements created by this
+	 * instance invalidate the cached results of the queries that read the modified table, both when they are
+	 * executed and when the transaction ends.
+	 * <p>
+	 * If queries read from replicas (see {@link ConnectionProvider#getReadProvider()}), a query executed by another
+	 * thread just after a write may cache data of a replica that has not received the write yet. It is served until
+	 * the next write to the table, or until it expires: set a maximum age on the cache to bound the staleness.
+	 * @param connectionProvider
+	 *        The provider of {@link java.sql.Connection} instances.
+	 * @param cache
+	 *        The cache of query results. It may be shared by several instances using the same database.
+	 */
+	public Fjdbc(ConnectionProvider connectionProvider, QueryCache cache) {
+		assert cache != null;
+		this.cache = cache;
+		this.cacheInvalidator = new QueryCacheInvalidator(connectionProvider, cache);
+		this.cnxProvider = cacheInvalidator;
+		this.readProvider = connectionProvider.getReadProvider();
 	}
 
 	/**
@@ -42,7 +81,7 @@ public class Fjdbc {
 	 */
 	public StatementOperation statement(String sql) {
 		final StatementOperationImpl res = new StatementOperationImpl(cnxProvider, sql);
-		addCallbacks(res);
+		addCallbacks(res, sql);
 		return res;
 	}
 
@@ -58,7 +97,7 @@ public class Fjdbc {
 	 */
 	public StatementOperation statement(String sql, PreparedStatementBinder binder) {
 		final StatementOperationImpl res = new StatementOperationImpl(cnxProvider, sql, binder);
-		addCallbacks(res);
+		addCallbacks(res, sql);
 		return res;
 	}
 
@@ -66,7 +105,27 @@ public class Fjdbc {
 			long executeEveryNRow, long commitEveryNRow) {
 		final BatchStatementOperation<T> res = new BatchStatementOperation<>(cnxProvider, statements, executeEveryNRow,
 				commitEveryNRow);
-		addCallbacks(res);
+		addCallbacks(res, null);
+		return res;
+	}
+
+	/**
+	 * Create an operation loading the rows of a file using a batched prepared statement.
+	 * <p>
+	 * No actual connection is established with the database until the operation is executed.
+	 * @param sql
+	 *        The SQL statement, with one parameter per column of the file.
+	 * @param executeEveryNRow
+	 *        The number of rows of each batch.
+	 * @param commitEveryNRow
+	 *        The number of rows between two commits, or {@code 0} to commit only once all rows are loaded.
+	 * @see BulkLoadOperation
+	 */
+	public BulkLoadOperation bulkLoad(String sql, Path file, ExportFormat format, long executeEveryNRow,
+			long commitEveryNRow) {
+		final BulkLoadOperation res = new BulkLoadOperation(cnxProvider, sql, file, format, executeEveryNRow,
+				commitEveryNRow);
+		addCallbacks(res, sql);
 		return res;
 	}
 
@@ -98,8 +157,9 @@ public class Fjdbc {
 	 *        Extracts individual objects from a {@link java.sql.ResultSet}.
 	 */
 	public <T> Query<T> query(String sql, ResultSetExtractor<T> extractor) {
-		final Query<T> res = new Query<>(cnxProvider, sql, extractor);
+		final Query<T> res = new Query<>(readProvider, sql, extractor);
 		addCallbacks(res);
+		if (cache != null) res.setCache(cache);
 		return res;
 	}
 
@@ -116,11 +176,52 @@ public class Fjdbc {
 	 *        Extracts individual objects from a {@link java.sql.ResultSet}.
 	 */
 	public <T> Query<T> query(String sql, PreparedStatementBinder binder, ResultSetExtractor<T> extractor) {
-		final Query<T> res = new Query<>(cnxProvider, sql, binder, extractor);
+		final Query<T> res = new Query<>(readProvider, sql, binder, extractor);
 		addCallbacks(res);
+		if (cache != null) res.setCache(cache);
 		return res;
 	}
 
+	/**
+	 * Execute the specified query, then copy its rows to an {@link OffHeapTable}, which must be closed to release its
+	 * memory.
+	 * @param sql
+	 *        The raw SQL string. It should be a SELECT statement.
+	 * @param keyColumn
+	 *        The label of the integer column to index, or {@code null}.
+	 * @see Query#toOffHeapTable(String)
+	 */
+	public OffHeapTable offHeapTable(String sql, String keyColumn) {
+		return offHeapTable(sql, null, keyColumn);
+	}
+
+	/**
+	 * Execute the specified query, then copy its rows to an {@link OffHeapTable}, which must be closed to release its
+	 * memory.
+	 * @param sql
+	 *        The raw SQL string. It should be a SELECT statement.
+	 * @param binder
+	 *        The binder of {@link PreparedStatement} parameters, or {@code null} if this query does not have
+	 *        parameters.
+	 * @param keyColumn
+	 *        The label of the integer column to index, or {@code null}.
+	 * @see Query#toOffHeapTable(String)
+	 */
+	public OffHeapTable offHeapTable(String sql, PreparedStatementBinder binder, String keyColumn) {
+		// the extractor is not used.
+		return query(sql, binder, rs -> null).toOffHeapTable(keyColumn);
+	}
+
+	/**
+	 * Create a sequence of queries executed on a single connection, in as few round trips as possible.
+	 * <p>
+	 * No actual connection is established with the database until the queries are executed.
+	 * @see MultiQuery
+	 */
+	public MultiQuery multiQuery(Query<?>... queries) {
+		return new MultiQuery(readProvider, queries);
+	}
+
 	private <T> void addCallbacks(Query<T> query) {
 		for (final SQLConsumer<Statement> c : beforeExecutionConsumers) {
 			query.doBeforeExecution(c);
@@ -130,19 +231,31 @@ public class Fjdbc {
 		}
 	}
 
-	private <T> void addCallbacks(StatementOperation op) {
+	/**
+	 * @param sql
+	 *        The SQL string of the statement, or {@code null} if unknown.
+	 */
+	private <T> void addCallbacks(StatementOperation op, String sql) {
 		for (final SQLConsumer<Statement> c : beforeExecutionConsumers) {
 			op.doBeforeExecution(c);
 		}
 		for (final SQLConsumer<Statement> c : afterExecutionConsumers) {
 			op.doAfterExecution(c);
 		}
+		if (cacheInvalidator != null) op.doAfterExecution(cacheInvalidator.afterExecution(sql));
 	}
 
 	public ConnectionProvider getConnectionProvider() {
 		return cnxProvider;
 	}
 
+	/**
+	 * The cache of query results, or {@code null} if query results are not cached.
+	 */
+	public QueryCache getQueryCache() {
+		return cache;
+	}
+
 	public void doBeforeExecution(SQLConsumer<Statement> statementConsumer) {
 		beforeExecutionConsumers.add(statementConsumer);
 	}
@@ -0,0 +1,230 @@
+package com.github.fjdbc.connection;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.ConnectionDelegate;
+import com.github.fjdbc.internal.Threads;
+
+/**
+ * A {@link ConnectionProvider} that reports connections held for longer than a threshold, e.g because a stream was
+ * not closed.
+ * <p>
+ * The stack trace of each {@link #borrow()} call is recorded. Connections are checked periodically, and each
+ * connection held past the threshold is reported once to the listener, as an exception whose stack trace is the
+ * borrow stack trace. Recording stack traces has a cost, so this provider is meant for tests and diagnostics.
+ * <p>
+ * Borrowed connections are wrapped, so this provider should be the outermost one. The connections of the read
+ * provider (see {@link #getReadProvider()}) are checked too. This class is thread safe.
+ */
+public class LeakDetectingConnectionProvider implements ConnectionProvider, AutoCloseable {
+	private final ConnectionProvider cnxProvider;
+	private final long thresholdMillis;
+	private final Consumer<? super Exception> listener;
+	private final Set<Borrow> borrows = ConcurrentHashMap.newKeySet();
+	private final LongAdder leaks = new LongAdder();
+	private final ScheduledFuture<?> checker;
+
+	/**
+	 * Create a provider logging leaks as warnings, using the {@link Logger} named after this class.
+	 * @param thresholdMillis
+	 *        The time after which a borrowed connection is reported, in milliseconds.
+	 */
+	public LeakDetectingConnectionProvider(ConnectionProvider connectionProvider, long thresholdMillis) {
+		this(connectionProvider, thresholdMillis, LeakDetectingConnectionProvider::log);
+	}
+
+	/**
+	 * @param thresholdMillis
+	 *        The time after which a borrowed connection is reported, in milliseconds.
+	 * @param listener
+	 *        Called for each leaked connection, from a thread of {@link Threads#getDefaultExecutor()} when the
+	 *        connections are checked periodically.
+	 */
+	public LeakDetectingConnectionProvider(ConnectionProvider connectionProvider, long thresholdMillis,
+			Consumer<? super Exception> listener) {
+		assert connectionProvider != null;
+		assert thresholdMillis > 0;
+		assert listener != null;
+		this.cnxProvider = connectionProvider;
+		this.thresholdMillis = thresholdMillis;
+		this.listener = listener;
+		final long period = Math.max(1, thresholdMillis / 2);
+		checker = Threads.getScheduler().scheduleWithFixedDelay(new Checker(this), period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public Connection borrow() throws SQLException {
+		return track(cnxProvider.borrow());
+	}
+
+	private Connection track(Connection cnx) {
+		final Borrow borrow = new Borrow(Thread.currentThread().getName(), new Throwable().getStackTrace());
+		borrows.add(borrow);
+		return new TrackedConnection(cnx, borrow);
+	}
+
+	@Override
+	public void giveBack(Connection cnx) throws RuntimeSQLException {
+		giveBack(cnxProvider, cnx);
+	}
+
+	private void giveBack(ConnectionProvider from, Connection cnx) {
+		if (cnx instanceof TrackedConnection) borrows.remove(((TrackedConnection) cnx).borrow);
+		from.giveBack(unwrap(cnx));
+	}
+
+	@Override
+	public void commit(Connection cnx) {
+		cnxProvider.commit(unwrap(cnx));
+	}
+
+	@Override
+	public void rollback(Connection cnx) {
+		cnxProvider.rollback(unwrap(cnx));
+	}
+
+	/**
+	 * Return the read provider of the wrapped provider, whose connections are checked too.
+	 */
+	@Override
+	public ConnectionProvider getReadProvider() {
+		final ConnectionProvider readProvider = cnxProvider.getReadProvider();
+		return readProvider == cnxProvider ? this : new ReadProvider(readProvider);
+	}
+
+	/**
+	 * Report the connections held past the threshold, and not reported yet. This is called periodically, but may also
+	 * be called directly.
+	 */
+	public void check() {
+		final long now = System.nanoTime();
+		for (final Borrow borrow : borrows) {
+			final long heldMillis = TimeUnit.NANOSECONDS.toMillis(now - borrow.nanoTime);
+			// the check may run concurrently in the background thread.
+			if (heldMillis < thresholdMillis || !borrow.reported.compareAndSet(false, true)) continue;
+			leaks.increment();
+			final Exception report = new Exception(String.format(
+					"Connection held for %s ms, borrowed by thread %s at:", heldMillis, borrow.threadName));
+			report.setStackTrace(borrow.stackTrace);
+			try {
+				listener.accept(report);
+			} catch (final RuntimeException e) {
+				// keep checking the other connections.
+			}
+		}
+	}
+
+	/**
+	 * The number of connections reported as leaked.
+	 */
+	public long getLeakCount() {
+		return leaks.sum();
+	}
+
+	/**
+	 * The number of connections currently borrowed.
+	 */
+	public int getBorrowedCount() {
+		return borrows.size();
+	}
+
+	/**
+	 * Stop checking the borrowed connections periodically.
+	 */
+	@Override
+	public void close() {
+		checker.cancel(false);
+	}
+
+	private static void log(Exception report) {
+		final Logger logger = Logger.getLogger(LeakDetectingConnectionProvider.class.getName());
+		logger.log(Level.WARNING, report.getMessage(), report);
+	}
+
+	private static Connection unwrap(Connection cnx) {
+		return cnx instanceof TrackedConnection ? ((TrackedConnection) cnx).getDelegate() : cnx;
+	}
+
+	private static class Borrow {
+		private final long nanoTime = System.nanoTime();
+		private final String threadName;
+		private final StackTraceElement[] stackTrace;
+		private final AtomicBoolean reported = new AtomicBoolean(false);
+
+		public Borrow(String threadName, StackTraceElement[] stackTrace) {
+			this.threadName = threadName;
+			this.stackTrace = stackTrace;
+		}
+	}
+
+	private static class TrackedConnection extends ConnectionDelegate {
+		private final Borrow borrow;
+
+		public TrackedConnection(Connection cnx, Borrow borrow) {
+			super(cnx);
+			this.borrow = borrow;
+		}
+	}
+
+	private class ReadProvider implements ConnectionProvider {
+		private final ConnectionProvider readProvider;
+
+		public ReadProvider(ConnectionProvider readProvider) {
+			this.readProvider = readProvider;
+		}
+
+		@Override
+		public Connection borrow() throws SQLException {
+			return track(readProvider.borrow());
+		}
+
+		@Override
+		public void giveBack(Connection cnx) throws RuntimeSQLException {
+			LeakDetectingConnectionProvider.this.giveBack(readProvider, cnx);
+		}
+
+		@Override
+		public void commit(Connection cnx) {
+			readProvider.commit(unwrap(cnx));
+		}
+
+		@Override
+		public void rollback(Connection cnx) {
+			readProvider.rollback(unwrap(cnx));
+		}
+	}
+
+	/**
+	 * Does not prevent the provider from being garbage collected.
+	 */
+	private static class Checker implements Runnable {
+		private final WeakReference<LeakDetectingConnectionProvider> provider;
+
+		public Checker(LeakDetectingConnectionProvider provider) {
+			this.provider = new WeakReference<>(provider);
+		}
+
+		@Override
+		public void run() {
+			final LeakDetectingConnectionProvider p = provider.get();
+			// an exception cancels the periodic execution.
+			if (p == null) throw new IllegalStateException("The provider was garbage collected");
+			// listeners may be slow, and must not delay the other tasks of the scheduler.
+			Threads.getDefaultExecutor().execute(p::check);
+		}
+	}
+}
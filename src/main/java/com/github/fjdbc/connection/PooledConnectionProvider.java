@@ -0,0 +1,470 @@
+package com.github.fjdbc.connection;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.Deadline;
+import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.ConnectionDelegate;
+import com.github.fjdbc.internal.Threads;
+
+/**
+ * A {@link ConnectionProvider} that keeps a bounded pool of connections.
+ * <p>
+ * Physical connections are created by {@link ConnectionProvider#borrow()} of the connection factory, and closed by
+ * {@link ConnectionProvider#giveBack(Connection)}, e.g {@code () -> DriverManager.getConnection(url)}. Closing a
+ * borrowed connection gives it back to the pool. Uncommitted changes are rolled back when a connection is given back.
+ * The auto-commit mode is tracked by the pool, so it should only be changed using {@link Connection#setAutoCommit}.
+ * <p>
+ * Borrowers wait in FIFO order when all connections are in use, until the borrow timeout, or the deadline of the
+ * thread if it is earlier (see {@link Deadline}). Otherwise, borrowing does not lock: each thread first tries the
+ * connection it used last, then the most recently given back connection.
+ * <p>
+ * Connections idle for more than the validation interval are validated using {@link Connection#isValid(int)} before
+ * being borrowed. Every 30 seconds, idle connections are validated, and those idle for more than the idle timeout are
+ * closed, in a background thread.
+ * <p>
+ * This class is thread safe.
+ */
+public class PooledConnectionProvider implements ConnectionProvider, AutoCloseable {
+	private static final long EVICTION_PERIOD_MILLIS = 30_000;
+	private static final int IDLE = 0;
+	private static final int IN_USE = 1;
+	/**
+	 * Being given back, validated or closed.
+	 */
+	private static final int RESERVED = 2;
+	private static final int CLOSED = 3;
+
+	private final ConnectionProvider connectionFactory;
+	private final int maxSize;
+	private final long borrowTimeoutNanos;
+	private final Semaphore permits;
+	private final Set<PooledConnection> connections = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger size = new AtomicInteger(0);
+	/**
+	 * The idle connections, most recently used first. It may also contain connections borrowed since they were added.
+	 */
+	private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+	private final ThreadLocal<WeakReference<PooledConnection>> lastUsed = new ThreadLocal<>();
+	/**
+	 * Incremented each time a connection becomes idle or is discarded. Guarded by {@link #releaseLock} for waiting.
+	 */
+	private final AtomicInteger releases = new AtomicInteger(0);
+	private final ReentrantLock releaseLock = new ReentrantLock();
+	private final Condition released = releaseLock.newCondition();
+	private final ScheduledFuture<?> evictor;
+	private volatile long idleTimeoutNanos = TimeUnit.MINUTES.toNanos(10);
+	private volatile long validationIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+	private volatile int validationTimeoutSeconds = 5;
+	private volatile boolean closed = false;
+	private final LongAdder borrows = new LongAdder();
+	private final LongAdder borrowNanos = new LongAdder();
+	private final LongAccumulator maxBorrowNanos = new LongAccumulator(Math::max, 0);
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder created = new LongAdder();
+	private final LongAdder discarded = new LongAdder();
+
+	/**
+	 * @param connectionFactory
+	 *        The provider of physical connections.
+	 * @param maxSize
+	 *        The maximum number of connections.
+	 * @param borrowTimeoutMillis
+	 *        The maximum time to wait for a connection, in milliseconds.
+	 */
+	public PooledConnectionProvider(ConnectionProvider connectionFactory, int maxSize, long borrowTimeoutMillis) {
+		assert connectionFactory != null;
+		assert maxSize > 0;
+		assert borrowTimeoutMillis >= 0;
+		this.connectionFactory = connectionFactory;
+		this.maxSize = maxSize;
+		this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+		this.permits = new Semaphore(maxSize, true);
+		evictor = Threads.getScheduler().scheduleWithFixedDelay(new Evictor(this), EVICTION_PERIOD_MILLIS,
+				EVICTION_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Set the time after which an idle connection is closed, in milliseconds. The default is 10 minutes.
+	 */
+	public PooledConnectionProvider setIdleTimeout(long idleTimeoutMillis) {
+		assert idleTimeoutMillis > 0;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		return this;
+	}
+
+	/**
+	 * Set the time after which an idle connection is validated before being borrowed, in milliseconds. The default is
+	 * 1 second.
+	 */
+	public PooledConnectionProvider setValidationInterval(long validationIntervalMillis) {
+		assert validationIntervalMillis >= 0;
+		this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(validationIntervalMillis);
+		return this;
+	}
+
+	/**
+	 * Set the timeout of {@link Connection#isValid(int)}, in seconds. The default is 5 seconds.
+	 */
+	public PooledConnectionProvider setValidationTimeout(int validationTimeoutSeconds) {
+		assert validationTimeoutSeconds >= 0;
+		this.validationTimeoutSeconds = validationTimeoutSeconds;
+		return this;
+	}
+
+	@Override
+	public Connection borrow() throws SQLException {
+		if (closed) throw new SQLException("The pool is closed");
+		final long start = System.nanoTime();
+		ThrottlingConnectionProvider.acquire(permits, borrowTimeoutNanos, timeouts);
+		try {
+			final PooledConnection res = acquire(start);
+			final long elapsed = System.nanoTime() - start;
+			borrows.increment();
+			borrowNanos.add(elapsed);
+			maxBorrowNanos.accumulate(elapsed);
+			return res;
+		} catch (final SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Take an idle connection, or create one. The caller must hold a permit.
+	 * @param start
+	 *        The time at which the borrow started, see {@link System#nanoTime()}.
+	 */
+	private PooledConnection acquire(long start) throws SQLException {
+		while (true) {
+			if (closed) throw new SQLException("The pool is closed");
+			// read first, so that a connection released meanwhile is not missed.
+			final int seen = releases.get();
+			final PooledConnection c = pollIdle();
+			if (c != null) {
+				if (isValid(c)) return c;
+				discard(c);
+				continue;
+			}
+			final PooledConnection newConnection = create();
+			if (newConnection != null) return newConnection;
+			// the pool is full, so a connection is being given back or validated, possibly for several seconds.
+			awaitRelease(seen, start);
+		}
+	}
+
+	/**
+	 * Wait until a connection is released, unless one was released since {@link #releases} had the specified value.
+	 * @throws SQLTransientConnectionException
+	 *         if no connection is released before the borrow timeout or the deadline of the thread.
+	 */
+	private void awaitRelease(int seen, long start) throws SQLException {
+		releaseLock.lock();
+		try {
+			while (releases.get() == seen && !closed) {
+				final long remaining = ThrottlingConnectionProvider
+						.getWaitNanos(borrowTimeoutNanos - (System.nanoTime() - start));
+				if (remaining <= 0) throw ThrottlingConnectionProvider.timedOut(System.nanoTime() - start, timeouts);
+				released.awaitNanos(remaining);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		} finally {
+			releaseLock.unlock();
+		}
+	}
+
+	private void signalRelease() {
+		releaseLock.lock();
+		try {
+			releases.incrementAndGet();
+			released.signalAll();
+		} finally {
+			releaseLock.unlock();
+		}
+	}
+
+	private PooledConnection pollIdle() {
+		final WeakReference<PooledConnection> ref = lastUsed.get();
+		final PooledConnection last = ref == null ? null : ref.get();
+		if (last != null && last.state.compareAndSet(IDLE, IN_USE)) return last;
+		PooledConnection c;
+		while ((c = idle.pollFirst()) != null) {
+			c.queued.set(false);
+			if (c.state.compareAndSet(IDLE, IN_USE)) return c;
+		}
+		return null;
+	}
+
+	/**
+	 * Create a connection, in use, or return {@code null} if the pool is full.
+	 */
+	private PooledConnection create() throws SQLException {
+		int n;
+		do {
+			n = size.get();
+			if (n >= maxSize) return null;
+		} while (!size.compareAndSet(n, n + 1));
+
+		final Connection cnx;
+		try {
+			cnx = connectionFactory.borrow();
+		} catch (final SQLException | RuntimeException e) {
+			size.decrementAndGet();
+			signalRelease();
+			throw e;
+		}
+		final PooledConnection res = new PooledConnection(cnx);
+		connections.add(res);
+		created.increment();
+		return res;
+	}
+
+	private boolean isValid(PooledConnection c) {
+		if (System.nanoTime() - c.lastUsedNanos < validationIntervalNanos) return true;
+		try {
+			return c.getDelegate().isValid(validationTimeoutSeconds);
+		} catch (final SQLException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void giveBack(Connection cnx) throws RuntimeSQLException {
+		if (cnx == null) return;
+		assert cnx instanceof PooledConnection : "The connection was not borrowed from this pool";
+		final PooledConnection c = (PooledConnection) cnx;
+		// the connection may be given back twice, e.g by closing it.
+		if (!c.state.compareAndSet(IN_USE, RESERVED)) return;
+		try {
+			boolean reusable = !closed;
+			try {
+				if (reusable && !c.getAutoCommit()) c.getDelegate().rollback();
+			} catch (final SQLException e) {
+				reusable = false;
+			}
+			if (reusable) {
+				c.lastUsedNanos = System.nanoTime();
+				lastUsed.set(c.ref);
+				makeIdle(c);
+			} else {
+				discard(c);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	private void makeIdle(PooledConnection c) {
+		c.state.set(IDLE);
+		if (c.queued.compareAndSet(false, true)) idle.offerFirst(c);
+		signalRelease();
+		// the pool may have been closed concurrently.
+		if (closed && c.state.compareAndSet(IDLE, RESERVED)) discard(c);
+	}
+
+	private void discard(PooledConnection c) {
+		c.state.set(CLOSED);
+		connections.remove(c);
+		size.decrementAndGet();
+		discarded.increment();
+		signalRelease();
+		try {
+			connectionFactory.giveBack(c.getDelegate());
+		} catch (final RuntimeSQLException e) {
+			// the connection is probably broken anyway.
+		}
+	}
+
+	/**
+	 * Close the connections idle for more than the idle timeout, and the invalid idle connections. This is called
+	 * periodically, but may also be called directly.
+	 */
+	public void evict() {
+		final long now = System.nanoTime();
+		for (final PooledConnection c : connections) {
+			if (!c.state.compareAndSet(IDLE, RESERVED)) continue;
+			if (now - c.lastUsedNanos > idleTimeoutNanos || !isValid(c)) {
+				discard(c);
+			} else {
+				makeIdle(c);
+			}
+		}
+	}
+
+	/**
+	 * Close the idle connections, and the borrowed connections once given back. It is not possible to borrow
+	 * connections afterwards.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		evictor.cancel(false);
+		for (final PooledConnection c : connections) {
+			if (c.state.compareAndSet(IDLE, RESERVED)) discard(c);
+		}
+		// wake up the borrowers waiting for a connection.
+		signalRelease();
+	}
+
+	/**
+	 * The number of borrowed connections.
+	 */
+	public int getActiveCount() {
+		return count(IN_USE);
+	}
+
+	/**
+	 * The number of connections available for borrowing.
+	 */
+	public int getIdleCount() {
+		return count(IDLE);
+	}
+
+	private int count(int state) {
+		int res = 0;
+		for (final PooledConnection c : connections) {
+			if (c.state.get() == state) res++;
+		}
+		return res;
+	}
+
+	/**
+	 * The number of open connections.
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * An estimate of the number of threads waiting for a connection.
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 * The number of successful borrows.
+	 */
+	public long getBorrowCount() {
+		return borrows.sum();
+	}
+
+	/**
+	 * The average time to borrow a connection, in nanoseconds, including the time spent waiting.
+	 */
+	public double getAverageBorrowNanos() {
+		final long n = borrows.sum();
+		return n == 0 ? 0 : (double) borrowNanos.sum() / n;
+	}
+
+	/**
+	 * The longest time to borrow a connection, in nanoseconds, including the time spent waiting.
+	 */
+	public long getMaxBorrowNanos() {
+		return maxBorrowNanos.get();
+	}
+
+	/**
+	 * The number of borrows that failed because no connection was available in time.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * The number of physical connections created.
+	 */
+	public long getCreatedCount() {
+		return created.sum();
+	}
+
+	/**
+	 * The number of physical connections closed, because they were idle, invalid, or the pool was closed.
+	 */
+	public long getDiscardedCount() {
+		return discarded.sum();
+	}
+
+	/**
+	 * A connection of the pool. Closing it gives it back to the pool.
+	 */
+	private class PooledConnection extends ConnectionDelegate {
+		private final AtomicInteger state = new AtomicInteger(IN_USE);
+		/**
+		 * {@code true} if the connection is in the idle deque.
+		 */
+		private final AtomicBoolean queued = new AtomicBoolean(false);
+		private final WeakReference<PooledConnection> ref = new WeakReference<>(this);
+		private volatile long lastUsedNanos = System.nanoTime();
+		/**
+		 * The auto-commit mode, or {@code null} if unknown. It is tracked so that giving back a connection does not
+		 * query the driver.
+		 */
+		private volatile Boolean autoCommit;
+
+		public PooledConnection(Connection cnx) {
+			super(cnx);
+		}
+
+		@Override
+		public void setAutoCommit(boolean autoCommit) throws SQLException {
+			this.autoCommit = null;
+			super.setAutoCommit(autoCommit);
+			this.autoCommit = autoCommit;
+		}
+
+		@Override
+		public boolean getAutoCommit() throws SQLException {
+			Boolean res = autoCommit;
+			if (res == null) autoCommit = res = super.getAutoCommit();
+			return res;
+		}
+
+		@Override
+		public void close() throws SQLException {
+			try {
+				giveBack(this);
+			} catch (final RuntimeSQLException e) {
+				throw e.get();
+			}
+		}
+	}
+
+	/**
+	 * Does not prevent the pool from being garbage collected.
+	 */
+	private static class Evictor implements Runnable {
+		private final WeakReference<PooledConnectionProvider> pool;
+
+		public Evictor(PooledConnectionProvider pool) {
+			this.pool = new WeakReference<>(pool);
+		}
+
+		@Override
+		public void run() {
+			final PooledConnectionProvider p = pool.get();
+			// an exception cancels the periodic execution.
+			if (p == null) throw new IllegalStateException("The pool was garbage collected");
+			// validating and closing connections may be slow.
+			Threads.getDefaultExecutor().execute(p::evict);
+		}
+	}
+}
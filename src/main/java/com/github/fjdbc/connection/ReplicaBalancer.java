@@ -0,0 +1,73 @@
+package com.github.fjdbc.connection;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.fjdbc.connection.RoutingConnectionProvider.Replica;
+
+/**
+ * Choose the replica serving a read, see {@link RoutingConnectionProvider}.
+ * <p>
+ * Implementations must be thread safe.
+ */
+@FunctionalInterface
+public interface ReplicaBalancer {
+	/**
+	 * Choose a replica.
+	 * @param replicas
+	 *        The replicas that are not ejected. The list is not empty.
+	 */
+	Replica choose(List<Replica> replicas);
+
+	/**
+	 * Choose the replicas in turn.
+	 */
+	static ReplicaBalancer roundRobin() {
+		final AtomicInteger next = new AtomicInteger();
+		return replicas -> replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+	}
+
+	/**
+	 * Choose the replica with the fewest borrowed connections. Ties are broken randomly.
+	 */
+	static ReplicaBalancer leastOutstanding() {
+		return replicas -> {
+			final int offset = ThreadLocalRandom.current().nextInt(replicas.size());
+			Replica res = null;
+			for (int i = 0; i < replicas.size(); i++) {
+				final Replica r = replicas.get((offset + i) % replicas.size());
+				if (res == null || r.getOutstandingCount() < res.getOutstandingCount()) res = r;
+			}
+			return res;
+		};
+	}
+
+	/**
+	 * Choose a replica randomly, with a probability inversely proportional to its average latency (see
+	 * {@link Replica#getLatencyNanos()}). Replicas without latency measurement are weighted as the fastest replica.
+	 */
+	static ReplicaBalancer latencyWeighted() {
+		return replicas -> {
+			double minLatency = Double.MAX_VALUE;
+			for (final Replica r : replicas) {
+				if (r.getLatencyNanos() > 0) minLatency = Math.min(minLatency, r.getLatencyNanos());
+			}
+			if (minLatency == Double.MAX_VALUE) minLatency = 1;
+
+			final double[] weights = new double[replicas.size()];
+			double total = 0;
+			for (int i = 0; i < weights.length; i++) {
+				final double latency = replicas.get(i).getLatencyNanos();
+				weights[i] = 1 / Math.max(1, latency > 0 ? latency : minLatency);
+				total += weights[i];
+			}
+			double x = ThreadLocalRandom.current().nextDouble(total);
+			for (int i = 0; i < weights.length - 1; i++) {
+				x -= weights[i];
+				if (x < 0) return replicas.get(i);
+			}
+			return replicas.get(weights.length - 1);
+		};
+	}
+}
@@ -0,0 +1,550 @@
+package com.github.fjdbc.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.ConnectionDelegate;
+import com.github.fjdbc.internal.PreparedStatementDelegate;
+import com.github.fjdbc.internal.RoutingSession;
+import com.github.fjdbc.internal.StatementDelegate;
+
+/**
+ * A {@link ConnectionProvider} that sends writes to a primary database, and reads to replicas.
+ * <p>
+ * {@link #borrow()} returns a connection to the primary: it is used by statements and composite operations. Queries
+ * created by {@link com.github.fjdbc.Fjdbc} use {@link #getReadProvider()}, which returns a connection to a replica
+ * chosen by the {@link ReplicaBalancer}, except:
+ * <ul>
+ * <li>If the current thread holds a connection to the primary, e.g in a transaction: the query may read uncommitted
+ * changes.
+ * <li>If the current thread gave back a connection to the primary recently (see {@link #setStickyWindow(long)}): the
+ * replicas may not have received the changes yet.
+ * <li>If all replicas are ejected.
+ * </ul>
+ * The writes of a thread are tracked by a {@link RoutingSession}, which is inherited by the asynchronous operations of
+ * the thread, and updated through the borrowed connections even if they are given back by another thread.
+ * <p>
+ * A replica is ejected for some time (see {@link #setEjectionTime(long)}) when it fails to provide a connection, or
+ * when a statement fails with a connection error (SQL state class {@code 08}). Another replica is tried if the
+ * connection could not be borrowed.
+ * <p>
+ * Other threads may read data older than the last write, for the replication lag. This includes query results cached
+ * by {@link com.github.fjdbc.Fjdbc#Fjdbc(ConnectionProvider, com.github.fjdbc.query.QueryCache)}, until they expire.
+ * <p>
+ * Borrowed connections are wrapped; closing them gives them back. Wrappers of the same connection are equal, so that
+ * decorators keyed by connection, e.g {@link StatementCachingConnectionProvider}, work across borrows.
+ * <p>
+ * This class is thread safe.
+ */
+public class RoutingConnectionProvider implements ConnectionProvider {
+	private final ConnectionProvider primary;
+	private final List<Replica> replicas;
+	private final ReplicaBalancer balancer;
+	private final ConnectionProvider readProvider = new ReadProvider();
+	private volatile long stickyNanos = TimeUnit.SECONDS.toNanos(1);
+	private volatile long ejectionNanos = TimeUnit.SECONDS.toNanos(30);
+	private final LongAdder primaryReads = new LongAdder();
+
+	/**
+	 * @param primary
+	 *        The provider of connections to the primary database.
+	 * @param replicas
+	 *        The providers of connections to the replicas.
+	 */
+	public RoutingConnectionProvider(ConnectionProvider primary, List<? extends ConnectionProvider> replicas,
+			ReplicaBalancer balancer) {
+		assert primary != null;
+		assert replicas != null;
+		assert balancer != null;
+		this.primary = primary;
+		final List<Replica> _replicas = new ArrayList<>(replicas.size());
+		for (final ConnectionProvider r : replicas) {
+			_replicas.add(new Replica(r, _replicas.size()));
+		}
+		this.replicas = Collections.unmodifiableList(_replicas);
+		this.balancer = balancer;
+	}
+
+	/**
+	 * Set the time during which the reads of a thread are sent to the primary after it gave back a connection to the
+	 * primary, in milliseconds. The default is 1 second.
+	 */
+	public RoutingConnectionProvider setStickyWindow(long stickyMillis) {
+		assert stickyMillis >= 0;
+		this.stickyNanos = TimeUnit.MILLISECONDS.toNanos(stickyMillis);
+		return this;
+	}
+
+	/**
+	 * Set the time during which a replica is not used after it failed, in milliseconds. The default is 30 seconds.
+	 */
+	public RoutingConnectionProvider setEjectionTime(long ejectionMillis) {
+		assert ejectionMillis >= 0;
+		this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+		return this;
+	}
+
+	@Override
+	public Connection borrow() throws SQLException {
+		final RoutingSession.Writes writes = RoutingSession.getWrites(this);
+		final Connection res = primary.borrow();
+		writes.primaryBorrowed();
+		return new PrimaryConnection(res, writes);
+	}
+
+	@Override
+	public void giveBack(Connection cnx) throws RuntimeSQLException {
+		if (cnx == null) return;
+		if (!(cnx instanceof RoutedConnection)) {
+			primary.giveBack(cnx);
+			return;
+		}
+		final RoutedConnection c = (RoutedConnection) cnx;
+		// the connection may be given back twice, e.g by closing it.
+		if (!c.released.compareAndSet(false, true)) return;
+		try {
+			c.getOwner().giveBack(c.getDelegate());
+		} finally {
+			c.givenBack();
+		}
+	}
+
+	@Override
+	public void commit(Connection cnx) {
+		primary.commit(unwrap(cnx));
+	}
+
+	@Override
+	public void rollback(Connection cnx) {
+		primary.rollback(unwrap(cnx));
+	}
+
+	/**
+	 * Return the provider of connections used by queries.
+	 */
+	@Override
+	public ConnectionProvider getReadProvider() {
+		return readProvider;
+	}
+
+	public List<Replica> getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * The number of reads sent to the primary.
+	 */
+	public long getPrimaryReadCount() {
+		return primaryReads.sum();
+	}
+
+	private List<Replica> getAvailableReplicas(long now) {
+		boolean allAvailable = true;
+		for (final Replica r : replicas) {
+			allAvailable &= !r.isEjected(now);
+		}
+		// copy only if a replica is ejected, which is rare.
+		if (allAvailable) return replicas;
+		final List<Replica> res = new ArrayList<>(replicas.size());
+		for (final Replica r : replicas) {
+			if (!r.isEjected(now)) res.add(r);
+		}
+		return res;
+	}
+
+	private Connection borrowForRead() throws SQLException {
+		if (!RoutingSession.isPrimaryRequired(this, stickyNanos)) {
+			for (int attempt = 0; attempt < replicas.size(); attempt++) {
+				final long now = System.nanoTime();
+				final List<Replica> available = getAvailableReplicas(now);
+				if (available.isEmpty()) break;
+				final Replica replica = balancer.choose(available);
+				final Connection cnx;
+				try {
+					cnx = replica.provider.borrow();
+				} catch (final SQLException | RuntimeException e) {
+					replica.eject(now + ejectionNanos);
+					continue;
+				}
+				replica.borrowed();
+				return new ReplicaConnection(cnx, replica);
+			}
+		}
+		primaryReads.increment();
+		return primary.borrow();
+	}
+
+	private static Connection unwrap(Connection cnx) {
+		return cnx instanceof RoutedConnection ? ((RoutedConnection) cnx).getDelegate() : cnx;
+	}
+
+	/**
+	 * Return {@code true} if the exception signals a broken connection rather than an error of the statement.
+	 */
+	private static boolean isConnectionFailure(SQLException e) {
+		return e instanceof SQLNonTransientConnectionException || e instanceof SQLTransientConnectionException
+				|| e instanceof SQLRecoverableException || e.getSQLState() != null && e.getSQLState().startsWith("08");
+	}
+
+	/**
+	 * A replica, and its statistics.
+	 */
+	public static class Replica {
+		/**
+		 * The weight of the last measurement in the average latency.
+		 */
+		private static final double LATENCY_SMOOTHING = 0.2;
+
+		private final ConnectionProvider provider;
+		private final int index;
+		private final AtomicInteger outstanding = new AtomicInteger(0);
+		private final AtomicLong latencyBits = new AtomicLong(Double.doubleToLongBits(0));
+		private final LongAdder borrows = new LongAdder();
+		private final LongAdder ejections = new LongAdder();
+		private volatile long ejectedUntilNanos;
+		private volatile boolean ejected = false;
+
+		private Replica(ConnectionProvider provider, int index) {
+			this.provider = provider;
+			this.index = index;
+		}
+
+		private void borrowed() {
+			outstanding.incrementAndGet();
+			borrows.increment();
+		}
+
+		private void givenBack() {
+			outstanding.decrementAndGet();
+		}
+
+		private void executed(long latencyNanos) {
+			long bits;
+			double newLatency;
+			do {
+				bits = latencyBits.get();
+				final double latency = Double.longBitsToDouble(bits);
+				newLatency = latency == 0 ? latencyNanos
+						: latency + LATENCY_SMOOTHING * (latencyNanos - latency);
+			} while (!latencyBits.compareAndSet(bits, Double.doubleToLongBits(newLatency)));
+		}
+
+		private void eject(long untilNanos) {
+			ejectedUntilNanos = untilNanos;
+			ejected = true;
+			ejections.increment();
+		}
+
+		private boolean isEjected(long now) {
+			return ejected && now - ejectedUntilNanos < 0;
+		}
+
+		/**
+		 * The position of the replica in the list passed to the constructor.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * The number of borrowed connections.
+		 */
+		public int getOutstandingCount() {
+			return outstanding.get();
+		}
+
+		/**
+		 * The moving average of the execution time of statements, in nanoseconds, or {@code 0} if no statement was
+		 * executed yet. The time spent reading the rows is not included.
+		 */
+		public double getLatencyNanos() {
+			return Double.longBitsToDouble(latencyBits.get());
+		}
+
+		public long getBorrowCount() {
+			return borrows.sum();
+		}
+
+		/**
+		 * The number of times the replica was ejected.
+		 */
+		public long getEjectionCount() {
+			return ejections.sum();
+		}
+
+		public boolean isEjected() {
+			return isEjected(System.nanoTime());
+		}
+	}
+
+	/**
+	 * A borrowed connection. Closing it gives it back.
+	 */
+	private abstract class RoutedConnection extends ConnectionDelegate {
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		public RoutedConnection(Connection cnx) {
+			super(cnx);
+		}
+
+		/**
+		 * The provider of the wrapped connection.
+		 */
+		protected abstract ConnectionProvider getOwner();
+
+		/**
+		 * Update the routing state once the connection is given back.
+		 */
+		protected abstract void givenBack();
+
+		@Override
+		public void close() throws SQLException {
+			try {
+				giveBack(this);
+			} catch (final RuntimeSQLException e) {
+				throw e.get();
+			}
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof RoutedConnection && getDelegate().equals(((RoutedConnection) obj).getDelegate());
+		}
+
+		@Override
+		public int hashCode() {
+			return getDelegate().hashCode();
+		}
+	}
+
+	/**
+	 * A connection to the primary, which updates the session of the thread that borrowed it.
+	 */
+	private class PrimaryConnection extends RoutedConnection {
+		private final RoutingSession.Writes writes;
+
+		public PrimaryConnection(Connection cnx, RoutingSession.Writes writes) {
+			super(cnx);
+			this.writes = writes;
+		}
+
+		@Override
+		protected ConnectionProvider getOwner() {
+			return primary;
+		}
+
+		@Override
+		protected void givenBack() {
+			writes.primaryGivenBack();
+		}
+	}
+
+	/**
+	 * A connection to a replica, which measures the execution time of its statements, and ejects the replica on
+	 * connection errors.
+	 */
+	private class ReplicaConnection extends RoutedConnection {
+		private final Replica replica;
+
+		public ReplicaConnection(Connection cnx, Replica replica) {
+			super(cnx);
+			this.replica = replica;
+		}
+
+		@Override
+		protected ConnectionProvider getOwner() {
+			return replica.provider;
+		}
+
+		@Override
+		protected void givenBack() {
+			replica.givenBack();
+		}
+
+		private SQLException failed(SQLException e) {
+			if (isConnectionFailure(e)) replica.eject(System.nanoTime() + ejectionNanos);
+			return e;
+		}
+
+		private void executed(long start) {
+			replica.executed(System.nanoTime() - start);
+		}
+
+		@Override
+		public Statement createStatement() throws SQLException {
+			try {
+				return new TimedStatement(cnx.createStatement());
+			} catch (final SQLException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+			try {
+				return new TimedStatement(cnx.createStatement(resultSetType, resultSetConcurrency));
+			} catch (final SQLException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+				throws SQLException {
+			try {
+				return new TimedStatement(
+						cnx.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+			} catch (final SQLException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql) throws SQLException {
+			try {
+				return new TimedPreparedStatement(cnx.prepareStatement(sql));
+			} catch (final SQLException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+				throws SQLException {
+			try {
+				return new TimedPreparedStatement(cnx.prepareStatement(sql, resultSetType, resultSetConcurrency));
+			} catch (final SQLException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+				int resultSetHoldability) throws SQLException {
+			try {
+				return new TimedPreparedStatement(
+						cnx.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+			} catch (final SQLException e) {
+				throw failed(e);
+			}
+		}
+
+		/**
+		 * A statement measuring the execution time of queries.
+		 */
+		private class TimedStatement extends StatementDelegate {
+			public TimedStatement(Statement st) {
+				super(st);
+			}
+
+			@Override
+			public Connection getConnection() throws SQLException {
+				return ReplicaConnection.this;
+			}
+
+			@Override
+			public ResultSet executeQuery(String sql) throws SQLException {
+				final long start = System.nanoTime();
+				try {
+					final ResultSet res = st.executeQuery(sql);
+					executed(start);
+					return res;
+				} catch (final SQLException e) {
+					throw failed(e);
+				}
+			}
+
+			@Override
+			public boolean execute(String sql) throws SQLException {
+				final long start = System.nanoTime();
+				try {
+					final boolean res = st.execute(sql);
+					executed(start);
+					return res;
+				} catch (final SQLException e) {
+					throw failed(e);
+				}
+			}
+		}
+
+		/**
+		 * A prepared statement measuring the execution time of queries.
+		 */
+		private class TimedPreparedStatement extends PreparedStatementDelegate {
+			public TimedPreparedStatement(PreparedStatement ps) {
+				super(ps);
+			}
+
+			@Override
+			public Connection getConnection() throws SQLException {
+				return ReplicaConnection.this;
+			}
+
+			@Override
+			public ResultSet executeQuery() throws SQLException {
+				final long start = System.nanoTime();
+				try {
+					final ResultSet res = ps.executeQuery();
+					executed(start);
+					return res;
+				} catch (final SQLException e) {
+					throw failed(e);
+				}
+			}
+
+			@Override
+			public boolean execute() throws SQLException {
+				final long start = System.nanoTime();
+				try {
+					final boolean res = ps.execute();
+					executed(start);
+					return res;
+				} catch (final SQLException e) {
+					throw failed(e);
+				}
+			}
+		}
+	}
+
+	private class ReadProvider implements ConnectionProvider {
+		@Override
+		public Connection borrow() throws SQLException {
+			return borrowForRead();
+		}
+
+		@Override
+		public void giveBack(Connection cnx) throws RuntimeSQLException {
+			RoutingConnectionProvider.this.giveBack(cnx);
+		}
+
+		@Override
+		public void commit(Connection cnx) {
+			getOwner(cnx).commit(unwrap(cnx));
+		}
+
+		@Override
+		public void rollback(Connection cnx) {
+			getOwner(cnx).rollback(unwrap(cnx));
+		}
+
+		private ConnectionProvider getOwner(Connection cnx) {
+			return cnx instanceof RoutedConnection ? ((RoutedConnection) cnx).getOwner() : primary;
+		}
+	}
+}
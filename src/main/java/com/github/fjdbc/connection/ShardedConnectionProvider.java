@@ -0,0 +1,155 @@
+package com.github.fjdbc.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.ShardContext;
+
+/**
+ * A {@link ConnectionProvider} to several databases, each one holding a shard of the data. The shard of a row is
+ * determined by its key, e.g a tenant id.
+ * <p>
+ * Operations executed by {@link #call(Object, Supplier)} or {@link #run(Object, Runnable)} borrow connections to the
+ * shard of the key: statements, composite operations and queries. Borrowing a connection outside of these methods
+ * fails. Asynchronous operations started by these methods, e.g {@link com.github.fjdbc.query.Query#toListAsync()},
+ * inherit the shard.
+ * <p>
+ * To execute a query on all shards, use {@link com.github.fjdbc.query.Query#scatter(List)} with {@link #getShards()}.
+ * <p>
+ * This class is thread safe.
+ * @param <K>
+ *        The type of the shard keys.
+ */
+public class ShardedConnectionProvider<K> implements ConnectionProvider {
+	private final List<ConnectionProvider> shards;
+	private final ToIntFunction<? super K> shardFunction;
+	/**
+	 * The borrowed connections, and their shard.
+	 */
+	private final ConcurrentHashMap<Connection, ShardBorrow> borrows = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a provider assigning keys to shards according to their hash code.
+	 * @param shards
+	 *        The providers of connections to each shard.
+	 */
+	public ShardedConnectionProvider(List<? extends ConnectionProvider> shards) {
+		this(shards, key -> Math.floorMod(key.hashCode(), shards.size()));
+	}
+
+	/**
+	 * @param shards
+	 *        The providers of connections to each shard.
+	 * @param shardFunction
+	 *        Return the index of the shard of a key.
+	 */
+	public ShardedConnectionProvider(List<? extends ConnectionProvider> shards,
+			ToIntFunction<? super K> shardFunction) {
+		assert shards != null && !shards.isEmpty();
+		assert shardFunction != null;
+		this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+		this.shardFunction = shardFunction;
+	}
+
+	/**
+	 * Execute the specified operation in the current thread, borrowing connections to the shard of the key.
+	 * @return the result of the operation.
+	 */
+	public <T> T call(K key, Supplier<T> operation) {
+		return ShardContext.call(this, getShard(key), operation);
+	}
+
+	/**
+	 * Execute the specified operation in the current thread, borrowing connections to the shard of the key.
+	 * @see #call(Object, Supplier)
+	 */
+	public void run(K key, Runnable operation) {
+		call(key, () -> {
+			operation.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Return the index of the shard of a key.
+	 */
+	public int getShardIndex(K key) {
+		final int res = shardFunction.applyAsInt(key);
+		assert res >= 0 && res < shards.size() : "Invalid shard index: " + res;
+		return res;
+	}
+
+	/**
+	 * Return the provider of connections to the shard of a key.
+	 */
+	public ConnectionProvider getShard(K key) {
+		return shards.get(getShardIndex(key));
+	}
+
+	/**
+	 * Return the providers of connections to each shard.
+	 */
+	public List<ConnectionProvider> getShards() {
+		return shards;
+	}
+
+	@Override
+	public Connection borrow() throws SQLException {
+		final ConnectionProvider shard = ShardContext.getShard(this);
+		if (shard == null) throw new SQLException("No shard key: borrow connections using call() or run()");
+		final Connection cnx = shard.borrow();
+		borrows.compute(cnx, (c, b) -> {
+			final ShardBorrow res = b == null ? new ShardBorrow(shard) : b;
+			res.count++;
+			return res;
+		});
+		return cnx;
+	}
+
+	@Override
+	public void giveBack(Connection cnx) throws RuntimeSQLException {
+		if (cnx == null) return;
+		final ConnectionProvider shard = getOwner(cnx);
+		borrows.computeIfPresent(cnx, (c, b) -> --b.count == 0 ? null : b);
+		shard.giveBack(cnx);
+	}
+
+	@Override
+	public void commit(Connection cnx) {
+		if (cnx == null) return;
+		getOwner(cnx).commit(cnx);
+	}
+
+	@Override
+	public void rollback(Connection cnx) {
+		if (cnx == null) return;
+		getOwner(cnx).rollback(cnx);
+	}
+
+	private ConnectionProvider getOwner(Connection cnx) {
+		final ShardBorrow borrow = borrows.get(cnx);
+		if (borrow == null) throw new IllegalArgumentException("The connection was not borrowed from this provider");
+		return borrow.shard;
+	}
+
+	private static class ShardBorrow {
+		private final ConnectionProvider shard;
+		/**
+		 * The borrows not given back yet: a shard may lend the same connection several times, e.g a
+		 * {@link SingleConnectionProvider}.
+		 */
+		private int count = 0;
+
+		public ShardBorrow(ConnectionProvider shard) {
+			this.shard = shard;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.github.fjdbc.connection;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.StateTrackingConnection;
+
+/**
+ * A {@link ConnectionProvider} that tracks the state of the connections on the client side, to avoid round trips to
+ * the database:
+ * <ul>
+ * <li>Commit and roll back are skipped in auto-commit mode, or if no statement was created since the last commit or
+ * roll back.
+ * <li>The auto-commit mode, read-only mode and transaction isolation are read once, and setting them to their current
+ * value is skipped.
+ * </ul>
+ * The state of a connection is kept across borrows, as long as the wrapped provider returns the same connection. It
+ * is not updated if the connection is modified by other means, e.g by a {@code set transaction} statement or by the
+ * wrapped provider.
+ * <p>
+ * Connections borrowed from this provider are committed and rolled back directly, without calling
+ * {@link ConnectionProvider#commit(Connection)} and {@link ConnectionProvider#rollback(Connection)} of the wrapped
+ * provider, which would read the auto-commit mode from the database each time.
+ * <p>
+ * This class is thread safe.
+ */
+public class StateTrackingConnectionProvider implements ConnectionProvider {
+	private final ConnectionProvider cnxProvider;
+	/**
+	 * The state of each connection, and its wrapper. The keys are weak, so that connections closed by the wrapped
+	 * provider are forgotten.
+	 */
+	private final Map<Connection, Tracked> connections;
+	private final ReentrantLock lock;
+	private final LongAdder skippedCalls;
+
+	/**
+	 * @param connectionProvider
+	 *        The wrapped provider.
+	 */
+	public StateTrackingConnectionProvider(ConnectionProvider connectionProvider) {
+		this(connectionProvider, new WeakHashMap<>(), new ReentrantLock(), new LongAdder());
+	}
+
+	private StateTrackingConnectionProvider(ConnectionProvider connectionProvider,
+			Map<Connection, Tracked> connections, ReentrantLock lock, LongAdder skippedCalls) {
+		assert connectionProvider != null;
+		this.cnxProvider = connectionProvider;
+		this.connections = connections;
+		this.lock = lock;
+		this.skippedCalls = skippedCalls;
+	}
+
+	@Override
+	public Connection borrow() throws SQLException {
+		final Connection cnx = cnxProvider.borrow();
+		lock.lock();
+		try {
+			final Tracked tracked = connections.computeIfAbsent(cnx, c -> new Tracked());
+			// the same wrapper is returned while it is reachable, e.g by a statement cache keyed by connection.
+			StateTrackingConnection res = tracked.wrapper.get();
+			if (res == null) {
+				res = new StateTrackingConnection(cnx, tracked.state, skippedCalls);
+				tracked.wrapper = new WeakReference<>(res);
+			}
+			return res;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void giveBack(Connection cnx) throws RuntimeSQLException {
+		cnxProvider.giveBack(unwrap(cnx));
+	}
+
+	@Override
+	public void commit(Connection cnx) {
+		if (!(cnx instanceof StateTrackingConnection)) {
+			cnxProvider.commit(cnx);
+			return;
+		}
+		endTransaction((StateTrackingConnection) cnx, true);
+	}
+
+	@Override
+	public void rollback(Connection cnx) {
+		if (!(cnx instanceof StateTrackingConnection)) {
+			cnxProvider.rollback(cnx);
+			return;
+		}
+		endTransaction((StateTrackingConnection) cnx, false);
+	}
+
+	private static void endTransaction(StateTrackingConnection cnx, boolean commit) {
+		try {
+			cnx.endTransaction(commit);
+		} catch (final SQLException e) {
+			throw new RuntimeSQLException(e);
+		}
+	}
+
+	private static Connection unwrap(Connection cnx) {
+		return cnx instanceof StateTrackingConnection ? ((StateTrackingConnection) cnx).getDelegate() : cnx;
+	}
+
+	/**
+	 * Return the read provider of the wrapped provider, tracking the state of its connections too.
+	 */
+	@Override
+	public ConnectionProvider getReadProvider() {
+		final ConnectionProvider readProvider = cnxProvider.getReadProvider();
+		if (readProvider == cnxProvider) return this;
+		return new StateTrackingConnectionProvider(readProvider, connections, lock, skippedCalls);
+	}
+
+	/**
+	 * The number of calls that were not sent to the database.
+	 */
+	public long getSkippedCallCount() {
+		return skippedCalls.sum();
+	}
+
+	private static class Tracked {
+		private final StateTrackingConnection.State state = new StateTrackingConnection.State();
+		/**
+		 * Weak, since the wrapper references the connection.
+		 */
+		private WeakReference<StateTrackingConnection> wrapper = new WeakReference<>(null);
+	}
+}
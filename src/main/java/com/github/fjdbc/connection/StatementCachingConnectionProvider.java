@@ -0,0 +1,187 @@
+package com.github.fjdbc.connection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.CachingConnection;
+import com.github.fjdbc.internal.StatementCache;
+
+/**
+ * A {@link ConnectionProvider} that caches {@link PreparedStatement} instances, to avoid parsing the same SQL
+ * statement repeatedly.
+ * <p>
+ * Each connection has its own LRU cache, keyed by SQL string, result set type and result set concurrency. Closing a
+ * prepared statement returns it to the cache instead of closing it.
+ * <p>
+ * If the wrapped provider closes connections in {@link #giveBack(Connection)} (for instance when connections are
+ * borrowed from a pool), the cached statements must be closed too: use {@code clearOnGiveBack = true}. If the
+ * connections outlive {@code giveBack} (for instance with {@link SingleConnectionProvider}), use
+ * {@code clearOnGiveBack = false} so that statements are reused across borrows. The cache of a connection is dropped
+ * once the connection is found closed: when it is given back, and when a connection is borrowed for the first time.
+ * <p>
+ * This class is thread safe.
+ */
+public class StatementCachingConnectionProvider implements ConnectionProvider {
+	private final ConnectionProvider cnxProvider;
+	private final int maxStatementsPerConnection;
+	private final boolean clearOnGiveBack;
+	private final Map<Connection, StatementCache> caches;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	/**
+	 * @param connectionProvider
+	 *        The wrapped provider.
+	 * @param maxStatementsPerConnection
+	 *        The maximum number of cached statements for each connection.
+	 * @param clearOnGiveBack
+	 *        If {@code true}, cached statements are closed when the connection is given back.
+	 */
+	public StatementCachingConnectionProvider(ConnectionProvider connectionProvider, int maxStatementsPerConnection,
+			boolean clearOnGiveBack) {
+		assert connectionProvider != null;
+		assert maxStatementsPerConnection > 0;
+		this.cnxProvider = connectionProvider;
+		this.maxStatementsPerConnection = maxStatementsPerConnection;
+		this.clearOnGiveBack = clearOnGiveBack;
+		this.caches = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+
+	/**
+	 * Create a provider sharing the caches and statistics of another provider.
+	 */
+	private StatementCachingConnectionProvider(ConnectionProvider connectionProvider,
+			StatementCachingConnectionProvider other) {
+		this.cnxProvider = connectionProvider;
+		this.maxStatementsPerConnection = other.maxStatementsPerConnection;
+		this.clearOnGiveBack = other.clearOnGiveBack;
+		this.caches = other.caches;
+		this.hits = other.hits;
+		this.misses = other.misses;
+		this.evictions = other.evictions;
+	}
+
+	@Override
+	public Connection borrow() throws SQLException {
+		final Connection cnx = cnxProvider.borrow();
+		StatementCache cache = caches.get(cnx);
+		if (cache == null) {
+			// a new connection may replace connections closed by the wrapped provider.
+			removeClosed();
+			cache = caches.computeIfAbsent(cnx,
+					c -> new StatementCache(maxStatementsPerConnection, hits, misses, evictions));
+		}
+		return new CachingConnection(cnx, cache);
+	}
+
+	@Override
+	public void giveBack(Connection cnx) throws RuntimeSQLException {
+		if (cnx == null) return;
+		final Connection rawCnx = unwrap(cnx);
+		try {
+			if (clearOnGiveBack) {
+				final StatementCache cache = caches.remove(rawCnx);
+				if (cache != null) cache.clear();
+			}
+		} catch (final SQLException e) {
+			throw new RuntimeSQLException(e);
+		} finally {
+			cnxProvider.giveBack(rawCnx);
+			if (!clearOnGiveBack && isClosed(rawCnx)) remove(rawCnx);
+		}
+	}
+
+	/**
+	 * Drop the caches of the closed connections, so that they can be garbage collected.
+	 */
+	private void removeClosed() {
+		for (final Connection cnx : caches.keySet()) {
+			if (isClosed(cnx)) remove(cnx);
+		}
+	}
+
+	private void remove(Connection cnx) {
+		final StatementCache cache = caches.remove(cnx);
+		if (cache == null) return;
+		try {
+			cache.clear();
+		} catch (final SQLException e) {
+			// the statements of a closed connection are closed anyway.
+		}
+	}
+
+	private static boolean isClosed(Connection cnx) {
+		try {
+			return cnx.isClosed();
+		} catch (final SQLException e) {
+			return true;
+		}
+	}
+
+	@Override
+	public void commit(Connection cnx) {
+		cnxProvider.commit(unwrap(cnx));
+	}
+
+	@Override
+	public void rollback(Connection cnx) {
+		cnxProvider.rollback(unwrap(cnx));
+	}
+
+	/**
+	 * Return the read provider of the wrapped provider, caching the statements of its connections too.
+	 */
+	@Override
+	public ConnectionProvider getReadProvider() {
+		final ConnectionProvider readProvider = cnxProvider.getReadProvider();
+		return readProvider == cnxProvider ? this : new StatementCachingConnectionProvider(readProvider, this);
+	}
+
+	/**
+	 * Close all cached statements of all connections.
+	 */
+	public void clear() {
+		try {
+			for (final StatementCache cache : caches.values()) {
+				cache.clear();
+			}
+		} catch (final SQLException e) {
+			throw new RuntimeSQLException(e);
+		}
+	}
+
+	/**
+	 * The number of times a statement was found in the cache.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * The number of times a statement was not found in the cache, and had to be prepared.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * The number of statements closed to make room for other statements.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	private static Connection unwrap(Connection cnx) {
+		return cnx instanceof CachingConnection ? ((CachingConnection) cnx).getDelegate() : cnx;
+	}
+}
@@ -0,0 +1,163 @@
+package com.github.fjdbc.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.Deadline;
+import com.github.fjdbc.RuntimeSQLException;
+
+/**
+ * A {@link ConnectionProvider} that limits the number of connections borrowed at the same time from another provider.
+ * <p>
+ * Borrowers wait in FIFO order on a semaphore, which does not pin the carrier thread of virtual threads: thousands of
+ * virtual threads can wait cheaply for a few connections, instead of overwhelming the database or the wrapped
+ * provider. They wait until the timeout, or the deadline of the thread if it is earlier (see {@link Deadline}).
+ * <p>
+ * Each successful call to {@link #borrow()} must be followed by exactly one call to {@link #giveBack(Connection)}.
+ * <p>
+ * This class is thread safe.
+ */
+public class ThrottlingConnectionProvider implements ConnectionProvider {
+	private final ConnectionProvider cnxProvider;
+	private final int maxConcurrency;
+	private final long timeoutNanos;
+	private final Semaphore permits;
+	private final LongAdder timeouts;
+
+	/**
+	 * @param connectionProvider
+	 *        The wrapped provider.
+	 * @param maxConcurrency
+	 *        The maximum number of connections borrowed at the same time.
+	 * @param timeoutMillis
+	 *        The maximum time to wait for a connection, in milliseconds.
+	 */
+	public ThrottlingConnectionProvider(ConnectionProvider connectionProvider, int maxConcurrency,
+			long timeoutMillis) {
+		assert connectionProvider != null;
+		assert maxConcurrency > 0;
+		assert timeoutMillis >= 0;
+		this.cnxProvider = connectionProvider;
+		this.maxConcurrency = maxConcurrency;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.permits = new Semaphore(maxConcurrency, true);
+		this.timeouts = new LongAdder();
+	}
+
+	/**
+	 * Create a provider sharing the permits and statistics of another provider.
+	 */
+	private ThrottlingConnectionProvider(ConnectionProvider connectionProvider, ThrottlingConnectionProvider other) {
+		this.cnxProvider = connectionProvider;
+		this.maxConcurrency = other.maxConcurrency;
+		this.timeoutNanos = other.timeoutNanos;
+		this.permits = other.permits;
+		this.timeouts = other.timeouts;
+	}
+
+	@Override
+	public Connection borrow() throws SQLException {
+		acquire(permits, timeoutNanos, timeouts);
+		try {
+			return cnxProvider.borrow();
+		} catch (final SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Acquire a permit, waiting at most until the timeout or the deadline of the current thread.
+	 * @param timeouts
+	 *        Incremented if no permit is available in time.
+	 */
+	static void acquire(Semaphore permits, long timeoutNanos, LongAdder timeouts) throws SQLException {
+		final long timeout = getWaitNanos(timeoutNanos);
+		try {
+			if (permits.tryAcquire(timeout, TimeUnit.NANOSECONDS)) return;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+		throw timedOut(timeout, timeouts);
+	}
+
+	/**
+	 * Return the specified timeout, or the time remaining before the deadline of the current thread if it is earlier.
+	 */
+	static long getWaitNanos(long timeoutNanos) {
+		final Deadline deadline = Deadline.current();
+		return Math.max(0, deadline == null ? timeoutNanos : Math.min(timeoutNanos, deadline.getRemainingNanos()));
+	}
+
+	/**
+	 * Return the exception thrown when no connection is available in time, or throw the exception of the deadline of
+	 * the current thread if it is expired.
+	 * @param timeouts
+	 *        Incremented.
+	 */
+	static SQLException timedOut(long waitedNanos, LongAdder timeouts) {
+		timeouts.increment();
+		final Deadline deadline = Deadline.current();
+		if (deadline != null) deadline.check();
+		return new SQLTransientConnectionException(
+				String.format("No connection available after %s ms", TimeUnit.NANOSECONDS.toMillis(waitedNanos)));
+	}
+
+	@Override
+	public void giveBack(Connection cnx) throws RuntimeSQLException {
+		// the borrow failed.
+		if (cnx == null) return;
+		try {
+			cnxProvider.giveBack(cnx);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public void commit(Connection cnx) {
+		cnxProvider.commit(cnx);
+	}
+
+	@Override
+	public void rollback(Connection cnx) {
+		cnxProvider.rollback(cnx);
+	}
+
+	/**
+	 * Return the read provider of the wrapped provider, throttled together with this provider: the maximum
+	 * concurrency applies to reads and writes.
+	 */
+	@Override
+	public ConnectionProvider getReadProvider() {
+		final ConnectionProvider readProvider = cnxProvider.getReadProvider();
+		return readProvider == cnxProvider ? this : new ThrottlingConnectionProvider(readProvider, this);
+	}
+
+	/**
+	 * The number of connections currently borrowed.
+	 */
+	public int getActiveCount() {
+		return maxConcurrency - permits.availablePermits();
+	}
+
+	/**
+	 * An estimate of the number of threads waiting for a connection.
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 * The number of borrows that failed because no connection was available in time.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+}
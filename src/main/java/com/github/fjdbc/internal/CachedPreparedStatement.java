@@ -0,0 +1,117 @@
+package com.github.fjdbc.internal;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A {@link PreparedStatement} that is returned to a {@link StatementCache} instead of being closed.
+ * <p>
+ * Statement options modified by the user (max rows, fetch size, timeout, etc.) are restored to their original value
+ * before the statement is returned to the cache, so that they do not leak to the next user of the statement.
+ */
+public class CachedPreparedStatement extends PreparedStatementDelegate {
+	private final StatementCache cache;
+	private final StatementCache.Key key;
+	private final CachingConnection connection;
+	private ResultSet resultSet;
+	private boolean closed = false;
+
+	// original values of the statement options, or null if the option was not modified.
+	private Integer maxRows;
+	private Integer maxFieldSize;
+	private Integer fetchSize;
+	private Integer fetchDirection;
+	private Integer queryTimeout;
+
+	public CachedPreparedStatement(PreparedStatement ps, StatementCache cache, StatementCache.Key key,
+			CachingConnection connection) {
+		super(ps);
+		this.cache = cache;
+		this.key = key;
+		this.connection = connection;
+	}
+
+	@Override
+	public ResultSet executeQuery() throws SQLException {
+		closeResultSet();
+		resultSet = super.executeQuery();
+		return resultSet;
+	}
+
+	@Override
+	public void setMaxRows(int max) throws SQLException {
+		if (maxRows == null) maxRows = ps.getMaxRows();
+		super.setMaxRows(max);
+	}
+
+	@Override
+	public void setMaxFieldSize(int max) throws SQLException {
+		if (maxFieldSize == null) maxFieldSize = ps.getMaxFieldSize();
+		super.setMaxFieldSize(max);
+	}
+
+	@Override
+	public void setFetchSize(int rows) throws SQLException {
+		if (fetchSize == null) fetchSize = ps.getFetchSize();
+		super.setFetchSize(rows);
+	}
+
+	@Override
+	public void setFetchDirection(int direction) throws SQLException {
+		if (fetchDirection == null) fetchDirection = ps.getFetchDirection();
+		super.setFetchDirection(direction);
+	}
+
+	@Override
+	public void setQueryTimeout(int seconds) throws SQLException {
+		if (queryTimeout == null) queryTimeout = ps.getQueryTimeout();
+		super.setQueryTimeout(seconds);
+	}
+
+	@Override
+	public CachingConnection getConnection() throws SQLException {
+		return connection;
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return closed || ps.isClosed();
+	}
+
+	/**
+	 * Reset the statement, then return it to the cache. If the statement cannot be reset, it is closed for good.
+	 */
+	@Override
+	public void close() throws SQLException {
+		if (closed) return;
+		closed = true;
+		if (ps.isClosed()) return;
+		try {
+			reset();
+		} catch (final SQLException e) {
+			ps.close();
+			throw e;
+		}
+		cache.giveBack(key, ps);
+	}
+
+	private void reset() throws SQLException {
+		closeResultSet();
+		ps.clearParameters();
+		ps.clearBatch();
+		ps.clearWarnings();
+		if (maxRows != null) ps.setMaxRows(maxRows);
+		if (maxFieldSize != null) ps.setMaxFieldSize(maxFieldSize);
+		if (fetchSize != null) ps.setFetchSize(fetchSize);
+		if (fetchDirection != null) ps.setFetchDirection(fetchDirection);
+		if (queryTimeout != null) ps.setQueryTimeout(queryTimeout);
+	}
+
+	private void closeResultSet() throws SQLException {
+		if (resultSet != null) {
+			resultSet.close();
+			resultSet = null;
+		}
+	}
+}
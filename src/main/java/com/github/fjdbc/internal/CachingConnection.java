@@ -0,0 +1,54 @@
+package com.github.fjdbc.internal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A connection that takes prepared statements from a {@link StatementCache}, when possible.
+ * <p>
+ * Closing the returned statements returns them to the cache.
+ */
+public class CachingConnection extends ConnectionDelegate {
+	private final StatementCache cache;
+
+	public CachingConnection(Connection cnx, StatementCache cache) {
+		super(cnx);
+		this.cache = cache;
+	}
+
+	public StatementCache getStatementCache() {
+		return cache;
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		return prepareStatement(new StatementCache.Key(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, 0));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+			throws SQLException {
+		return prepareStatement(new StatementCache.Key(sql, resultSetType, resultSetConcurrency, 0));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+			int resultSetHoldability) throws SQLException {
+		return prepareStatement(new StatementCache.Key(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	private PreparedStatement prepareStatement(StatementCache.Key key) throws SQLException {
+		PreparedStatement ps = cache.take(key);
+		if (ps == null) {
+			if (key.getResultSetHoldability() != 0) {
+				ps = cnx.prepareStatement(key.getSql(), key.getResultSetType(), key.getResultSetConcurrency(),
+						key.getResultSetHoldability());
+			} else {
+				ps = cnx.prepareStatement(key.getSql(), key.getResultSetType(), key.getResultSetConcurrency());
+			}
+		}
+		return new CachedPreparedStatement(ps, cache, key, this);
+	}
+}
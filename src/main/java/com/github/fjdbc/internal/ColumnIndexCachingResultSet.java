@@ -0,0 +1,421 @@
+package com.github.fjdbc.internal;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link ResultSet} that resolves each column label to a column index only once.
+ * <p>
+ * Many drivers resolve column labels with a linear or case-insensitive scan, on each call to a getter. This class
+ * calls {@link ResultSet#findColumn(String)} once per label, then uses index-based getters and updaters.
+ */
+public class ColumnIndexCachingResultSet extends ResultSetDelegate {
+	private final Map<String, Integer> columnIndexes = new HashMap<>();
+
+	public ColumnIndexCachingResultSet(ResultSet rs) {
+		super(rs);
+	}
+
+	@Override
+	public int findColumn(String columnLabel) throws SQLException {
+		final Integer cached = columnIndexes.get(columnLabel);
+		if (cached != null) return cached;
+		final int res = rs.findColumn(columnLabel);
+		columnIndexes.put(columnLabel, res);
+		return res;
+	}
+
+	@Override
+	public <T> T getObject(String columnLabel, Class<T> type) throws SQLException {
+		return rs.getObject(findColumn(columnLabel), type);
+	}
+
+	@Override
+	public boolean getBoolean(String columnLabel) throws SQLException {
+		return rs.getBoolean(findColumn(columnLabel));
+	}
+
+	@Override
+	public byte[] getBytes(String columnLabel) throws SQLException {
+		return rs.getBytes(findColumn(columnLabel));
+	}
+
+	@Override
+	public byte getByte(String columnLabel) throws SQLException {
+		return rs.getByte(findColumn(columnLabel));
+	}
+
+	@Override
+	public double getDouble(String columnLabel) throws SQLException {
+		return rs.getDouble(findColumn(columnLabel));
+	}
+
+	@Override
+	public float getFloat(String columnLabel) throws SQLException {
+		return rs.getFloat(findColumn(columnLabel));
+	}
+
+	@Override
+	public int getInt(String columnLabel) throws SQLException {
+		return rs.getInt(findColumn(columnLabel));
+	}
+
+	@Override
+	public InputStream getAsciiStream(String columnLabel) throws SQLException {
+		return rs.getAsciiStream(findColumn(columnLabel));
+	}
+
+	@Override
+	public InputStream getBinaryStream(String columnLabel) throws SQLException {
+		return rs.getBinaryStream(findColumn(columnLabel));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public InputStream getUnicodeStream(String columnLabel) throws SQLException {
+		return rs.getUnicodeStream(findColumn(columnLabel));
+	}
+
+	@Override
+	public Reader getCharacterStream(String columnLabel) throws SQLException {
+		return rs.getCharacterStream(findColumn(columnLabel));
+	}
+
+	@Override
+	public Reader getNCharacterStream(String columnLabel) throws SQLException {
+		return rs.getNCharacterStream(findColumn(columnLabel));
+	}
+
+	@Override
+	public Object getObject(String columnLabel, Map<String, Class<?>> map) throws SQLException {
+		return rs.getObject(findColumn(columnLabel), map);
+	}
+
+	@Override
+	public Object getObject(String columnLabel) throws SQLException {
+		return rs.getObject(findColumn(columnLabel));
+	}
+
+	@Override
+	public String getNString(String columnLabel) throws SQLException {
+		return rs.getNString(findColumn(columnLabel));
+	}
+
+	@Override
+	public String getString(String columnLabel) throws SQLException {
+		return rs.getString(findColumn(columnLabel));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public BigDecimal getBigDecimal(String columnLabel, int scale) throws SQLException {
+		return rs.getBigDecimal(findColumn(columnLabel), scale);
+	}
+
+	@Override
+	public BigDecimal getBigDecimal(String columnLabel) throws SQLException {
+		return rs.getBigDecimal(findColumn(columnLabel));
+	}
+
+	@Override
+	public URL getURL(String columnLabel) throws SQLException {
+		return rs.getURL(findColumn(columnLabel));
+	}
+
+	@Override
+	public Array getArray(String columnLabel) throws SQLException {
+		return rs.getArray(findColumn(columnLabel));
+	}
+
+	@Override
+	public Blob getBlob(String columnLabel) throws SQLException {
+		return rs.getBlob(findColumn(columnLabel));
+	}
+
+	@Override
+	public Clob getClob(String columnLabel) throws SQLException {
+		return rs.getClob(findColumn(columnLabel));
+	}
+
+	@Override
+	public Date getDate(String columnLabel, Calendar cal) throws SQLException {
+		return rs.getDate(findColumn(columnLabel), cal);
+	}
+
+	@Override
+	public Date getDate(String columnLabel) throws SQLException {
+		return rs.getDate(findColumn(columnLabel));
+	}
+
+	@Override
+	public NClob getNClob(String columnLabel) throws SQLException {
+		return rs.getNClob(findColumn(columnLabel));
+	}
+
+	@Override
+	public Ref getRef(String columnLabel) throws SQLException {
+		return rs.getRef(findColumn(columnLabel));
+	}
+
+	@Override
+	public RowId getRowId(String columnLabel) throws SQLException {
+		return rs.getRowId(findColumn(columnLabel));
+	}
+
+	@Override
+	public SQLXML getSQLXML(String columnLabel) throws SQLException {
+		return rs.getSQLXML(findColumn(columnLabel));
+	}
+
+	@Override
+	public Timestamp getTimestamp(String columnLabel, Calendar cal) throws SQLException {
+		return rs.getTimestamp(findColumn(columnLabel), cal);
+	}
+
+	@Override
+	public Timestamp getTimestamp(String columnLabel) throws SQLException {
+		return rs.getTimestamp(findColumn(columnLabel));
+	}
+
+	@Override
+	public Time getTime(String columnLabel, Calendar cal) throws SQLException {
+		return rs.getTime(findColumn(columnLabel), cal);
+	}
+
+	@Override
+	public Time getTime(String columnLabel) throws SQLException {
+		return rs.getTime(findColumn(columnLabel));
+	}
+
+	@Override
+	public long getLong(String columnLabel) throws SQLException {
+		return rs.getLong(findColumn(columnLabel));
+	}
+
+	@Override
+	public short getShort(String columnLabel) throws SQLException {
+		return rs.getShort(findColumn(columnLabel));
+	}
+
+	@Override
+	public void updateArray(String columnLabel, Array x) throws SQLException {
+		rs.updateArray(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateAsciiStream(String columnLabel, InputStream x, int length) throws SQLException {
+		rs.updateAsciiStream(findColumn(columnLabel), x, length);
+	}
+
+	@Override
+	public void updateAsciiStream(String columnLabel, InputStream x, long length) throws SQLException {
+		rs.updateAsciiStream(findColumn(columnLabel), x, length);
+	}
+
+	@Override
+	public void updateAsciiStream(String columnLabel, InputStream x) throws SQLException {
+		rs.updateAsciiStream(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateBigDecimal(String columnLabel, BigDecimal x) throws SQLException {
+		rs.updateBigDecimal(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateBinaryStream(String columnLabel, InputStream x, int length) throws SQLException {
+		rs.updateBinaryStream(findColumn(columnLabel), x, length);
+	}
+
+	@Override
+	public void updateBinaryStream(String columnLabel, InputStream x, long length) throws SQLException {
+		rs.updateBinaryStream(findColumn(columnLabel), x, length);
+	}
+
+	@Override
+	public void updateBinaryStream(String columnLabel, InputStream x) throws SQLException {
+		rs.updateBinaryStream(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateBlob(String columnLabel, InputStream inputStream, long length) throws SQLException {
+		rs.updateBlob(findColumn(columnLabel), inputStream, length);
+	}
+
+	@Override
+	public void updateBlob(String columnLabel, InputStream inputStream) throws SQLException {
+		rs.updateBlob(findColumn(columnLabel), inputStream);
+	}
+
+	@Override
+	public void updateBlob(String columnLabel, Blob x) throws SQLException {
+		rs.updateBlob(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateBoolean(String columnLabel, boolean x) throws SQLException {
+		rs.updateBoolean(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateBytes(String columnLabel, byte[] x) throws SQLException {
+		rs.updateBytes(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateByte(String columnLabel, byte x) throws SQLException {
+		rs.updateByte(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateCharacterStream(String columnLabel, Reader reader, int length) throws SQLException {
+		rs.updateCharacterStream(findColumn(columnLabel), reader, length);
+	}
+
+	@Override
+	public void updateCharacterStream(String columnLabel, Reader reader, long length) throws SQLException {
+		rs.updateCharacterStream(findColumn(columnLabel), reader, length);
+	}
+
+	@Override
+	public void updateCharacterStream(String columnLabel, Reader reader) throws SQLException {
+		rs.updateCharacterStream(findColumn(columnLabel), reader);
+	}
+
+	@Override
+	public void updateClob(String columnLabel, Reader reader, long length) throws SQLException {
+		rs.updateClob(findColumn(columnLabel), reader, length);
+	}
+
+	@Override
+	public void updateClob(String columnLabel, Reader reader) throws SQLException {
+		rs.updateClob(findColumn(columnLabel), reader);
+	}
+
+	@Override
+	public void updateClob(String columnLabel, Clob x) throws SQLException {
+		rs.updateClob(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateDate(String columnLabel, Date x) throws SQLException {
+		rs.updateDate(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateDouble(String columnLabel, double x) throws SQLException {
+		rs.updateDouble(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateFloat(String columnLabel, float x) throws SQLException {
+		rs.updateFloat(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateInt(String columnLabel, int x) throws SQLException {
+		rs.updateInt(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateLong(String columnLabel, long x) throws SQLException {
+		rs.updateLong(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateNCharacterStream(String columnLabel, Reader reader, long length) throws SQLException {
+		rs.updateNCharacterStream(findColumn(columnLabel), reader, length);
+	}
+
+	@Override
+	public void updateNCharacterStream(String columnLabel, Reader reader) throws SQLException {
+		rs.updateNCharacterStream(findColumn(columnLabel), reader);
+	}
+
+	@Override
+	public void updateNClob(String columnLabel, Reader reader, long length) throws SQLException {
+		rs.updateNClob(findColumn(columnLabel), reader, length);
+	}
+
+	@Override
+	public void updateNClob(String columnLabel, Reader reader) throws SQLException {
+		rs.updateNClob(findColumn(columnLabel), reader);
+	}
+
+	@Override
+	public void updateNClob(String columnLabel, NClob x) throws SQLException {
+		rs.updateNClob(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateNString(String columnLabel, String x) throws SQLException {
+		rs.updateNString(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateNull(String columnLabel) throws SQLException {
+		rs.updateNull(findColumn(columnLabel));
+	}
+
+	@Override
+	public void updateObject(String columnLabel, Object x, int scaleOrLength) throws SQLException {
+		rs.updateObject(findColumn(columnLabel), x, scaleOrLength);
+	}
+
+	@Override
+	public void updateObject(String columnLabel, Object x) throws SQLException {
+		rs.updateObject(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateRef(String columnLabel, Ref x) throws SQLException {
+		rs.updateRef(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateRowId(String columnLabel, RowId x) throws SQLException {
+		rs.updateRowId(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateSQLXML(String columnLabel, SQLXML x) throws SQLException {
+		rs.updateSQLXML(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateShort(String columnLabel, short x) throws SQLException {
+		rs.updateShort(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateString(String columnLabel, String x) throws SQLException {
+		rs.updateString(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateTimestamp(String columnLabel, Timestamp x) throws SQLException {
+		rs.updateTimestamp(findColumn(columnLabel), x);
+	}
+
+	@Override
+	public void updateTime(String columnLabel, Time x) throws SQLException {
+		rs.updateTime(findColumn(columnLabel), x);
+	}
+}
@@ -0,0 +1,473 @@
+package com.github.fjdbc.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+import com.github.fjdbc.query.ColumnChunk.ColumnType;
+import com.github.fjdbc.query.ExportFormat;
+
+/**
+ * Read the rows of a file written in one of the {@link ExportFormat} formats, and bind each row to the parameters of
+ * a {@link PreparedStatement}: the value of column {@code i} is bound to parameter {@code i}.
+ * <p>
+ * In text formats, all rows must have as many fields as the statement has parameters, or as the first row if the
+ * parameter count is unknown. Blank lines are skipped, unless rows have a single field: a blank line is then a null
+ * value.
+ * <p>
+ * The file is read through a reusable buffer. In text formats, integer values are parsed directly from the buffer,
+ * without creating a {@link String}.
+ */
+public abstract class FileRowReader {
+	/**
+	 * The SQL types of the parameters, or {@code 0} if unknown.
+	 */
+	private final int[] parameterTypes;
+
+	private FileRowReader(int[] parameterTypes) {
+		this.parameterTypes = parameterTypes;
+	}
+
+	/**
+	 * @param header
+	 *        If {@code true}, the first line of a text file is skipped.
+	 * @param parameterTypes
+	 *        The SQL types of the parameters (see {@link Types}), or {@code 0} if unknown. Values of unknown type
+	 *        are bound as strings in text formats.
+	 */
+	public static FileRowReader create(ReadableByteChannel channel, ExportFormat format, boolean header,
+			int[] parameterTypes) throws IOException {
+		switch (format) {
+		case CSV:
+		case TSV:
+			final DelimitedReader res = new DelimitedReader(channel, format == ExportFormat.CSV, parameterTypes);
+			if (header) res.skipRow();
+			return res;
+		case BINARY:
+			return new BinaryReader(channel, parameterTypes);
+		default:
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Bind the next row to the specified statement.
+	 * @return {@code false} if there are no more rows.
+	 */
+	public abstract boolean next(PreparedStatement ps) throws IOException, SQLException;
+
+	/**
+	 * Return the code of the specified column type in the {@link ExportFormat#BINARY} format. Unlike the ordinal, the
+	 * code does not depend on the declaration order of the types.
+	 */
+	public static byte getTypeCode(ColumnType type) {
+		switch (type) {
+		case INT:
+			return 0;
+		case LONG:
+			return 1;
+		case DOUBLE:
+			return 2;
+		case STRING:
+			return 3;
+		default:
+			throw new AssertionError();
+		}
+	}
+
+	private static ColumnType getColumnType(byte code) throws IOException {
+		for (final ColumnType type : ColumnType.values()) {
+			if (getTypeCode(type) == code) return type;
+		}
+		throw new IOException("Invalid column type: " + code);
+	}
+
+	int getParameterType(int index) {
+		return index < parameterTypes.length ? parameterTypes[index] : 0;
+	}
+
+	static boolean isInteger(int sqlType) {
+		return sqlType == Types.TINYINT || sqlType == Types.SMALLINT || sqlType == Types.INTEGER
+				|| sqlType == Types.BIGINT;
+	}
+
+	static boolean isFloatingPoint(int sqlType) {
+		return sqlType == Types.REAL || sqlType == Types.FLOAT || sqlType == Types.DOUBLE;
+	}
+
+	/**
+	 * Read CSV or TSV files.
+	 */
+	private static class DelimitedReader extends FileRowReader {
+		private final ReadableByteChannel channel;
+		private final boolean csv;
+		private final byte separator;
+		/**
+		 * A heap buffer, so that strings are decoded from its array without copy.
+		 */
+		private ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		private boolean eof = false;
+		private int fieldCount;
+		private int[] starts = new int[16];
+		private int[] ends = new int[16];
+		/**
+		 * Whether the field contains escape sequences.
+		 */
+		private boolean[] escaped = new boolean[16];
+		private boolean[] quoted = new boolean[16];
+		private byte[] scratch = new byte[256];
+		/**
+		 * The number of fields of each row, or {@code 0} until the first row is read if the parameter count is
+		 * unknown.
+		 */
+		private int expectedFieldCount;
+		/**
+		 * The 1-based line number of the current row, for error messages.
+		 */
+		private long line = 0;
+
+		public DelimitedReader(ReadableByteChannel channel, boolean csv, int[] parameterTypes) {
+			super(parameterTypes);
+			this.channel = channel;
+			this.csv = csv;
+			this.separator = (byte) (csv ? ',' : '\t');
+			this.expectedFieldCount = parameterTypes.length;
+			buffer.flip();
+		}
+
+		@Override
+		public boolean next(PreparedStatement ps) throws IOException, SQLException {
+			int rowEnd;
+			while (true) {
+				rowEnd = parseRow();
+				if (rowEnd < 0) return false;
+				if (!isBlank() || expectedFieldCount == 1) break;
+				buffer.position(rowEnd);
+			}
+			if (expectedFieldCount == 0) expectedFieldCount = fieldCount;
+			if (fieldCount != expectedFieldCount) {
+				// otherwise, the missing parameters would keep the values of the previous row.
+				throw new IOException(
+						String.format("Line %s has %s fields, expected %s", line, fieldCount, expectedFieldCount));
+			}
+			for (int i = 0; i < fieldCount; i++) {
+				bind(ps, i);
+			}
+			buffer.position(rowEnd);
+			return true;
+		}
+
+		private boolean isBlank() {
+			return fieldCount == 1 && starts[0] == ends[0] && !quoted[0];
+		}
+
+		private void skipRow() throws IOException {
+			final int rowEnd = parseRow();
+			if (rowEnd >= 0) buffer.position(rowEnd);
+		}
+
+		/**
+		 * Find the fields of the next row, reading the file as needed.
+		 * @return the position of the next row in the buffer, or {@code -1} if there are no more rows.
+		 */
+		private int parseRow() throws IOException {
+			while (true) {
+				final int rowEnd = scanRow();
+				if (rowEnd >= 0) {
+					line++;
+					return rowEnd;
+				}
+				if (eof) {
+					if (!buffer.hasRemaining()) return -1;
+					throw new IOException("Unterminated quoted value");
+				}
+				fill();
+			}
+		}
+
+		private void fill() throws IOException {
+			buffer.compact();
+			if (!buffer.hasRemaining()) {
+				// the row is larger than the buffer.
+				final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			int n;
+			do {
+				n = channel.read(buffer);
+			} while (n == 0);
+			if (n < 0) eof = true;
+			buffer.flip();
+		}
+
+		/**
+		 * @return the position of the next row, or {@code -1} if the buffer does not contain a whole row.
+		 */
+		private int scanRow() throws IOException {
+			final byte[] b = buffer.array();
+			final int limit = buffer.limit();
+			int p = buffer.position();
+			if (p == limit) return -1;
+			fieldCount = 0;
+			while (true) {
+				if (fieldCount == starts.length) growFields();
+				boolean isEscaped = false;
+				final boolean isQuoted = csv && p < limit && b[p] == '"';
+				final int start;
+				final int end;
+				if (isQuoted) {
+					start = ++p;
+					while (true) {
+						if (p >= limit) return -1;
+						if (b[p] == '"') {
+							if (p + 1 >= limit && !eof) return -1;
+							if (p + 1 < limit && b[p + 1] == '"') {
+								isEscaped = true;
+								p += 2;
+								continue;
+							}
+							break;
+						}
+						p++;
+					}
+					end = p++;
+				} else {
+					start = p;
+					while (p < limit && b[p] != separator && b[p] != '\n' && b[p] != '\r') {
+						if (b[p] == '\\' && !csv) isEscaped = true;
+						p++;
+					}
+					end = p;
+				}
+				starts[fieldCount] = start;
+				ends[fieldCount] = end;
+				escaped[fieldCount] = isEscaped;
+				quoted[fieldCount] = isQuoted;
+				fieldCount++;
+
+				if (p >= limit) return eof ? p : -1;
+				if (b[p] == separator) {
+					p++;
+				} else if (b[p] == '\n') {
+					return p + 1;
+				} else if (b[p] == '\r') {
+					if (p + 1 >= limit) return eof ? p + 1 : -1;
+					return b[p + 1] == '\n' ? p + 2 : p + 1;
+				} else {
+					// characters after a closing quote.
+					throw new IOException("Unexpected character after a quoted value");
+				}
+			}
+		}
+
+		private void growFields() {
+			final int n = starts.length * 2;
+			starts = Arrays.copyOf(starts, n);
+			ends = Arrays.copyOf(ends, n);
+			escaped = Arrays.copyOf(escaped, n);
+			quoted = Arrays.copyOf(quoted, n);
+		}
+
+		private void bind(PreparedStatement ps, int field) throws SQLException {
+			final int index = field + 1;
+			final int type = getParameterType(field);
+			final byte[] b = buffer.array();
+			final int start = starts[field];
+			final int length = ends[field] - start;
+			final boolean isNull = csv ? length == 0 && !quoted[field]
+					: length == 2 && b[start] == '\\' && b[start + 1] == 'N';
+			if (isNull) {
+				ps.setNull(index, type == 0 ? Types.VARCHAR : type);
+			} else if (isInteger(type) && !escaped[field] && length > 0 && length <= 18) {
+				long value = 0;
+				final boolean negative = b[start] == '-';
+				int i = negative ? start + 1 : start;
+				for (; i < ends[field]; i++) {
+					final int digit = b[i] - '0';
+					if (digit < 0 || digit > 9) break;
+					value = value * 10 + digit;
+				}
+				if (i == ends[field] && i > start + (negative ? 1 : 0)) {
+					ps.setLong(index, negative ? -value : value);
+				} else {
+					ps.setString(index, decode(field));
+				}
+			} else if (isFloatingPoint(type)) {
+				final String s = decode(field);
+				try {
+					ps.setDouble(index, Double.parseDouble(s));
+				} catch (final NumberFormatException e) {
+					ps.setString(index, s);
+				}
+			} else {
+				ps.setString(index, decode(field));
+			}
+		}
+
+		private String decode(int field) {
+			final byte[] b = buffer.array();
+			final int start = starts[field];
+			final int end = ends[field];
+			if (!escaped[field]) return new String(b, start, end - start, StandardCharsets.UTF_8);
+
+			if (scratch.length < end - start) scratch = new byte[Math.max(end - start, scratch.length * 2)];
+			int n = 0;
+			for (int i = start; i < end; i++) {
+				if (csv) {
+					// "" is decoded as "
+					if (b[i] == '"') i++;
+					scratch[n++] = b[i];
+				} else if (b[i] == '\\' && i + 1 < end) {
+					final byte c = b[++i];
+					scratch[n++] = (byte) (c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+				} else {
+					scratch[n++] = b[i];
+				}
+			}
+			return new String(scratch, 0, n, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Read files in the {@link ExportFormat#BINARY} format, one block at a time.
+	 */
+	private static class BinaryReader extends FileRowReader {
+		private final DataInputStream in;
+		private final ColumnType[] types;
+		private final byte[][] nulls;
+		private final ByteBuffer[] values;
+		/**
+		 * For string columns, the offset of each value in {@link #values}.
+		 */
+		private final int[][] offsets;
+		private int blockSize = 0;
+		private int row = 0;
+		private boolean eof = false;
+
+		public BinaryReader(ReadableByteChannel channel, int[] parameterTypes) throws IOException {
+			super(parameterTypes);
+			in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+			final byte[] magic = new byte[4];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, new byte[] { 'F', 'J', 'D', 'B' })) throw new IOException("Invalid file format");
+			final int version = in.readInt();
+			if (version != 1) throw new IOException("Unsupported version: " + version);
+			types = new ColumnType[in.readInt()];
+			for (int i = 0; i < types.length; i++) {
+				types[i] = getColumnType(in.readByte());
+				// skip the label.
+				in.readFully(new byte[in.readInt()]);
+			}
+			nulls = new byte[types.length][0];
+			values = new ByteBuffer[types.length];
+			offsets = new int[types.length][];
+			for (int i = 0; i < types.length; i++) {
+				values[i] = ByteBuffer.allocate(1 << 12);
+			}
+		}
+
+		@Override
+		public boolean next(PreparedStatement ps) throws IOException, SQLException {
+			if (row == blockSize && !readBlock()) return false;
+			for (int i = 0; i < types.length; i++) {
+				final int index = i + 1;
+				if ((nulls[i][row / 8] & 1 << row % 8) != 0) {
+					ps.setNull(index, getNullType(i));
+					continue;
+				}
+				switch (types[i]) {
+				case INT:
+					ps.setInt(index, values[i].getInt(row * 4));
+					break;
+				case LONG:
+					ps.setLong(index, values[i].getLong(row * 8));
+					break;
+				case DOUBLE:
+					ps.setDouble(index, values[i].getDouble(row * 8));
+					break;
+				default:
+					final int offset = offsets[i][row];
+					ps.setString(index, new String(values[i].array(), offset + 4, values[i].getInt(offset),
+							StandardCharsets.UTF_8));
+				}
+			}
+			row++;
+			return true;
+		}
+
+		private int getNullType(int column) {
+			final int type = getParameterType(column);
+			if (type != 0) return type;
+			switch (types[column]) {
+			case INT:
+				return Types.INTEGER;
+			case LONG:
+				return Types.BIGINT;
+			case DOUBLE:
+				return Types.DOUBLE;
+			default:
+				return Types.VARCHAR;
+			}
+		}
+
+		private boolean readBlock() throws IOException {
+			if (eof) return false;
+			final int rows = in.readInt();
+			if (rows == 0) {
+				eof = true;
+				return false;
+			}
+			for (int i = 0; i < types.length; i++) {
+				if (nulls[i].length < (rows + 7) / 8) nulls[i] = new byte[(rows + 7) / 8];
+				in.readFully(nulls[i], 0, (rows + 7) / 8);
+				if (types[i] == ColumnType.STRING) {
+					readStrings(i, rows);
+				} else {
+					final int size = rows * (types[i] == ColumnType.INT ? 4 : 8);
+					if (values[i].capacity() < size) values[i] = ByteBuffer.allocate(size);
+					in.readFully(values[i].array(), 0, size);
+				}
+			}
+			blockSize = rows;
+			row = 0;
+			return true;
+		}
+
+		/**
+		 * Read the strings of a block: the length and bytes of each non-null value are copied as is.
+		 */
+		private void readStrings(int column, int rows) throws IOException {
+			if (offsets[column] == null || offsets[column].length < rows) offsets[column] = new int[rows];
+			ByteBuffer buf = values[column];
+			buf.clear();
+			for (int r = 0; r < rows; r++) {
+				if ((nulls[column][r / 8] & 1 << r % 8) != 0) continue;
+				final int length = in.readInt();
+				if (length < 0) throw new EOFException("Invalid string length: " + length);
+				if (buf.remaining() < length + 4) {
+					final int capacity = Math.max(buf.capacity() * 2, buf.position() + length + 4);
+					final ByteBuffer larger = ByteBuffer.allocate(capacity);
+					buf.flip();
+					larger.put(buf);
+					buf = larger;
+				}
+				offsets[column][r] = buf.position();
+				buf.putInt(length);
+				in.readFully(buf.array(), buf.position(), length);
+				buf.position(buf.position() + length);
+			}
+			values[column] = buf;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.github.fjdbc.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.github.fjdbc.IntSequence;
+import com.github.fjdbc.PreparedStatementBinder;
+
+/**
+ * Compute a canonical fingerprint of the parameters bound by a {@link PreparedStatementBinder}.
+ * <p>
+ * The binder is called once, with a fake {@link PreparedStatement} that records the calls to {@code setXXX} methods.
+ * The calls are then replayed on the actual statement, so that the binder is not called again.
+ */
+public class ParameterRecorder implements InvocationHandler {
+	/**
+	 * Parameter values whose equality is well defined.
+	 */
+	private static final Set<Class<?>> valueTypes = new HashSet<>(Arrays.asList(String.class, BigDecimal.class,
+			Boolean.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+			java.sql.Date.class, java.sql.Time.class, java.sql.Timestamp.class, java.util.Date.class));
+
+	private final List<Object> calls = new ArrayList<>();
+	private final List<Method> methods = new ArrayList<>();
+	private final List<Object[]> arguments = new ArrayList<>();
+	/**
+	 * {@code false} if a parameter cannot be compared (streams, LOBs, etc.).
+	 */
+	private boolean comparable = true;
+	/**
+	 * {@code false} if the binder called other methods than {@code setXXX}.
+	 */
+	private boolean replayable = true;
+
+	private ParameterRecorder() {
+		// use record()
+	}
+
+	/**
+	 * Call the specified binder, recording the parameters it binds.
+	 * @return the recorder, or {@code null} if the binder failed.
+	 */
+	public static ParameterRecorder record(PreparedStatementBinder binder) {
+		final ParameterRecorder recorder = new ParameterRecorder();
+		if (binder == null) return recorder;
+		final PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, recorder);
+		try {
+			binder.bind(ps, new IntSequence(1));
+		} catch (final SQLException | RuntimeException e) {
+			return null;
+		}
+		return recorder;
+	}
+
+	/**
+	 * Return the fingerprint of the recorded parameters, or {@code null} if the binder uses parameters that cannot be
+	 * compared (streams, LOBs, etc.), or calls other methods than {@code setXXX}.
+	 * <p>
+	 * Two binders that bind equal parameters have equal fingerprints.
+	 */
+	public List<Object> getFingerprint() {
+		return comparable && replayable ? Collections.unmodifiableList(calls) : null;
+	}
+
+	/**
+	 * Return a binder replaying the recorded calls, or {@code null} if the binder called other methods than
+	 * {@code setXXX}: it must then be called again with the actual statement.
+	 */
+	public PreparedStatementBinder getReplayBinder() {
+		if (!replayable) return null;
+		return (ps, seq) -> {
+			for (int i = 0; i < methods.size(); i++) {
+				try {
+					methods.get(i).invoke(ps, arguments.get(i));
+				} catch (final InvocationTargetException e) {
+					if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+					throw new IllegalStateException(e.getCause());
+				} catch (final IllegalAccessException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			switch (method.getName()) {
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			default:
+				return "ParameterRecorder";
+			}
+		}
+		if (!method.getName().startsWith("set") || args == null) {
+			replayable = false;
+			return defaultValue(method.getReturnType());
+		}
+		methods.add(method);
+		arguments.add(args);
+		calls.add(method.getName());
+		for (final Object arg : args) {
+			calls.add(canonicalize(arg));
+		}
+		return null;
+	}
+
+	private Object canonicalize(Object arg) {
+		if (arg == null || valueTypes.contains(arg.getClass())) return arg;
+		if (arg instanceof byte[]) return ByteBuffer.wrap(((byte[]) arg).clone());
+		comparable = false;
+		return null;
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) return null;
+		if (type == boolean.class) return false;
+		if (type == char.class) return '\0';
+		if (type == long.class) return 0L;
+		if (type == float.class) return 0f;
+		if (type == double.class) return 0d;
+		if (type == byte.class) return (byte) 0;
+		if (type == short.class) return (short) 0;
+		return 0;
+	}
+}
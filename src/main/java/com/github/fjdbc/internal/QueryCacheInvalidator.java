@@ -0,0 +1,148 @@
+package com.github.fjdbc.internal;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.SQLConsumer;
+import com.github.fjdbc.query.QueryCache;
+
+/**
+ * Invalidate the entries of a {@link QueryCache} when statements modify the tables they depend on.
+ * <p>
+ * Tables are invalidated as soon as a statement is executed, then again when the transaction ends: queries executed
+ * while the transaction is in progress could otherwise cache the data as it was before the transaction.
+ * <p>
+ * Transactions are tracked by the connection borrowed from this provider, which operations pass to
+ * {@link #afterExecution(SQLConsumer, Statement, Connection)}: the connection of the statement may be a wrapped
+ * connection.
+ */
+public class QueryCacheInvalidator implements ConnectionProvider {
+	/**
+	 * Marker for statements that may modify any table.
+	 */
+	private static final String ALL_TABLES = "*";
+
+	private final ConnectionProvider cnxProvider;
+	private final QueryCache cache;
+	/**
+	 * The tables modified by the transaction in progress on each connection.
+	 */
+	private final Map<Connection, Set<String>> pendingTables = new WeakHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	public QueryCacheInvalidator(ConnectionProvider cnxProvider, QueryCache cache) {
+		assert cnxProvider != null;
+		assert cache != null;
+		this.cnxProvider = cnxProvider;
+		this.cache = cache;
+	}
+
+	/**
+	 * Return a consumer to be executed after the specified statement is executed. If the table modified by the
+	 * statement cannot be determined, the whole cache is invalidated.
+	 */
+	public SQLConsumer<Statement> afterExecution(String sql) {
+		return new Invalidation(sql == null ? null : SqlTables.getWrittenTable(sql));
+	}
+
+	/**
+	 * Execute the specified consumer after a statement is executed using the specified connection.
+	 * @param cnx
+	 *        The connection passed to the operation, i.e borrowed from the provider.
+	 */
+	public static void afterExecution(SQLConsumer<Statement> consumer, Statement st, Connection cnx)
+			throws SQLException {
+		if (consumer instanceof Invalidation) {
+			((Invalidation) consumer).accept(st, cnx);
+		} else {
+			consumer.accept(st);
+		}
+	}
+
+	private void invalidate(String table) {
+		if (ALL_TABLES.equals(table)) {
+			cache.invalidateAll();
+		} else {
+			cache.invalidate(table);
+		}
+	}
+
+	private void endTransaction(Connection cnx) {
+		if (cnx == null) return;
+		final Set<String> tables;
+		lock.lock();
+		try {
+			tables = pendingTables.remove(cnx);
+		} finally {
+			lock.unlock();
+		}
+		if (tables == null) return;
+		for (final String table : tables) {
+			invalidate(table);
+		}
+	}
+
+	private class Invalidation implements SQLConsumer<Statement> {
+		private final String table;
+
+		public Invalidation(String table) {
+			this.table = table == null ? ALL_TABLES : table;
+		}
+
+		/**
+		 * Used when the connection borrowed from the provider is not known.
+		 */
+		@Override
+		public void accept(Statement st) throws SQLException {
+			accept(st, st.getConnection());
+		}
+
+		public void accept(Statement st, Connection cnx) throws SQLException {
+			invalidate(table);
+			if (cnx.getAutoCommit()) return;
+			lock.lock();
+			try {
+				pendingTables.computeIfAbsent(cnx, c -> new HashSet<>()).add(table);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public Connection borrow() throws SQLException {
+		return cnxProvider.borrow();
+	}
+
+	@Override
+	public void giveBack(Connection cnx) {
+		// the transaction may have been committed without calling commit().
+		endTransaction(cnx);
+		cnxProvider.giveBack(cnx);
+	}
+
+	@Override
+	public void commit(Connection cnx) {
+		try {
+			cnxProvider.commit(cnx);
+		} finally {
+			endTransaction(cnx);
+		}
+	}
+
+	@Override
+	public void rollback(Connection cnx) {
+		try {
+			cnxProvider.rollback(cnx);
+		} finally {
+			endTransaction(cnx);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.github.fjdbc.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The writes of the current thread, see {@link com.github.fjdbc.connection.RoutingConnectionProvider}: reads are sent
+ * to the primary database while the thread holds a connection to the primary, and shortly after it gave it back.
+ * <p>
+ * Like the {@link ShardContext}, the session is inherited by the operations executed asynchronously on behalf of the
+ * thread, so that they read the writes of the thread too. The writes are updated through the borrowed connections, so
+ * that a connection given back by another thread still updates the session that borrowed it.
+ */
+public final class RoutingSession {
+	private static final ThreadLocal<RoutingSession> current = new ThreadLocal<>();
+
+	/**
+	 * The writes of each provider. Providers are weakly referenced, since sessions may live as long as their thread.
+	 */
+	private final Map<Object, Writes> writes = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private RoutingSession() {
+	}
+
+	/**
+	 * Return the session of the current thread, or {@code null} if the thread did not borrow a connection to a primary
+	 * database yet.
+	 */
+	public static RoutingSession current() {
+		return current.get();
+	}
+
+	/**
+	 * Return the writes of the current thread to the primary of the specified provider, creating them if needed.
+	 */
+	public static Writes getWrites(Object provider) {
+		RoutingSession session = current.get();
+		if (session == null) {
+			session = new RoutingSession();
+			current.set(session);
+		}
+		return session.writes.computeIfAbsent(provider, p -> new Writes());
+	}
+
+	/**
+	 * Return {@code true} if the current thread holds a connection to the primary of the specified provider, or gave
+	 * one back less than the specified time ago.
+	 */
+	public static boolean isPrimaryRequired(Object provider, long stickyNanos) {
+		final RoutingSession session = current.get();
+		final Writes w = session == null ? null : session.writes.get(provider);
+		if (w == null) return false;
+		return w.primaryBorrows.get() > 0 || w.written && System.nanoTime() - w.lastWriteNanos < stickyNanos;
+	}
+
+	/**
+	 * Execute the specified operation in the current thread using the specified session, e.g inherited from another
+	 * thread.
+	 * @param session
+	 *        The session, or {@code null} to start a new session if needed.
+	 */
+	public static <T> T call(RoutingSession session, Supplier<T> operation) {
+		final RoutingSession outer = current.get();
+		if (session == outer) return operation.get();
+		current.set(session);
+		try {
+			return operation.get();
+		} finally {
+			current.set(outer);
+		}
+	}
+
+	/**
+	 * The writes of a session to the primary of a provider.
+	 */
+	public static final class Writes {
+		private final AtomicInteger primaryBorrows = new AtomicInteger(0);
+		private volatile long lastWriteNanos;
+		private volatile boolean written = false;
+
+		private Writes() {
+		}
+
+		public void primaryBorrowed() {
+			primaryBorrows.incrementAndGet();
+		}
+
+		public void primaryGivenBack() {
+			lastWriteNanos = System.nanoTime();
+			written = true;
+			primaryBorrows.decrementAndGet();
+		}
+	}
+}
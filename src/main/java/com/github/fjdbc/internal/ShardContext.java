@@ -0,0 +1,80 @@
+package com.github.fjdbc.internal;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import com.github.fjdbc.ConnectionProvider;
+
+/**
+ * The shards selected by the current thread, see {@link com.github.fjdbc.connection.ShardedConnectionProvider}.
+ * <p>
+ * Like the {@link com.github.fjdbc.Deadline}, the context is inherited by the operations executed asynchronously on
+ * behalf of the thread. Contexts are equal if they select the same shards of the same providers.
+ */
+public final class ShardContext {
+	private static final ThreadLocal<ShardContext> current = new ThreadLocal<>();
+
+	private final Object provider;
+	private final ConnectionProvider shard;
+	private final ShardContext outer;
+
+	private ShardContext(Object provider, ConnectionProvider shard, ShardContext outer) {
+		this.provider = provider;
+		this.shard = shard;
+		this.outer = outer;
+	}
+
+	/**
+	 * Return the context of the current thread, or {@code null} if no shard is selected.
+	 */
+	public static ShardContext current() {
+		return current.get();
+	}
+
+	/**
+	 * Return the shard selected by the current thread for the specified provider, or {@code null}.
+	 */
+	public static ConnectionProvider getShard(Object provider) {
+		for (ShardContext c = current.get(); c != null; c = c.outer) {
+			if (c.provider == provider) return c.shard;
+		}
+		return null;
+	}
+
+	/**
+	 * Execute the specified operation in the current thread, selecting a shard of the specified provider.
+	 */
+	public static <T> T call(Object provider, ConnectionProvider shard, Supplier<T> operation) {
+		return call(new ShardContext(provider, shard, current.get()), operation);
+	}
+
+	/**
+	 * Execute the specified operation in the current thread using the specified context, e.g inherited from another
+	 * thread.
+	 * @param context
+	 *        The context, or {@code null} to select no shard.
+	 */
+	public static <T> T call(ShardContext context, Supplier<T> operation) {
+		final ShardContext outer = current.get();
+		if (context == outer) return operation.get();
+		current.set(context);
+		try {
+			return operation.get();
+		} finally {
+			current.set(outer);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ShardContext)) return false;
+		final ShardContext other = (ShardContext) obj;
+		return provider == other.provider && shard == other.shard && Objects.equals(outer, other.outer);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * System.identityHashCode(provider) + System.identityHashCode(shard))
+				+ Objects.hashCode(outer);
+	}
+}
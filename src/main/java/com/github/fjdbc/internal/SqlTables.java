@@ -0,0 +1,79 @@
+package com.github.fjdbc.internal;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Find the tables referenced by SQL statements.
+ * <p>
+ * This is a best-effort lexical analysis, not a SQL parser. Table names are normalized: quotes and schema prefixes
+ * are removed, and names are converted to lower case. Normalization may merge distinct tables, which is acceptable
+ * for cache invalidation since it only causes extra invalidations.
+ */
+public class SqlTables {
+	private static final String IDENTIFIER = "(?:\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\]|[\\w$#]+)";
+	private static final String QUALIFIED_IDENTIFIER = IDENTIFIER + "(?:\\s*\\.\\s*" + IDENTIFIER + ")*";
+	private static final Pattern readPattern = Pattern.compile(
+			"\\b(?:from|join)\\s+(" + QUALIFIED_IDENTIFIER + "(?:\\s+(?:as\\s+)?[\\w$#]+)?(?:\\s*,\\s*"
+					+ QUALIFIED_IDENTIFIER + "(?:\\s+(?:as\\s+)?[\\w$#]+)?)*)",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern writePattern = Pattern.compile("^\\s*(?:insert\\s+(?:or\\s+\\w+\\s+)?into"
+			+ "|replace\\s+into|update|delete\\s+from|delete|merge\\s+into|truncate\\s+table|truncate)\\s+("
+			+ QUALIFIED_IDENTIFIER + ")", Pattern.CASE_INSENSITIVE);
+	private static final Pattern identifierPattern = Pattern.compile(IDENTIFIER);
+	private static final Pattern qualifiedIdentifierPattern = Pattern.compile(QUALIFIED_IDENTIFIER);
+
+	private SqlTables() {
+		// utility class
+	}
+
+	/**
+	 * Return the tables read by a SELECT statement, or an empty set if no table could be found.
+	 */
+	public static Set<String> getReadTables(String sql) {
+		final Set<String> res = new LinkedHashSet<>();
+		final Matcher m = readPattern.matcher(sql);
+		while (m.find()) {
+			for (final String tableRef : m.group(1).split(",")) {
+				final Matcher idMatcher = qualifiedIdentifierPattern.matcher(tableRef.trim());
+				// sub-queries are not table references: their tables are matched separately.
+				if (idMatcher.lookingAt()) res.add(normalize(idMatcher.group()));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Return the table modified by an INSERT, UPDATE, DELETE, MERGE or TRUNCATE statement, or {@code null} if the
+	 * statement is of another type.
+	 */
+	public static String getWrittenTable(String sql) {
+		final Matcher m = writePattern.matcher(sql);
+		return m.find() ? normalize(m.group(1)) : null;
+	}
+
+	/**
+	 * Normalize a table name: remove quotes and schema prefixes, then convert to lower case.
+	 */
+	public static String normalize(String tableName) {
+		final Matcher m = identifierPattern.matcher(tableName);
+		String last = tableName;
+		while (m.find()) {
+			last = m.group();
+		}
+		if (last.length() >= 2 && "\"`[".indexOf(last.charAt(0)) >= 0) last = last.substring(1, last.length() - 1);
+		return last.toLowerCase(Locale.ROOT);
+	}
+
+	public static Set<String> normalize(Set<String> tableNames) {
+		final Set<String> res = new LinkedHashSet<>();
+		for (final String t : tableNames) {
+			res.add(normalize(t));
+		}
+		return Collections.unmodifiableSet(res);
+	}
+}
@@ -0,0 +1,424 @@
+package com.github.fjdbc.internal;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A connection that remembers its auto-commit mode, read-only mode and transaction isolation, and whether a
+ * transaction may be pending. Calls that would not change the state of the connection are not sent to the database.
+ * <p>
+ * A transaction may be pending if a statement was executed since the last commit or roll back, or if the connection
+ * was never committed nor rolled back. Callable statements are not tracked: once one is created, commit and roll back
+ * are always sent to the database.
+ */
+public class StateTrackingConnection extends ConnectionDelegate {
+	private final State state;
+	private final LongAdder skippedCalls;
+
+	/**
+	 * @param state
+	 *        The state of the connection, shared by all wrappers of the connection.
+	 * @param skippedCalls
+	 *        Incremented each time a call is not sent to the database.
+	 */
+	public StateTrackingConnection(Connection cnx, State state, LongAdder skippedCalls) {
+		super(cnx);
+		this.state = state;
+		this.skippedCalls = skippedCalls;
+	}
+
+	/**
+	 * Commit or roll back the wrapped connection, unless no transaction is pending or the connection is in auto-commit
+	 * mode. Unlike {@link com.github.fjdbc.ConnectionProvider#commit(Connection)}, the auto-commit mode is read from
+	 * the database only once.
+	 * @param commit
+	 *        {@code true} to commit, {@code false} to roll back.
+	 */
+	public void endTransaction(boolean commit) throws SQLException {
+		if (!state.isPending()) {
+			skippedCalls.increment();
+			return;
+		}
+		if (getAutoCommit()) return;
+		if (commit) {
+			commit();
+		} else {
+			rollback();
+		}
+	}
+
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		final Boolean autoCommit = state.autoCommit;
+		if (autoCommit != null) {
+			skippedCalls.increment();
+			return autoCommit;
+		}
+		final boolean res = cnx.getAutoCommit();
+		state.autoCommit = res;
+		return res;
+	}
+
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		if (Boolean.valueOf(autoCommit).equals(state.autoCommit)) {
+			skippedCalls.increment();
+			return;
+		}
+		cnx.setAutoCommit(autoCommit);
+		state.autoCommit = autoCommit;
+		// switching to auto-commit mode commits the pending transaction.
+		if (autoCommit) state.pending = false;
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		if (!state.isPending()) {
+			skippedCalls.increment();
+			return;
+		}
+		state.pending = false;
+		try {
+			cnx.commit();
+		} catch (final SQLException | RuntimeException e) {
+			state.pending = true;
+			throw e;
+		}
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		if (!state.isPending()) {
+			skippedCalls.increment();
+			return;
+		}
+		state.pending = false;
+		try {
+			cnx.rollback();
+		} catch (final SQLException | RuntimeException e) {
+			state.pending = true;
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isReadOnly() throws SQLException {
+		final Boolean readOnly = state.readOnly;
+		if (readOnly != null) {
+			skippedCalls.increment();
+			return readOnly;
+		}
+		final boolean res = cnx.isReadOnly();
+		state.readOnly = res;
+		return res;
+	}
+
+	@Override
+	public void setReadOnly(boolean readOnly) throws SQLException {
+		if (Boolean.valueOf(readOnly).equals(state.readOnly)) {
+			skippedCalls.increment();
+			return;
+		}
+		cnx.setReadOnly(readOnly);
+		state.readOnly = readOnly;
+	}
+
+	@Override
+	public int getTransactionIsolation() throws SQLException {
+		final Integer isolation = state.isolation;
+		if (isolation != null) {
+			skippedCalls.increment();
+			return isolation;
+		}
+		final int res = cnx.getTransactionIsolation();
+		state.isolation = res;
+		return res;
+	}
+
+	@Override
+	public void setTransactionIsolation(int level) throws SQLException {
+		if (Integer.valueOf(level).equals(state.isolation)) {
+			skippedCalls.increment();
+			return;
+		}
+		cnx.setTransactionIsolation(level);
+		state.isolation = level;
+	}
+
+	@Override
+	public Statement createStatement() throws SQLException {
+		return new TrackingStatement(cnx.createStatement());
+	}
+
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+		return new TrackingStatement(cnx.createStatement(resultSetType, resultSetConcurrency));
+	}
+
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+			throws SQLException {
+		return new TrackingStatement(cnx.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		return new TrackingPreparedStatement(cnx.prepareStatement(sql));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+			throws SQLException {
+		return new TrackingPreparedStatement(cnx.prepareStatement(sql, resultSetType, resultSetConcurrency));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+			int resultSetHoldability) throws SQLException {
+		return new TrackingPreparedStatement(
+				cnx.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		return new TrackingPreparedStatement(cnx.prepareStatement(sql, autoGeneratedKeys));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+		return new TrackingPreparedStatement(cnx.prepareStatement(sql, columnIndexes));
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+		return new TrackingPreparedStatement(cnx.prepareStatement(sql, columnNames));
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql) throws SQLException {
+		state.untracked = true;
+		return cnx.prepareCall(sql);
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency)
+			throws SQLException {
+		state.untracked = true;
+		return cnx.prepareCall(sql, resultSetType, resultSetConcurrency);
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
+			int resultSetHoldability) throws SQLException {
+		state.untracked = true;
+		return cnx.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	@Override
+	public Savepoint setSavepoint() throws SQLException {
+		state.pending = true;
+		return cnx.setSavepoint();
+	}
+
+	@Override
+	public Savepoint setSavepoint(String name) throws SQLException {
+		state.pending = true;
+		return cnx.setSavepoint(name);
+	}
+
+	/**
+	 * A statement that marks the transaction as pending when it is executed.
+	 */
+	private class TrackingStatement extends StatementDelegate {
+		public TrackingStatement(Statement st) {
+			super(st);
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			return StateTrackingConnection.this;
+		}
+
+		@Override
+		public ResultSet executeQuery(String sql) throws SQLException {
+			state.pending = true;
+			return st.executeQuery(sql);
+		}
+
+		@Override
+		public int executeUpdate(String sql) throws SQLException {
+			state.pending = true;
+			return st.executeUpdate(sql);
+		}
+
+		@Override
+		public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+			state.pending = true;
+			return st.executeUpdate(sql, autoGeneratedKeys);
+		}
+
+		@Override
+		public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+			state.pending = true;
+			return st.executeUpdate(sql, columnIndexes);
+		}
+
+		@Override
+		public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+			state.pending = true;
+			return st.executeUpdate(sql, columnNames);
+		}
+
+		@Override
+		public boolean execute(String sql) throws SQLException {
+			state.pending = true;
+			return st.execute(sql);
+		}
+
+		@Override
+		public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+			state.pending = true;
+			return st.execute(sql, autoGeneratedKeys);
+		}
+
+		@Override
+		public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+			state.pending = true;
+			return st.execute(sql, columnIndexes);
+		}
+
+		@Override
+		public boolean execute(String sql, String[] columnNames) throws SQLException {
+			state.pending = true;
+			return st.execute(sql, columnNames);
+		}
+
+		@Override
+		public int[] executeBatch() throws SQLException {
+			state.pending = true;
+			return st.executeBatch();
+		}
+
+		@Override
+		public long executeLargeUpdate(String sql) throws SQLException {
+			state.pending = true;
+			return st.executeLargeUpdate(sql);
+		}
+
+		@Override
+		public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+			state.pending = true;
+			return st.executeLargeUpdate(sql, autoGeneratedKeys);
+		}
+
+		@Override
+		public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+			state.pending = true;
+			return st.executeLargeUpdate(sql, columnIndexes);
+		}
+
+		@Override
+		public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+			state.pending = true;
+			return st.executeLargeUpdate(sql, columnNames);
+		}
+
+		@Override
+		public long[] executeLargeBatch() throws SQLException {
+			state.pending = true;
+			return st.executeLargeBatch();
+		}
+	}
+
+	/**
+	 * A prepared statement that marks the transaction as pending when it is executed.
+	 */
+	private class TrackingPreparedStatement extends PreparedStatementDelegate {
+		public TrackingPreparedStatement(PreparedStatement ps) {
+			super(ps);
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			return StateTrackingConnection.this;
+		}
+
+		@Override
+		public ResultSet executeQuery() throws SQLException {
+			state.pending = true;
+			return ps.executeQuery();
+		}
+
+		@Override
+		public int executeUpdate() throws SQLException {
+			state.pending = true;
+			return ps.executeUpdate();
+		}
+
+		@Override
+		public boolean execute() throws SQLException {
+			state.pending = true;
+			return ps.execute();
+		}
+
+		@Override
+		public int[] executeBatch() throws SQLException {
+			state.pending = true;
+			return ps.executeBatch();
+		}
+
+		@Override
+		public long executeLargeUpdate() throws SQLException {
+			state.pending = true;
+			return ps.executeLargeUpdate();
+		}
+
+		@Override
+		public long[] executeLargeBatch() throws SQLException {
+			state.pending = true;
+			return ps.executeLargeBatch();
+		}
+
+		@Override
+		public ResultSet executeQuery(String sql) throws SQLException {
+			state.pending = true;
+			return ps.executeQuery(sql);
+		}
+
+		@Override
+		public int executeUpdate(String sql) throws SQLException {
+			state.pending = true;
+			return ps.executeUpdate(sql);
+		}
+
+		@Override
+		public boolean execute(String sql) throws SQLException {
+			state.pending = true;
+			return ps.execute(sql);
+		}
+	}
+
+	/**
+	 * The state of a connection, as known by the client. {@code null} values are unknown.
+	 */
+	public static class State {
+		private volatile Boolean autoCommit;
+		private volatile Boolean readOnly;
+		private volatile Integer isolation;
+		private volatile boolean pending = true;
+		/**
+		 * {@code true} once a callable statement was created: its executions are not tracked.
+		 */
+		private volatile boolean untracked = false;
+
+		private boolean isPending() {
+			return pending || untracked;
+		}
+	}
+}
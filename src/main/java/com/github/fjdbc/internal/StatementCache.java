@@ -0,0 +1,180 @@
+package com.github.fjdbc.internal;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded LRU cache of {@link PreparedStatement} instances, belonging to a single connection.
+ * <p>
+ * Statements are checked out of the cache while in use, so that a given statement is never handed out twice at the
+ * same time.
+ * <p>
+ * This class is thread safe.
+ */
+public class StatementCache {
+	private final int maxSize;
+	private final Map<Key, PreparedStatement> statements = new LinkedHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	/**
+	 * @param maxSize
+	 *        The maximum number of idle statements kept by this cache.
+	 * @param hits
+	 *        Incremented each time a statement is found in the cache.
+	 * @param misses
+	 *        Incremented each time a statement is not found in the cache.
+	 * @param evictions
+	 *        Incremented each time a statement is closed to make room for another one.
+	 */
+	public StatementCache(int maxSize, LongAdder hits, LongAdder misses, LongAdder evictions) {
+		assert maxSize > 0;
+		this.maxSize = maxSize;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+	}
+
+	/**
+	 * Check out the statement matching the specified key, or return {@code null} if there is none.
+	 */
+	public PreparedStatement take(Key key) {
+		final PreparedStatement res;
+		lock.lock();
+		try {
+			res = statements.remove(key);
+		} finally {
+			lock.unlock();
+		}
+		if (res == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return res;
+	}
+
+	/**
+	 * Put back a previously checked out statement in the cache. The least recently used statement is closed if the
+	 * cache is full.
+	 */
+	public void giveBack(Key key, PreparedStatement ps) throws SQLException {
+		final List<PreparedStatement> toClose = new ArrayList<>(1);
+		lock.lock();
+		try {
+			final PreparedStatement previous = statements.put(key, ps);
+			// the same SQL was prepared twice concurrently: only keep one instance.
+			if (previous != null) toClose.add(previous);
+			final Iterator<PreparedStatement> it = statements.values().iterator();
+			while (statements.size() > maxSize) {
+				toClose.add(it.next());
+				it.remove();
+				evictions.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+		closeAll(toClose);
+	}
+
+	/**
+	 * Close all statements held by this cache.
+	 */
+	public void clear() throws SQLException {
+		final List<PreparedStatement> toClose;
+		lock.lock();
+		try {
+			toClose = new ArrayList<>(statements.values());
+			statements.clear();
+		} finally {
+			lock.unlock();
+		}
+		closeAll(toClose);
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return statements.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void closeAll(List<PreparedStatement> statements) throws SQLException {
+		SQLException exception = null;
+		for (final PreparedStatement ps : statements) {
+			try {
+				ps.close();
+			} catch (final SQLException e) {
+				if (exception == null) exception = e;
+				else exception.addSuppressed(e);
+			}
+		}
+		if (exception != null) throw exception;
+	}
+
+	/**
+	 * The cache key of a statement: the SQL string, and the characteristics of the result sets it produces.
+	 */
+	public static class Key {
+		private final String sql;
+		private final int resultSetType;
+		private final int resultSetConcurrency;
+		private final int resultSetHoldability;
+
+		/**
+		 * @param resultSetHoldability
+		 *        The result set holdability, or {@code 0} to use the connection default.
+		 */
+		public Key(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
+			this.sql = sql;
+			this.resultSetType = resultSetType;
+			this.resultSetConcurrency = resultSetConcurrency;
+			this.resultSetHoldability = resultSetHoldability;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		public int getResultSetType() {
+			return resultSetType;
+		}
+
+		public int getResultSetConcurrency() {
+			return resultSetConcurrency;
+		}
+
+		public int getResultSetHoldability() {
+			return resultSetHoldability;
+		}
+
+		@Override
+		public int hashCode() {
+			int res = sql.hashCode();
+			res = 31 * res + resultSetType;
+			res = 31 * res + resultSetConcurrency;
+			res = 31 * res + resultSetHoldability;
+			return res;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key other = (Key) obj;
+			return resultSetType == other.resultSetType && resultSetConcurrency == other.resultSetConcurrency
+					&& resultSetHoldability == other.resultSetHoldability && sql.equals(other.sql);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.github.fjdbc.internal;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import com.github.fjdbc.Deadline;
+
+/**
+ * A {@link CompletableFuture} completed by a database operation running in another thread. Cancelling the future
+ * cancels the statements being executed, see {@link Statement#cancel()}.
+ * <p>
+ * Statements take part in the cancellation when they are registered by the thread running the operation, see
+ * {@link #statementCreated(Statement)} and {@link #statementClosing(Statement)}. The same hooks apply the
+ * {@link Deadline} of the current thread, if any.
+ * @param <T>
+ *        The type of the result.
+ */
+public class StatementFuture<T> extends CompletableFuture<T> {
+	private static final ThreadLocal<StatementFuture<?>> current = new ThreadLocal<>();
+
+	private final Set<Statement> runningStatements = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Run the specified operation using the specified executor.
+	 * <p>
+	 * If the future is cancelled before the operation starts, the operation is not executed. The operation inherits
+	 * the deadline, the shards and the routing session of the current thread, see {@link ShardContext} and
+	 * {@link RoutingSession}.
+	 */
+	public static <T> StatementFuture<T> supplyAsync(Supplier<T> operation, Executor executor) {
+		assert operation != null;
+		assert executor != null;
+		final StatementFuture<T> res = new StatementFuture<>();
+		final Deadline deadline = Deadline.current();
+		final ShardContext shards = ShardContext.current();
+		final RoutingSession session = RoutingSession.current();
+		final Supplier<T> withDeadline = deadline == null ? operation : () -> deadline.call(operation);
+		try {
+			executor.execute(() -> res.run(
+					() -> ShardContext.call(shards, () -> RoutingSession.call(session, withDeadline))));
+		} catch (final RuntimeException e) {
+			res.completeExceptionally(e);
+		}
+		return res;
+	}
+
+	private void run(Supplier<T> operation) {
+		if (isDone()) return;
+		current.set(this);
+		try {
+			complete(operation.get());
+		} catch (final Throwable e) {
+			completeExceptionally(e);
+		} finally {
+			current.remove();
+		}
+	}
+
+	/**
+	 * Register a statement created by the current thread. If the current thread runs an operation on behalf of a
+	 * {@code StatementFuture}, the statement is cancelled when the future is cancelled.
+	 * @see Deadline#statementCreated(Statement)
+	 */
+	public static void statementCreated(Statement st) throws SQLException {
+		final Deadline deadline = Deadline.current();
+		if (deadline != null) deadline.statementCreated(st);
+		final StatementFuture<?> future = current.get();
+		if (future == null) return;
+		future.runningStatements.add(st);
+		if (future.isCancelled()) cancelQuietly(st);
+	}
+
+	/**
+	 * Unregister a statement registered by {@link #statementCreated(Statement)}.
+	 */
+	public static void statementClosing(Statement st) {
+		final Deadline deadline = Deadline.current();
+		if (deadline != null) deadline.statementClosing(st);
+		final StatementFuture<?> future = current.get();
+		if (future != null) future.runningStatements.remove(st);
+	}
+
+	/**
+	 * Throw a {@link CancellationException} if the current thread runs an operation on behalf of a cancelled
+	 * {@code StatementFuture}. Also check the deadline of the current thread, see {@link Deadline#check()}.
+	 * <p>
+	 * This allows stopping long-running operations between rows, even if the driver does not support
+	 * {@link Statement#cancel()}.
+	 */
+	public static void checkCancelled() {
+		final Deadline deadline = Deadline.current();
+		if (deadline != null) deadline.check();
+		final StatementFuture<?> future = current.get();
+		if (future != null && future.isCancelled()) throw new CancellationException();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		final boolean res = super.cancel(mayInterruptIfRunning);
+		if (res) {
+			for (final Statement st : runningStatements) {
+				cancelQuietly(st);
+			}
+		}
+		return res;
+	}
+
+	private static void cancelQuietly(Statement st) {
+		try {
+			st.cancel();
+		} catch (final SQLException e) {
+			// the operation will be stopped by checkCancelled() anyway.
+		}
+	}
+}
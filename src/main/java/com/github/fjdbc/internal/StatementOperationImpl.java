@@ -99,35 +99,45 @@ public class StatementOperationImpl implements StatementOperation {
 		}
 	}
 
-	private void executeAfterExecutionConsumers(Statement st) throws SQLException {
+	private void executeAfterExecutionConsumers(Statement st, Connection cnx) throws SQLException {
 		for (final SQLConsumer<Statement> c : afterExecutionConsumers) {
-			c.accept(st);
+			QueryCacheInvalidator.afterExecution(c, st, cnx);
 		}
 	}
 
 	private int execute_regularStatement(Connection cnx) throws SQLException {
 		try (Statement st = cnx.createStatement()) {
-			executeBeforeExecutionConsumers(st);
-			final int modifiedRows = st.executeUpdate(sql);
-			executeAfterExecutionConsumers(st);
-			return modifiedRows;
+			StatementFuture.statementCreated(st);
+			try {
+				executeBeforeExecutionConsumers(st);
+				final int modifiedRows = st.executeUpdate(sql);
+				executeAfterExecutionConsumers(st, cnx);
+				return modifiedRows;
+			} finally {
+				StatementFuture.statementClosing(st);
+			}
 		}
 	}
 
 	private int execute_preparedStatement(Connection cnx) throws SQLException {
 		try (PreparedStatement ps = cnx.prepareStatement(sql)) {
-			final PreparedStatementEx psx = new PreparedStatementEx(ps);
-			binder.bind(psx, new IntSequence(1));
-			executeBeforeExecutionConsumers(ps);
-			final int nRows;
-			if (psx.isBatch()) {
-				final int[] nRows_array = ps.executeBatch();
-				nRows = getNRowsModifiedByBatch(nRows_array);
-			} else {
-				nRows = ps.executeUpdate();
+			StatementFuture.statementCreated(ps);
+			try {
+				final PreparedStatementEx psx = new PreparedStatementEx(ps);
+				binder.bind(psx, new IntSequence(1));
+				executeBeforeExecutionConsumers(ps);
+				final int nRows;
+				if (psx.isBatch()) {
+					final int[] nRows_array = ps.executeBatch();
+					nRows = getNRowsModifiedByBatch(nRows_array);
+				} else {
+					nRows = ps.executeUpdate();
+				}
+				executeAfterExecutionConsumers(ps, cnx);
+				return nRows;
+			} finally {
+				StatementFuture.statementClosing(ps);
 			}
-			executeAfterExecutionConsumers(ps);
-			return nRows;
 		}
 	}
 
@@ -148,16 +158,18 @@ public class StatementOperationImpl implements StatementOperation {
 	@Override
 	public int executeAndCommit() {
 		Connection cnx = null;
+		boolean committed = false;
 		try {
 			cnx = cnxProvider.borrow();
 			final int modifiedRows = execute(cnx);
 			cnxProvider.commit(cnx);
+			committed = true;
 			return modifiedRows;
 		} catch (final SQLException e) {
 			throw new RuntimeSQLException("Error executing the SQL statement: " + sql, e);
 		} finally {
-			// if the connection was already committed, roll back should be a no op.
-			cnxProvider.rollback(cnx);
+			// a roll back after the commit would cost a round trip.
+			if (!committed) cnxProvider.rollback(cnx);
 			cnxProvider.giveBack(cnx);
 		}
 	}
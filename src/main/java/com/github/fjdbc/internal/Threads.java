@@ -0,0 +1,112 @@
+package com.github.fjdbc.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread utilities.
+ * <p>
+ * Virtual threads are used when the runtime supports them (Java 21+); otherwise daemon platform threads are used. The
+ * library is compiled for Java 8, so virtual threads are looked up by reflection.
+ */
+public class Threads {
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderFactory;
+
+	static {
+		Method _ofVirtual = null;
+		Method _builderName = null;
+		Method _builderFactory = null;
+		try {
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			_ofVirtual = Thread.class.getMethod("ofVirtual");
+			_builderName = builderClass.getMethod("name", String.class, long.class);
+			_builderFactory = builderClass.getMethod("factory");
+		} catch (final ReflectiveOperationException e) {
+			_ofVirtual = null;
+		}
+		ofVirtual = _ofVirtual;
+		builderName = _builderName;
+		builderFactory = _builderFactory;
+	}
+
+	private Threads() {
+		// utility class
+	}
+
+	/**
+	 * Return {@code true} if the runtime supports virtual threads.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Return a factory of virtual threads if the runtime supports them, or of daemon platform threads otherwise.
+	 * @param namePrefix
+	 *        The prefix of the thread names. A counter is appended to the prefix.
+	 */
+	public static ThreadFactory newThreadFactory(String namePrefix) {
+		if (isVirtualThreadSupported()) {
+			try {
+				final Object builder = builderName.invoke(ofVirtual.invoke(null), namePrefix + "-", 1L);
+				return (ThreadFactory) builderFactory.invoke(builder);
+			} catch (final ReflectiveOperationException e) {
+				// fall back to platform threads
+			}
+		}
+		final AtomicLong counter = new AtomicLong();
+		return r -> {
+			final Thread t = new Thread(r, namePrefix + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Return the executor of asynchronous operations, shared by the whole library. It runs each task in a virtual
+	 * thread if the runtime supports them, or in a daemon platform thread otherwise.
+	 */
+	public static Executor getDefaultExecutor() {
+		return DefaultExecutorHolder.executor;
+	}
+
+	/**
+	 * Return the scheduler of delayed tasks, shared by the whole library. Tasks must be short, since they run in a
+	 * single thread.
+	 */
+	public static ScheduledExecutorService getScheduler() {
+		return SchedulerHolder.scheduler;
+	}
+
+	private static class DefaultExecutorHolder {
+		// threads are daemon or virtual, so the executor does not need to be shut down.
+		private static final Executor executor = newDefaultExecutor();
+
+		/**
+		 * Virtual threads are cheap, so each task has its own thread, and thread locals (e.g the deadline) do not
+		 * outlive the task. Platform threads are pooled.
+		 */
+		private static Executor newDefaultExecutor() {
+			final ThreadFactory threadFactory = newThreadFactory("fjdbc-async");
+			if (!isVirtualThreadSupported()) return Executors.newCachedThreadPool(threadFactory);
+			return task -> threadFactory.newThread(task).start();
+		}
+	}
+
+	private static class SchedulerHolder {
+		private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+				newThreadFactory("fjdbc-scheduler"));
+
+		static {
+			// cancelled tasks, e.g timeouts of operations that completed in time, are removed immediately.
+			scheduler.setRemoveOnCancelPolicy(true);
+		}
+	}
+}
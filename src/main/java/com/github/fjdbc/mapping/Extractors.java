@@ -0,0 +1,454 @@
+package com.github.fjdbc.mapping;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import com.github.fjdbc.query.SingleRowExtractor;
+
+/**
+ * Create extractors that map rows to instances of a record or class, at runtime.
+ * <p>
+ * Columns are matched to properties by name, ignoring case and underscores: column {@code USER_NAME} matches property
+ * {@code userName}. Columns without a matching property are ignored, and properties without a matching column keep
+ * their default value.
+ * <p>
+ * The mapping plan is built once per class and result set shape (the list of column labels and types), then cached.
+ * Each row is then mapped with direct {@link MethodHandle} invocations. Caches are attached to the mapped class, so
+ * that they do not prevent its class loader from being unloaded.
+ * <p>
+ * Use {@link Mapped} instead to generate extractors at compile time.
+ */
+public class Extractors {
+	private static final ClassValue<SingleRowExtractor<?>> extractors = new ClassValue<SingleRowExtractor<?>>() {
+		@Override
+		protected SingleRowExtractor<?> computeValue(Class<?> type) {
+			return new TypeExtractor<>(type);
+		}
+	};
+	/**
+	 * Plans by class, then by result set shape.
+	 */
+	private static final ClassValue<Map<List<Object>, Plan<?>>> plans = new ClassValue<Map<List<Object>, Plan<?>>>() {
+		@Override
+		protected Map<List<Object>, Plan<?>> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private static final Method isRecord = getMethod(Class.class, "isRecord");
+	private static final Method getRecordComponents = getMethod(Class.class, "getRecordComponents");
+
+	private Extractors() {
+		// utility class
+	}
+
+	private static Method getMethod(Class<?> type, String name) {
+		try {
+			return type.getMethod(name);
+		} catch (final NoSuchMethodException e) {
+			// not supported by the runtime
+			return null;
+		}
+	}
+
+	/**
+	 * Return an extractor mapping each row to an instance of the specified type.
+	 * <p>
+	 * If the type is a record, it is created using its canonical constructor. Otherwise, it must have a no-arg
+	 * constructor: properties are set using setters if they exist, or fields otherwise.
+	 * <p>
+	 * The returned extractor is thread safe.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> SingleRowExtractor<T> forType(Class<T> type) {
+		return (SingleRowExtractor<T>) extractors.get(type);
+	}
+
+	/**
+	 * Normalize a column or property name for matching: convert to lower case and remove underscores.
+	 */
+	static String normalize(String name) {
+		return name.replace("_", "").toLowerCase(Locale.ROOT);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Plan<T> getPlan(Class<T> type, ResultSetMetaData metaData) throws SQLException {
+		final int columnCount = metaData.getColumnCount();
+		final List<Object> key = new ArrayList<>(2 * columnCount);
+		for (int i = 1; i <= columnCount; i++) {
+			key.add(normalize(metaData.getColumnLabel(i)));
+		}
+		for (int i = 1; i <= columnCount; i++) {
+			key.add(metaData.getColumnType(i));
+		}
+		return (Plan<T>) plans.get(type).computeIfAbsent(key,
+				k -> createPlan(type, k.subList(0, columnCount), k.subList(columnCount, k.size())));
+	}
+
+	private static <T> Plan<T> createPlan(Class<T> type, List<Object> columns, List<Object> sqlTypes) {
+		try {
+			return isRecord(type) ? new RecordPlan<>(type, columns) : new BeanPlan<>(type, columns, sqlTypes);
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot map rows to " + type.getName(), e);
+		}
+	}
+
+	private static boolean isRecord(Class<?> type) {
+		try {
+			return isRecord != null && (Boolean) isRecord.invoke(type);
+		} catch (final ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return a function reading the specified column as an object of the specified type. {@code null} values are
+	 * read as {@code null}, or as the default value for primitive types.
+	 */
+	private static Reader getReader(int column, Class<?> type) {
+		if (type == int.class) return rs -> rs.getInt(column);
+		if (type == long.class) return rs -> rs.getLong(column);
+		if (type == double.class) return rs -> rs.getDouble(column);
+		if (type == float.class) return rs -> rs.getFloat(column);
+		if (type == short.class) return rs -> rs.getShort(column);
+		if (type == byte.class) return rs -> rs.getByte(column);
+		if (type == boolean.class) return rs -> rs.getBoolean(column);
+		if (type == Integer.class) return rs -> orNull(rs.getInt(column), rs);
+		if (type == Long.class) return rs -> orNull(rs.getLong(column), rs);
+		if (type == Double.class) return rs -> orNull(rs.getDouble(column), rs);
+		if (type == Float.class) return rs -> orNull(rs.getFloat(column), rs);
+		if (type == Short.class) return rs -> orNull(rs.getShort(column), rs);
+		if (type == Byte.class) return rs -> orNull(rs.getByte(column), rs);
+		if (type == Boolean.class) return rs -> orNull(rs.getBoolean(column), rs);
+		if (type == String.class) return rs -> rs.getString(column);
+		if (type == BigDecimal.class) return rs -> rs.getBigDecimal(column);
+		if (type == java.sql.Date.class) return rs -> rs.getDate(column);
+		if (type == java.sql.Time.class) return rs -> rs.getTime(column);
+		if (type == java.sql.Timestamp.class) return rs -> rs.getTimestamp(column);
+		if (type == byte[].class) return rs -> rs.getBytes(column);
+		return rs -> {
+			// not all drivers support getObject(int, Class).
+			final Object o = rs.getObject(column);
+			return o == null || type.isInstance(o) ? o : rs.getObject(column, type);
+		};
+	}
+
+	/**
+	 * Return the Java type naturally mapped to the specified SQL type (as defined in {@link Types}), boxed, or
+	 * {@code null} if there is none.
+	 */
+	private static Class<?> getJavaType(int sqlType) {
+		switch (sqlType) {
+		case Types.BIT:
+		case Types.BOOLEAN:
+			return Boolean.class;
+		case Types.TINYINT:
+			return Byte.class;
+		case Types.SMALLINT:
+			return Short.class;
+		case Types.INTEGER:
+			return Integer.class;
+		case Types.BIGINT:
+			return Long.class;
+		case Types.REAL:
+			return Float.class;
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return Double.class;
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+			return BigDecimal.class;
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGNVARCHAR:
+		case Types.CLOB:
+			return String.class;
+		case Types.DATE:
+			return java.sql.Date.class;
+		case Types.TIME:
+			return java.sql.Time.class;
+		case Types.TIMESTAMP:
+			return java.sql.Timestamp.class;
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			return byte[].class;
+		default:
+			return null;
+		}
+	}
+
+	private static Object orNull(Object value, ResultSet rs) throws SQLException {
+		return rs.wasNull() ? null : value;
+	}
+
+	private static RuntimeException mappingFailed(Class<?> type, Throwable e) {
+		if (e instanceof RuntimeException) return (RuntimeException) e;
+		if (e instanceof Error) throw (Error) e;
+		return new IllegalStateException("Cannot map row to " + type.getName(), e);
+	}
+
+	@FunctionalInterface
+	private static interface Reader {
+		Object read(ResultSet rs) throws SQLException;
+	}
+
+	@FunctionalInterface
+	private static interface ColumnMapper {
+		void map(ResultSet rs, Object target) throws Throwable;
+	}
+
+	private static abstract class Plan<T> {
+		abstract T map(ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Create a record using its canonical constructor.
+	 */
+	private static class RecordPlan<T> extends Plan<T> {
+		private final Class<T> type;
+		private final MethodHandle constructor;
+		private final Object[] defaultArgs;
+		private final int[] argIndexes;
+		private final Reader[] readers;
+
+		public RecordPlan(Class<T> type, List<Object> columns) throws ReflectiveOperationException {
+			this.type = type;
+			final Object[] components = (Object[]) getRecordComponents.invoke(type);
+			final Class<?>[] argTypes = new Class<?>[components.length];
+			final Map<String, Integer> argIndexByName = new HashMap<>();
+			defaultArgs = new Object[components.length];
+			for (int i = 0; i < components.length; i++) {
+				final Class<?> componentClass = components[i].getClass();
+				argTypes[i] = (Class<?>) componentClass.getMethod("getType").invoke(components[i]);
+				argIndexByName.put(normalize((String) componentClass.getMethod("getName").invoke(components[i])), i);
+				defaultArgs[i] = getDefaultValue(argTypes[i]);
+			}
+			final Constructor<T> c = type.getDeclaredConstructor(argTypes);
+			c.setAccessible(true);
+			constructor = lookup.unreflectConstructor(c).asSpreader(Object[].class, components.length)
+					.asType(MethodType.methodType(Object.class, Object[].class));
+
+			final List<Integer> _argIndexes = new ArrayList<>();
+			final List<Reader> _readers = new ArrayList<>();
+			for (int i = 0; i < columns.size(); i++) {
+				final Integer argIndex = argIndexByName.get(columns.get(i));
+				if (argIndex == null) continue;
+				_argIndexes.add(argIndex);
+				_readers.add(getReader(i + 1, argTypes[argIndex]));
+			}
+			if (_readers.isEmpty()) throw new IllegalArgumentException(
+					String.format("No column matches a component of %s: %s", type.getName(), columns));
+			argIndexes = _argIndexes.stream().mapToInt(Integer::intValue).toArray();
+			readers = _readers.toArray(new Reader[0]);
+		}
+
+		private static Object getDefaultValue(Class<?> type) {
+			if (!type.isPrimitive()) return null;
+			if (type == boolean.class) return false;
+			if (type == char.class) return '\0';
+			if (type == long.class) return 0L;
+			if (type == double.class) return 0d;
+			if (type == float.class) return 0f;
+			if (type == short.class) return (short) 0;
+			if (type == byte.class) return (byte) 0;
+			return 0;
+		}
+
+		@Override
+		T map(ResultSet rs) throws SQLException {
+			final Object[] args = defaultArgs.clone();
+			for (int i = 0; i < readers.length; i++) {
+				args[argIndexes[i]] = readers[i].read(rs);
+			}
+			try {
+				return type.cast((Object) constructor.invokeExact(args));
+			} catch (final Throwable e) {
+				throw mappingFailed(type, e);
+			}
+		}
+	}
+
+	/**
+	 * Create an object using its no-arg constructor, then set its properties using setters or fields.
+	 */
+	private static class BeanPlan<T> extends Plan<T> {
+		private final Class<T> type;
+		private final MethodHandle constructor;
+		private final ColumnMapper[] mappers;
+
+		public BeanPlan(Class<T> type, List<Object> columns, List<Object> sqlTypes)
+				throws ReflectiveOperationException {
+			this.type = type;
+			final Constructor<T> c = type.getDeclaredConstructor();
+			c.setAccessible(true);
+			constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+
+			final Map<String, List<MethodHandle>> setters = getSetters(type);
+			final List<ColumnMapper> _mappers = new ArrayList<>();
+			for (int i = 0; i < columns.size(); i++) {
+				final List<MethodHandle> candidates = setters.get(columns.get(i));
+				if (candidates == null) continue;
+				final MethodHandle setter = selectSetter(type, (String) columns.get(i), candidates,
+						(Integer) sqlTypes.get(i));
+				_mappers.add(getMapper(i + 1, setter));
+			}
+			if (_mappers.isEmpty()) throw new IllegalArgumentException(
+					String.format("No column matches a property of %s: %s", type.getName(), columns));
+			mappers = _mappers.toArray(new ColumnMapper[0]);
+		}
+
+		/**
+		 * Return the setters of the class, by normalized property name. Setter methods, including overloads, have
+		 * priority over fields.
+		 */
+		private static Map<String, List<MethodHandle>> getSetters(Class<?> type) throws IllegalAccessException {
+			final Map<String, List<MethodHandle>> res = new HashMap<>();
+			for (final Method m : type.getMethods()) {
+				if (Modifier.isStatic(m.getModifiers()) || m.isBridge() || m.getParameterCount() != 1) continue;
+				if (!m.getName().startsWith("set") || m.getName().length() == 3) continue;
+				final String name = normalize(m.getName().substring(3));
+				res.computeIfAbsent(name, k -> new ArrayList<>()).add(lookup.unreflect(m));
+			}
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (final Field f : c.getDeclaredFields()) {
+					if (Modifier.isStatic(f.getModifiers()) || Modifier.isFinal(f.getModifiers())) continue;
+					final String name = normalize(f.getName());
+					if (res.containsKey(name)) continue;
+					f.setAccessible(true);
+					final List<MethodHandle> setter = new ArrayList<>(1);
+					setter.add(lookup.unreflectSetter(f));
+					res.put(name, setter);
+				}
+			}
+			return res;
+		}
+
+		/**
+		 * Select the setter to call for a column. If the setter is overloaded, select the overload accepting the Java
+		 * type naturally mapped to the SQL type of the column.
+		 * @throws IllegalArgumentException if no overload, or several overloads, accept that type.
+		 */
+		private static MethodHandle selectSetter(Class<?> type, String column, List<MethodHandle> candidates,
+				int sqlType) {
+			if (candidates.size() == 1) return candidates.get(0);
+			final Class<?> javaType = getJavaType(sqlType);
+			final List<MethodHandle> matches = candidates.stream()
+					.filter(h -> h.type().wrap().parameterType(1) == javaType).collect(Collectors.toList());
+			if (matches.size() == 1) return matches.get(0);
+			throw new IllegalArgumentException(String.format(
+					"Ambiguous setters of %s for column %s of SQL type %d: %s", type.getName(), column, sqlType,
+					candidates.stream().map(h -> h.type().parameterType(1).getName()).collect(Collectors.toList())));
+		}
+
+		/**
+		 * Return a mapper calling the setter with the value of the column. Common primitive types are not boxed.
+		 * <p>
+		 * Lambdas use a block body, so that {@code invokeExact} is typed as returning {@code void}.
+		 */
+		private static ColumnMapper getMapper(int column, MethodHandle setter) {
+			final Class<?> type = setter.type().parameterType(1);
+			if (type == int.class) {
+				final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, int.class));
+				return (rs, target) -> {
+					h.invokeExact(target, rs.getInt(column));
+				};
+			}
+			if (type == long.class) {
+				final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, long.class));
+				return (rs, target) -> {
+					h.invokeExact(target, rs.getLong(column));
+				};
+			}
+			if (type == double.class) {
+				final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, double.class));
+				return (rs, target) -> {
+					h.invokeExact(target, rs.getDouble(column));
+				};
+			}
+			if (type == boolean.class) {
+				final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+				return (rs, target) -> {
+					h.invokeExact(target, rs.getBoolean(column));
+				};
+			}
+			final Reader reader = getReader(column, type);
+			final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			return (rs, target) -> {
+				h.invokeExact(target, reader.read(rs));
+			};
+		}
+
+		@Override
+		T map(ResultSet rs) throws SQLException {
+			try {
+				final Object res = (Object) constructor.invokeExact();
+				for (final ColumnMapper mapper : mappers) {
+					mapper.map(rs, res);
+				}
+				return type.cast(res);
+			} catch (final SQLException e) {
+				throw e;
+			} catch (final Throwable e) {
+				throw mappingFailed(type, e);
+			}
+		}
+	}
+
+	/**
+	 * Map rows using the plan matching the shape of the current {@link ResultSet}.
+	 */
+	private static class TypeExtractor<T> implements SingleRowExtractor<T> {
+		private final Class<T> type;
+		/**
+		 * The plan of the last ResultSet, so that the metadata is only read once per ResultSet.
+		 */
+		private volatile PlanHolder<T> last;
+
+		public TypeExtractor(Class<T> type) {
+			this.type = type;
+		}
+
+		@Override
+		public T extract(ResultSet rs) throws SQLException {
+			PlanHolder<T> holder = last;
+			if (holder == null || holder.rs.get() != rs) {
+				holder = new PlanHolder<>(rs, getPlan(type, rs.getMetaData()));
+				last = holder;
+			}
+			return holder.plan.map(rs);
+		}
+	}
+
+	private static class PlanHolder<T> {
+		private final WeakReference<ResultSet> rs;
+		private final Plan<T> plan;
+
+		public PlanHolder(ResultSet rs, Plan<T> plan) {
+			this.rs = new WeakReference<>(rs);
+			this.plan = plan;
+		}
+	}
+}
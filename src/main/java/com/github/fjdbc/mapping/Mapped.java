@@ -0,0 +1,30 @@
+package com.github.fjdbc.mapping;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generate a mapping class for the annotated record or class, at compile time.
+ * <p>
+ * For a type {@code User}, the class {@code UserMapping} is generated in the same package, with the following
+ * methods:
+ * <ul>
+ * <li>{@code extractor()}: a {@link com.github.fjdbc.query.SingleRowExtractor} that reads column {@code i} of the
+ * {@link java.sql.ResultSet} into the {@code i}-th property of {@code User}.
+ * <li>{@code binder(User)}: a {@link com.github.fjdbc.PreparedStatementBinder} that binds the properties of a
+ * {@code User}, in order.
+ * </ul>
+ * The properties are the components of a record, or the non-static, non-transient fields of a class, in declaration
+ * order. A class must have either a constructor taking all properties in order, or a no-arg constructor and a
+ * non-private field or setter for each property. It must also have a non-private field or getter for each property.
+ * <p>
+ * The generated code uses typed getters and setters, such as {@link java.sql.ResultSet#getInt(int)}. Columns are
+ * accessed by index, so the order of the columns must match the order of the properties.
+ * @see MappingProcessor
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Mapped {
+}
@@ -0,0 +1,332 @@
+package com.github.fjdbc.mapping;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Generate the mapping classes of the types annotated with {@link Mapped}.
+ * <p>
+ * The processor is registered in {@code META-INF/services}, so it runs whenever the library is in the compile
+ * classpath.
+ */
+public class MappingProcessor extends AbstractProcessor {
+	/**
+	 * The {@link java.sql.ResultSet} getter and {@link java.sql.PreparedStatement} setter suffix, and the
+	 * {@link java.sql.Types} constant, of each supported type. Other types use {@code getObject}/{@code setObject}.
+	 */
+	private static final Map<String, String[]> accessors = new HashMap<>();
+
+	static {
+		accessors.put("int", new String[] { "Int", "INTEGER" });
+		accessors.put("long", new String[] { "Long", "BIGINT" });
+		accessors.put("double", new String[] { "Double", "DOUBLE" });
+		accessors.put("float", new String[] { "Float", "REAL" });
+		accessors.put("short", new String[] { "Short", "SMALLINT" });
+		accessors.put("byte", new String[] { "Byte", "TINYINT" });
+		accessors.put("boolean", new String[] { "Boolean", "BOOLEAN" });
+		accessors.put("java.lang.Integer", accessors.get("int"));
+		accessors.put("java.lang.Long", accessors.get("long"));
+		accessors.put("java.lang.Double", accessors.get("double"));
+		accessors.put("java.lang.Float", accessors.get("float"));
+		accessors.put("java.lang.Short", accessors.get("short"));
+		accessors.put("java.lang.Byte", accessors.get("byte"));
+		accessors.put("java.lang.Boolean", accessors.get("boolean"));
+		accessors.put("java.lang.String", new String[] { "String", "VARCHAR" });
+		accessors.put("java.math.BigDecimal", new String[] { "BigDecimal", "DECIMAL" });
+		accessors.put("java.sql.Date", new String[] { "Date", "DATE" });
+		accessors.put("java.sql.Time", new String[] { "Time", "TIME" });
+		accessors.put("java.sql.Timestamp", new String[] { "Timestamp", "TIMESTAMP" });
+		accessors.put("byte[]", new String[] { "Bytes", "VARBINARY" });
+	}
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return Collections.singleton(Mapped.class.getName());
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (final Element e : roundEnv.getElementsAnnotatedWith(Mapped.class)) {
+			if (!(e instanceof TypeElement)) continue;
+			final TypeElement type = (TypeElement) e;
+			try {
+				generate(type);
+			} catch (final MappingException ex) {
+				processingEnv.getMessager().printMessage(Kind.ERROR, ex.getMessage(), ex.element);
+			} catch (final IOException ex) {
+				processingEnv.getMessager().printMessage(Kind.ERROR, "Cannot write mapping: " + ex, type);
+			}
+		}
+		return true;
+	}
+
+	private void generate(TypeElement type) throws IOException {
+		final boolean isRecord = type.getKind().name().equals("RECORD");
+		if (type.getKind() != ElementKind.CLASS && !isRecord) {
+			throw new MappingException("@Mapped types must be classes or records", type);
+		}
+		if (type.getModifiers().contains(Modifier.PRIVATE) || type.getModifiers().contains(Modifier.ABSTRACT)) {
+			throw new MappingException("@Mapped types must not be private or abstract", type);
+		}
+		if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC) && !isRecord) {
+			throw new MappingException("Nested @Mapped classes must be static", type);
+		}
+		final List<Property> properties = getProperties(type, isRecord);
+		final boolean allArgsConstructor = isRecord || hasAllArgsConstructor(type, properties);
+		if (!allArgsConstructor && !hasNoArgConstructor(type)) {
+			throw new MappingException("@Mapped classes must have a constructor taking all fields in declaration "
+					+ "order, or a no-arg constructor", type);
+		}
+
+		final String packageName = getPackage(type).getQualifiedName().toString();
+		final String typeName = getNameInPackage(type);
+		final String mappingName = typeName.replace('.', '_') + "Mapping";
+		final String qualifiedMappingName = packageName.isEmpty() ? mappingName : packageName + "." + mappingName;
+
+		final StringBuilder src = new StringBuilder();
+		if (!packageName.isEmpty()) src.append("package ").append(packageName).append(";\n\n");
+		src.append("import java.sql.ResultSet;\n");
+		src.append("import java.sql.SQLException;\n");
+		src.append("import java.sql.Types;\n\n");
+		src.append("import com.github.fjdbc.PreparedStatementBinder;\n");
+		src.append("import com.github.fjdbc.query.SingleRowExtractor;\n\n");
+		src.append("/**\n * Generated by {@link ").append(MappingProcessor.class.getName()).append("}.\n */\n");
+		src.append("public final class ").append(mappingName).append(" {\n");
+		src.append("\tprivate static final SingleRowExtractor<").append(typeName).append("> extractor = ")
+				.append(mappingName).append("::extract;\n\n");
+		src.append("\tprivate ").append(mappingName).append("() {\n\t}\n\n");
+
+		// extractor
+		src.append("\t/**\n\t * Extract a {@link ").append(typeName)
+				.append("} from the current row, reading properties by column index.\n\t */\n");
+		src.append("\tpublic static SingleRowExtractor<").append(typeName).append("> extractor() {\n");
+		src.append("\t\treturn extractor;\n\t}\n\n");
+		src.append("\tprivate static ").append(typeName).append(" extract(ResultSet rs) throws SQLException {\n");
+		for (int i = 0; i < properties.size(); i++) {
+			final Property p = properties.get(i);
+			src.append("\t\tfinal ").append(p.typeName).append(" _").append(p.name).append(" = ")
+					.append(getter(p, i + 1)).append(";\n");
+		}
+		if (allArgsConstructor) {
+			src.append("\t\treturn new ").append(typeName).append("(");
+			for (int i = 0; i < properties.size(); i++) {
+				if (i > 0) src.append(", ");
+				src.append("_").append(properties.get(i).name);
+			}
+			src.append(");\n");
+		} else {
+			src.append("\t\tfinal ").append(typeName).append(" res = new ").append(typeName).append("();\n");
+			for (final Property p : properties) {
+				src.append("\t\t").append(p.writer("res", "_" + p.name)).append(";\n");
+			}
+			src.append("\t\treturn res;\n");
+		}
+		src.append("\t}\n\n");
+
+		// binder
+		src.append("\t/**\n\t * Bind the properties of a {@link ").append(typeName).append("}, in order.\n\t */\n");
+		src.append("\tpublic static PreparedStatementBinder binder(").append(typeName).append(" o) {\n");
+		src.append("\t\treturn (ps, seq) -> {\n");
+		for (final Property p : properties) {
+			final String value = p.reader("o");
+			final String[] accessor = accessors.get(p.typeName);
+			if (accessor == null) {
+				src.append("\t\t\tps.setObject(seq.next(), ").append(value).append(");\n");
+			} else if (isBoxed(p.type)) {
+				src.append("\t\t\tif (").append(value).append(" == null) {\n");
+				src.append("\t\t\t\tps.setNull(seq.next(), Types.").append(accessor[1]).append(");\n");
+				src.append("\t\t\t} else {\n");
+				src.append("\t\t\t\tps.set").append(accessor[0]).append("(seq.next(), ").append(value).append(");\n");
+				src.append("\t\t\t}\n");
+			} else {
+				src.append("\t\t\tps.set").append(accessor[0]).append("(seq.next(), ").append(value).append(");\n");
+			}
+		}
+		src.append("\t\t};\n\t}\n\n");
+
+		src.append("\tprivate static <T> T orNull(T value, ResultSet rs) throws SQLException {\n");
+		src.append("\t\treturn rs.wasNull() ? null : value;\n\t}\n");
+		src.append("}\n");
+
+		try (Writer w = processingEnv.getFiler().createSourceFile(qualifiedMappingName, type).openWriter()) {
+			w.write(src.toString());
+		}
+	}
+
+	private String getter(Property p, int column) {
+		final String[] accessor = accessors.get(p.typeName);
+		if (accessor == null) {
+			final String erasure = processingEnv.getTypeUtils().erasure(p.type).toString();
+			return String.format("rs.getObject(%s, %s.class)", column, erasure);
+		}
+		final String get = String.format("rs.get%s(%s)", accessor[0], column);
+		return isBoxed(p.type) ? String.format("orNull(%s, rs)", get) : get;
+	}
+
+	private boolean isBoxed(TypeMirror type) {
+		return !type.getKind().isPrimitive() && accessors.containsKey(type.toString())
+				&& type.toString().startsWith("java.lang.") && !type.toString().equals("java.lang.String");
+	}
+
+	private List<Property> getProperties(TypeElement type, boolean isRecord) {
+		final List<Property> res = new ArrayList<>();
+		for (final Element e : type.getEnclosedElements()) {
+			if (isRecord ? !e.getKind().name().equals("RECORD_COMPONENT") : e.getKind() != ElementKind.FIELD) continue;
+			if (e.getModifiers().contains(Modifier.STATIC) || e.getModifiers().contains(Modifier.TRANSIENT)) continue;
+			final String name = e.getSimpleName().toString();
+			final Property p = new Property(name, e.asType());
+			if (isRecord) {
+				p.readExpression = name + "()";
+			} else {
+				p.readExpression = findReader(type, (VariableElement) e);
+				p.writeMethod = findWriter(type, (VariableElement) e);
+			}
+			res.add(p);
+		}
+		if (res.isEmpty()) throw new MappingException("@Mapped types must have at least one property", type);
+		return res;
+	}
+
+	private String findReader(TypeElement type, VariableElement field) {
+		final String name = field.getSimpleName().toString();
+		final String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		for (final ExecutableElement m : ElementFilter.methodsIn(type.getEnclosedElements())) {
+			final String methodName = m.getSimpleName().toString();
+			if ((methodName.equals("get" + capitalized) || methodName.equals("is" + capitalized))
+					&& m.getParameters().isEmpty() && !m.getModifiers().contains(Modifier.PRIVATE)) {
+				return methodName + "()";
+			}
+		}
+		if (!field.getModifiers().contains(Modifier.PRIVATE)) return name;
+		throw new MappingException("No getter or non-private field for property " + name, field);
+	}
+
+	/**
+	 * Return the name of the setter of the field, or {@code null} if the field is assigned directly.
+	 */
+	private String findWriter(TypeElement type, VariableElement field) {
+		final String name = field.getSimpleName().toString();
+		final String setter = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		for (final ExecutableElement m : ElementFilter.methodsIn(type.getEnclosedElements())) {
+			if (m.getSimpleName().toString().equals(setter) && m.getParameters().size() == 1
+					&& !m.getModifiers().contains(Modifier.PRIVATE)) {
+				return setter;
+			}
+		}
+		return null;
+	}
+
+	private boolean hasAllArgsConstructor(TypeElement type, List<Property> properties) {
+		for (final ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (c.getModifiers().contains(Modifier.PRIVATE) || c.getParameters().size() != properties.size()) continue;
+			boolean matches = true;
+			for (int i = 0; i < properties.size(); i++) {
+				matches &= processingEnv.getTypeUtils().isSameType(c.getParameters().get(i).asType(),
+						properties.get(i).type);
+			}
+			if (matches) return true;
+		}
+		return false;
+	}
+
+	private boolean hasNoArgConstructor(TypeElement type) {
+		for (final ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (!c.getModifiers().contains(Modifier.PRIVATE) && c.getParameters().isEmpty()) {
+				return isAssignable(type);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check that all fields can be assigned, when the no-arg constructor is used.
+	 */
+	private boolean isAssignable(TypeElement type) {
+		for (final VariableElement f : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			if (f.getModifiers().contains(Modifier.STATIC) || f.getModifiers().contains(Modifier.TRANSIENT)) continue;
+			if (f.getModifiers().contains(Modifier.FINAL)
+					|| findWriter(type, f) == null && f.getModifiers().contains(Modifier.PRIVATE)) {
+				throw new MappingException("No setter or non-private, non-final field for property "
+						+ f.getSimpleName(), f);
+			}
+		}
+		return true;
+	}
+
+	private static PackageElement getPackage(Element e) {
+		Element res = e;
+		while (!(res instanceof PackageElement)) {
+			res = res.getEnclosingElement();
+		}
+		return (PackageElement) res;
+	}
+
+	/**
+	 * Return the name of the type relative to its package, e.g {@code Outer.Inner}.
+	 */
+	private static String getNameInPackage(TypeElement type) {
+		final Element enclosing = type.getEnclosingElement();
+		if (enclosing instanceof TypeElement) {
+			return getNameInPackage((TypeElement) enclosing) + "." + type.getSimpleName();
+		}
+		return type.getSimpleName().toString();
+	}
+
+	private static class Property {
+		private final String name;
+		private final TypeMirror type;
+		private final String typeName;
+		private String readExpression;
+		private String writeMethod;
+
+		public Property(String name, TypeMirror type) {
+			this.name = name;
+			this.type = type;
+			this.typeName = type.toString();
+		}
+
+		public String reader(String instance) {
+			return instance + "." + readExpression;
+		}
+
+		public String writer(String instance, String value) {
+			if (writeMethod != null) return String.format("%s.%s(%s)", instance, writeMethod, value);
+			return String.format("%s.%s = %s", instance, name, value);
+		}
+	}
+
+	private static class MappingException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private final transient Element element;
+
+		public MappingException(String message, Element element) {
+			super(message);
+			this.element = element;
+		}
+	}
+}
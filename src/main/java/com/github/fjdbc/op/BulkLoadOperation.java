@@ -0,0 +1,218 @@
+package com.github.fjdbc.op;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.SQLConsumer;
+import com.github.fjdbc.internal.FileRowReader;
+import com.github.fjdbc.internal.QueryCacheInvalidator;
+import com.github.fjdbc.internal.StatementFuture;
+import com.github.fjdbc.query.ExportFormat;
+
+/**
+ * Load the rows of a file into the database, using a batched prepared statement, typically an INSERT statement. The
+ * value of column {@code i} of the file is bound to parameter {@code i} of the statement.
+ * <p>
+ * The file is streamed: rows are bound as they are parsed, and only the current row is held in memory. The file may
+ * be written by {@link com.github.fjdbc.query.Query#exportTo(Path, ExportFormat)}.
+ * <p>
+ * The batch is executed every {@code executeEveryNRow} rows. If {@code commitEveryNRow} is positive, the transaction
+ * is committed every {@code commitEveryNRow} rows, even by {@link #execute(Connection)}: the operation is then not
+ * atomic, and should not be part of a larger transaction.
+ */
+public class BulkLoadOperation implements StatementOperation {
+	private final ConnectionProvider cnxProvider;
+	private final String sql;
+	private final Path file;
+	private final ExportFormat format;
+	private final long executeEveryNRow;
+	private final long commitEveryNRow;
+	private boolean compressed = false;
+	private boolean header = true;
+	private int[] parameterTypes;
+	private LongConsumer progressListener;
+	private final List<SQLConsumer<Statement>> beforeExecutionConsumers = new ArrayList<>(2);
+	private final List<SQLConsumer<Statement>> afterExecutionConsumers = new ArrayList<>(2);
+
+	/**
+	 * @param cnxProvider
+	 *        The provider of {@link Connection} instances.
+	 * @param sql
+	 *        The SQL statement, with one parameter per column of the file.
+	 * @param executeEveryNRow
+	 *        The number of rows of each batch.
+	 * @param commitEveryNRow
+	 *        The number of rows between two commits, or {@code 0} to commit only once all rows are loaded.
+	 */
+	public BulkLoadOperation(ConnectionProvider cnxProvider, String sql, Path file, ExportFormat format,
+			long executeEveryNRow, long commitEveryNRow) {
+		assert cnxProvider != null;
+		assert sql != null;
+		assert file != null;
+		assert format != null;
+		assert executeEveryNRow > 0;
+		assert commitEveryNRow >= 0;
+		this.cnxProvider = cnxProvider;
+		this.sql = sql;
+		this.file = file;
+		this.format = format;
+		this.executeEveryNRow = executeEveryNRow;
+		this.commitEveryNRow = commitEveryNRow;
+	}
+
+	/**
+	 * If {@code true}, the file is decompressed using gzip. The default is {@code false}.
+	 */
+	public BulkLoadOperation setCompressed(boolean compressed) {
+		this.compressed = compressed;
+		return this;
+	}
+
+	/**
+	 * If {@code true}, the first line of a CSV or TSV file contains the column labels, and is skipped. The default is
+	 * {@code true}.
+	 */
+	public BulkLoadOperation setHeader(boolean header) {
+		this.header = header;
+		return this;
+	}
+
+	/**
+	 * Set the SQL types of the parameters (see {@link java.sql.Types}). By default, the types are read from the
+	 * {@link ParameterMetaData}, if the driver supports it.
+	 * <p>
+	 * In CSV and TSV files, values of integer parameters are parsed without creating a {@link String}, values of
+	 * floating-point parameters are bound as doubles, and other values are bound as strings.
+	 */
+	public BulkLoadOperation setParameterTypes(int... parameterTypes) {
+		this.parameterTypes = parameterTypes.clone();
+		return this;
+	}
+
+	/**
+	 * Set a listener called after each batch execution, with the total number of rows loaded.
+	 */
+	public BulkLoadOperation setProgressListener(LongConsumer progressListener) {
+		this.progressListener = progressListener;
+		return this;
+	}
+
+	@Override
+	public StatementOperation doBeforeExecution(SQLConsumer<Statement> statementConsumer) {
+		beforeExecutionConsumers.add(statementConsumer);
+		return this;
+	}
+
+	@Override
+	public StatementOperation doAfterExecution(SQLConsumer<Statement> statementConsumer) {
+		afterExecutionConsumers.add(statementConsumer);
+		return this;
+	}
+
+	@Override
+	public int execute(Connection cnx) throws SQLException {
+		assert cnx != null;
+		try (ReadableByteChannel channel = openFile(); PreparedStatement ps = cnx.prepareStatement(sql)) {
+			StatementFuture.statementCreated(ps);
+			try {
+				final FileRowReader reader = FileRowReader.create(channel, format, header, getParameterTypes(ps));
+				for (final SQLConsumer<Statement> c : beforeExecutionConsumers) {
+					c.accept(ps);
+				}
+				long rows = 0;
+				long batchRows = 0;
+				int modifiedRows = 0;
+				while (reader.next(ps)) {
+					ps.addBatch();
+					rows++;
+					batchRows++;
+					if (batchRows == executeEveryNRow || commitEveryNRow > 0 && rows % commitEveryNRow == 0) {
+						modifiedRows += executeBatch(cnx, ps, rows);
+						batchRows = 0;
+					}
+					if (commitEveryNRow > 0 && rows % commitEveryNRow == 0) cnxProvider.commit(cnx);
+				}
+				if (batchRows > 0) modifiedRows += executeBatch(cnx, ps, rows);
+				return modifiedRows;
+			} finally {
+				StatementFuture.statementClosing(ps);
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException("Error reading " + file, e);
+		}
+	}
+
+	private ReadableByteChannel openFile() throws IOException {
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		if (!compressed) return channel;
+		return Channels.newChannel(new GZIPInputStream(Channels.newInputStream(channel), 1 << 16));
+	}
+
+	private int[] getParameterTypes(PreparedStatement ps) {
+		if (parameterTypes != null) return parameterTypes;
+		try {
+			final ParameterMetaData meta = ps.getParameterMetaData();
+			final int[] res = new int[meta.getParameterCount()];
+			for (int i = 0; i < res.length; i++) {
+				res[i] = meta.getParameterType(i + 1);
+			}
+			return res;
+		} catch (final SQLException e) {
+			// not supported by the driver.
+			return new int[0];
+		}
+	}
+
+	/**
+	 * @param rows
+	 *        The total number of rows loaded.
+	 */
+	private int executeBatch(Connection cnx, PreparedStatement ps, long rows) throws SQLException {
+		StatementFuture.checkCancelled();
+		int modifiedRows = 0;
+		for (final int r : ps.executeBatch()) {
+			// SUCCESS_NO_INFO: one row per statement.
+			modifiedRows += r == Statement.SUCCESS_NO_INFO ? 1 : Math.max(r, 0);
+		}
+		for (final SQLConsumer<Statement> c : afterExecutionConsumers) {
+			QueryCacheInvalidator.afterExecution(c, ps, cnx);
+		}
+		if (progressListener != null) progressListener.accept(rows);
+		return modifiedRows;
+	}
+
+	@Override
+	public int executeAndCommit() {
+		Connection cnx = null;
+		boolean committed = false;
+		try {
+			cnx = cnxProvider.borrow();
+			final int modifiedRows = execute(cnx);
+			cnxProvider.commit(cnx);
+			committed = true;
+			return modifiedRows;
+		} catch (final SQLException e) {
+			throw new RuntimeSQLException("Error loading " + file + " using the SQL statement: " + sql, e);
+		} finally {
+			// a roll back after the commit would cost a round trip.
+			if (!committed) cnxProvider.rollback(cnx);
+			cnxProvider.giveBack(cnx);
+		}
+	}
+}
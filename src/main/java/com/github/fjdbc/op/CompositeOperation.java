@@ -6,6 +6,7 @@ import java.util.Collection;
 
 import com.github.fjdbc.ConnectionProvider;
 import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.StatementFuture;
 
 /**
  * Merge a sequence of {@link DbOperation} as a single {@link DbOperation}.
@@ -36,16 +37,18 @@ public class CompositeOperation implements DbOperation {
 		if (operations.length == 0) return 0;
 
 		Connection cnx = null;
+		boolean committed = false;
 		try {
 			cnx = cnxProvider.borrow();
 			final int modifiedRows = execute(cnx);
 			cnxProvider.commit(cnx);
+			committed = true;
 			return modifiedRows;
 		} catch (final SQLException e) {
 			throw new RuntimeSQLException(e);
 		} finally {
-			// if the connection was already committed, roll back should be a no op.
-			cnxProvider.rollback(cnx);
+			// a roll back after the commit would cost a round trip.
+			if (!committed) cnxProvider.rollback(cnx);
 			cnxProvider.giveBack(cnx);
 		}
 	}
@@ -55,6 +58,7 @@ public class CompositeOperation implements DbOperation {
 		int modifiedRows = 0;
 		for (int i = 0; i < operations.length; i++) {
 			final DbOperation t = operations[i];
+			StatementFuture.checkCancelled();
 			try {
 				modifiedRows += t.execute(cnx);
 			} catch (final SQLException e) {
@@ -2,9 +2,13 @@ package com.github.fjdbc.op;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import com.github.fjdbc.ConnectionProvider;
 import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.StatementFuture;
+import com.github.fjdbc.internal.Threads;
 
 /**
  * Represent a database operation that modifies rows: insert, update, delete, etc. It can be made of a single
@@ -32,4 +36,25 @@ public interface DbOperation {
 	 *         if a {@link SQLException} occurs.
 	 */
 	int executeAndCommit();
+
+	/**
+	 * Execute {@link #executeAndCommit()} asynchronously.
+	 * <p>
+	 * The operation is executed by the default executor, which uses virtual threads if the runtime supports them.
+	 * @see #executeAndCommitAsync(Executor)
+	 */
+	default CompletableFuture<Integer> executeAndCommitAsync() {
+		return executeAndCommitAsync(Threads.getDefaultExecutor());
+	}
+
+	/**
+	 * Execute {@link #executeAndCommit()} asynchronously, using the specified executor.
+	 * <p>
+	 * Cancelling the returned future cancels the statements being executed, see
+	 * {@link java.sql.Statement#cancel()}. The transaction is then rolled back, and the connection is given back.
+	 * @return The number of modified rows.
+	 */
+	default CompletableFuture<Integer> executeAndCommitAsync(Executor executor) {
+		return StatementFuture.supplyAsync(this::executeAndCommit, executor);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,313 @@
+package com.github.fjdbc.query;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.github.fjdbc.RuntimeSQLException;
+
+/**
+ * A fixed-size block of rows from a {@link ResultSet}, stored column by column in primitive arrays.
+ * <p>
+ * Column and row indexes start at 0. Each column is stored according to its {@link ColumnType}:
+ * <ul>
+ * <li>{@link ColumnType#INT}: see {@link #getInts(int)}.
+ * <li>{@link ColumnType#LONG}: see {@link #getLongs(int)}.
+ * <li>{@link ColumnType#DOUBLE}: see {@link #getDoubles(int)}.
+ * <li>{@link ColumnType#STRING}: dictionary-encoded, see {@link #getCodes(int)} and {@link #getDictionary(int)}.
+ * </ul>
+ * The arrays may be longer than the number of rows: only the first {@link #getRowCount()} elements are valid.
+ * <p>
+ * Null values are stored as {@code 0} in the arrays, see {@link #isNull(int, int)}.
+ */
+public class ColumnChunk {
+	/**
+	 * The storage type of a column.
+	 */
+	public enum ColumnType {
+		INT, LONG, DOUBLE, STRING
+	}
+
+	private final String[] names;
+	private final ColumnType[] types;
+	private final Object[] values;
+	private final long[][] nulls;
+	private final Dictionary[] dictionaries;
+	private final int capacity;
+	private int rowCount = 0;
+
+	private ColumnChunk(String[] names, ColumnType[] types, int capacity) {
+		this.names = names;
+		this.types = types;
+		this.capacity = capacity;
+		this.values = new Object[types.length];
+		this.nulls = new long[types.length][(capacity + 63) / 64];
+		this.dictionaries = new Dictionary[types.length];
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == ColumnType.STRING) dictionaries[i] = new Dictionary();
+			switch (types[i]) {
+			case INT:
+				values[i] = new int[capacity];
+				break;
+			case LONG:
+				values[i] = new long[capacity];
+				break;
+			case DOUBLE:
+				values[i] = new double[capacity];
+				break;
+			case STRING:
+				values[i] = new int[capacity];
+				break;
+			default:
+				throw new AssertionError();
+			}
+		}
+	}
+
+	/**
+	 * Create an empty chunk with the same columns as this chunk.
+	 */
+	ColumnChunk newChunk() {
+		return new ColumnChunk(names, types, capacity);
+	}
+
+	/**
+	 * Create an empty chunk, with columns matching the specified {@link ResultSet}.
+	 */
+	static ColumnChunk create(ResultSetMetaData metaData, int capacity) throws SQLException {
+		final int nColumns = metaData.getColumnCount();
+		final String[] names = new String[nColumns];
+		final ColumnType[] types = new ColumnType[nColumns];
+		for (int i = 0; i < nColumns; i++) {
+			names[i] = metaData.getColumnLabel(i + 1);
+			types[i] = getColumnType(metaData, i + 1);
+		}
+		return new ColumnChunk(names, types, capacity);
+	}
+
+	private static ColumnType getColumnType(ResultSetMetaData metaData, int column) throws SQLException {
+		switch (metaData.getColumnType(column)) {
+		case Types.BIT:
+		case Types.BOOLEAN:
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+			return ColumnType.INT;
+		case Types.BIGINT:
+			return ColumnType.LONG;
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+			final int precision = metaData.getPrecision(column);
+			if (metaData.getScale(column) != 0 || precision <= 0 || precision > 18) return ColumnType.DOUBLE;
+			return precision <= 9 ? ColumnType.INT : ColumnType.LONG;
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return ColumnType.DOUBLE;
+		default:
+			return ColumnType.STRING;
+		}
+	}
+
+	/**
+	 * Fill the chunk with the next rows of the {@link ResultSet}.
+	 * @return {@code true} if the chunk is full, i.e if there may be more rows to read.
+	 */
+	boolean fill(ResultSet rs) throws SQLException {
+		for (final long[] n : nulls) {
+			Arrays.fill(n, 0);
+		}
+		for (final Dictionary d : dictionaries) {
+			if (d != null) d.clear();
+		}
+		int row = 0;
+		while (row < capacity && rs.next()) {
+			for (int i = 0; i < types.length; i++) {
+				readValue(rs, i, row);
+			}
+			row++;
+		}
+		rowCount = row;
+		return row == capacity;
+	}
+
+	private void readValue(ResultSet rs, int column, int row) throws SQLException {
+		final int rsColumn = column + 1;
+		switch (types[column]) {
+		case INT:
+			((int[]) values[column])[row] = rs.getInt(rsColumn);
+			break;
+		case LONG:
+			((long[]) values[column])[row] = rs.getLong(rsColumn);
+			break;
+		case DOUBLE:
+			((double[]) values[column])[row] = rs.getDouble(rsColumn);
+			break;
+		case STRING:
+			final String s = rs.getString(rsColumn);
+			((int[]) values[column])[row] = s == null ? 0 : dictionaries[column].encode(s);
+			break;
+		default:
+			throw new AssertionError();
+		}
+		if (rs.wasNull()) nulls[column][row >>> 6] |= 1L << (row & 63);
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * The maximum number of rows in the chunk.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getColumnCount() {
+		return types.length;
+	}
+
+	/**
+	 * The column label, as returned by {@link ResultSetMetaData#getColumnLabel(int)}.
+	 */
+	public String getColumnName(int column) {
+		return names[column];
+	}
+
+	public ColumnType getColumnType(int column) {
+		return types[column];
+	}
+
+	public boolean isNull(int column, int row) {
+		return (nulls[column][row >>> 6] & (1L << (row & 63))) != 0;
+	}
+
+	/**
+	 * The values of a column of type {@link ColumnType#INT}.
+	 */
+	public int[] getInts(int column) {
+		checkType(column, ColumnType.INT);
+		return (int[]) values[column];
+	}
+
+	/**
+	 * The values of a column of type {@link ColumnType#LONG}.
+	 */
+	public long[] getLongs(int column) {
+		checkType(column, ColumnType.LONG);
+		return (long[]) values[column];
+	}
+
+	/**
+	 * The values of a column of type {@link ColumnType#DOUBLE}.
+	 */
+	public double[] getDoubles(int column) {
+		checkType(column, ColumnType.DOUBLE);
+		return (double[]) values[column];
+	}
+
+	/**
+	 * The dictionary codes of a column of type {@link ColumnType#STRING}. Each code is an index in the list returned
+	 * by {@link #getDictionary(int)}.
+	 */
+	public int[] getCodes(int column) {
+		checkType(column, ColumnType.STRING);
+		return (int[]) values[column];
+	}
+
+	/**
+	 * The dictionary of a column of type {@link ColumnType#STRING}.
+	 * <p>
+	 * The dictionary is local to the chunk, and only contains the values of its rows: the same string may have
+	 * different codes in different chunks, or in the same chunk once refilled.
+	 */
+	public List<String> getDictionary(int column) {
+		checkType(column, ColumnType.STRING);
+		return Collections.unmodifiableList(dictionaries[column].values);
+	}
+
+	/**
+	 * The value of a column of type {@link ColumnType#STRING}, or {@code null}.
+	 */
+	public String getString(int column, int row) {
+		if (isNull(column, row)) return null;
+		return dictionaries[column].values.get(getCodes(column)[row]);
+	}
+
+	private void checkType(int column, ColumnType expected) {
+		if (types[column] != expected) throw new IllegalArgumentException(
+				String.format("Column %s (%s) is of type %s, not %s", column, names[column], types[column], expected));
+	}
+
+	/**
+	 * An iterator over the chunks of a {@link ResultSet}. Each chunk is a new instance. The ResultSet is closed when
+	 * the last chunk is read, or if reading fails.
+	 */
+	static class ChunkIterator implements Iterator<ColumnChunk> {
+		private final ResultSet rs;
+		private final int chunkSize;
+		private ColumnChunk template;
+		private ColumnChunk nextValue;
+		private boolean endReached = false;
+
+		public ChunkIterator(ResultSet rs, int chunkSize) {
+			this.rs = rs;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (nextValue != null) return true;
+			if (endReached) return false;
+			try {
+				final ColumnChunk chunk = template == null ? create(rs.getMetaData(), chunkSize) : template.newChunk();
+				template = chunk;
+				endReached = !chunk.fill(rs);
+				if (chunk.getRowCount() > 0) nextValue = chunk;
+				if (endReached) Query.close(rs);
+			} catch (final SQLException e) {
+				endReached = true;
+				Query.close(rs);
+				throw new RuntimeSQLException(e);
+			}
+			return nextValue != null;
+		}
+
+		@Override
+		public ColumnChunk next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			final ColumnChunk res = nextValue;
+			nextValue = null;
+			return res;
+		}
+	}
+
+	private static class Dictionary {
+		private final Map<String, Integer> codes = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		public int encode(String s) {
+			final Integer code = codes.get(s);
+			if (code != null) return code;
+			final int newCode = values.size();
+			codes.put(s, newCode);
+			values.add(s);
+			return newCode;
+		}
+
+		public void clear() {
+			codes.clear();
+			values.clear();
+		}
+	}
+}
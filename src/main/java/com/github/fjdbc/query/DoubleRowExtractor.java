@@ -0,0 +1,76 @@
+package com.github.fjdbc.query;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import com.github.fjdbc.Deadline;
+import com.github.fjdbc.RuntimeSQLException;
+
+/**
+ * Extract a {@code double} from each row of a ResultSet, without boxing.
+ * <p>
+ * {@link ResultSet#next()} is called automatically before each call to {@link #extract(ResultSet)}.
+ */
+@FunctionalInterface
+public interface DoubleRowExtractor {
+	double extract(ResultSet rs) throws SQLException;
+
+	/**
+	 * Return an iterator that loops through the values extracted from the ResultSet.
+	 */
+	default PrimitiveIterator.OfDouble iterator(ResultSet rs) {
+		return new DoubleResultSetIterator(rs, this);
+	}
+
+	/**
+	 * An iterator backed by a ResultSet. The ResultSet is closed when the last element is read.
+	 * <p>
+	 * The deadline of the thread creating the iterator is checked before each row.
+	 */
+	static class DoubleResultSetIterator implements PrimitiveIterator.OfDouble {
+		private final ResultSet rs;
+		private final DoubleRowExtractor extractor;
+		private final Deadline deadline = Deadline.current();
+		private boolean rowAvailable = false;
+		private boolean endReached = false;
+
+		public DoubleResultSetIterator(ResultSet rs, DoubleRowExtractor extractor) {
+			this.rs = rs;
+			this.extractor = extractor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (endReached || rowAvailable) return !endReached;
+			Query.checkDeadline(deadline, rs);
+			try {
+				rowAvailable = rs.next();
+				if (!rowAvailable) {
+					endReached = true;
+					Query.close(rs);
+				}
+				return rowAvailable;
+			} catch (final SQLException e) {
+				Query.close(rs);
+				throw new RuntimeSQLException(e);
+			}
+		}
+
+		@Override
+		public double nextDouble() {
+			if (!hasNext()) throw new NoSuchElementException();
+			rowAvailable = false;
+			try {
+				return extractor.extract(rs);
+			} catch (final SQLException e) {
+				Query.close(rs);
+				throw new RuntimeSQLException(e);
+			} catch (final RuntimeException e) {
+				Query.close(rs);
+				throw e;
+			}
+		}
+	}
+}
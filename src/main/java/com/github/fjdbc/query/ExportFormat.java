@@ -0,0 +1,38 @@
+package com.github.fjdbc.query;
+
+/**
+ * The file formats supported by {@link Query#exportTo(java.nio.file.Path, ExportFormat)}.
+ * <p>
+ * The text formats start with a header line containing the column labels. Text is encoded in UTF-8. Exact numeric
+ * columns with a scale, and date and time columns, are written as returned by
+ * {@link java.sql.ResultSet#getString(int)}. Boolean columns are written as {@code 1} and {@code 0}.
+ */
+public enum ExportFormat {
+	/**
+	 * Comma-separated values, as specified by RFC 4180: values containing a comma, a double quote or a line break are
+	 * enclosed in double quotes, and double quotes are doubled. Lines end with CRLF. Null values are empty, and empty
+	 * strings are written as {@code ""}.
+	 */
+	CSV,
+	/**
+	 * Tab-separated values: tabs, line breaks and backslashes are escaped as {@code \t}, {@code \n}, {@code \r} and
+	 * {@code \\}. Lines end with LF. Null values are written as {@code \N}.
+	 */
+	TSV,
+	/**
+	 * A big-endian columnar format:
+	 * <ul>
+	 * <li>Header: the ASCII bytes {@code FJDB}, the format version (int, currently 1), the column count (int), then
+	 * for each column its type (byte: {@code 0} for {@link ColumnChunk.ColumnType#INT}, {@code 1} for
+	 * {@link ColumnChunk.ColumnType#LONG}, {@code 2} for {@link ColumnChunk.ColumnType#DOUBLE}, {@code 3} for
+	 * {@link ColumnChunk.ColumnType#STRING}) and label (string).
+	 * <li>Blocks of up to 4096 rows: the row count (int), then for each column a null bitmap
+	 * ({@code (rowCount + 7) / 8} bytes, bit {@code i % 8} of byte {@code i / 8} is set if row {@code i} is null)
+	 * followed by the values. Values of numeric columns are written for every row ({@code 0} if null). Values of string
+	 * columns are written for non-null rows only.
+	 * <li>End: a row count of 0.
+	 * </ul>
+	 * Strings are written as their UTF-8 length (int) followed by the UTF-8 bytes.
+	 */
+	BINARY
+}
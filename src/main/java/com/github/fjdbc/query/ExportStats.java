@@ -0,0 +1,51 @@
+package com.github.fjdbc.query;
+
+/**
+ * Statistics of an export, see {@link Query#exportTo(java.nio.file.Path, ExportFormat)}.
+ */
+public class ExportStats {
+	private final long rowCount;
+	private final long byteCount;
+	private final long elapsedNanos;
+
+	ExportStats(long rowCount, long byteCount, long elapsedNanos) {
+		this.rowCount = rowCount;
+		this.byteCount = byteCount;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * The number of bytes written, before compression.
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * The duration of the export, from the execution of the query to the last write.
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public double getRowsPerSecond() {
+		return elapsedNanos == 0 ? 0 : rowCount * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * The number of bytes written per second, before compression.
+	 */
+	public double getBytesPerSecond() {
+		return elapsedNanos == 0 ? 0 : byteCount * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s rows, %s bytes in %.3f s (%.0f rows/s, %.0f bytes/s)", rowCount, byteCount,
+				elapsedNanos / 1e9, getRowsPerSecond(), getBytesPerSecond());
+	}
+}
@@ -0,0 +1,203 @@
+package com.github.fjdbc.query;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.github.fjdbc.PreparedStatementBinder;
+
+/**
+ * A {@link Query} read page by page, using keyset pagination: each page is read by a separate query that selects the
+ * rows whose key is greater than the last key of the previous page.
+ * <p>
+ * Unlike OFFSET pagination, the cost of reading a page does not depend on its position, provided the key is indexed.
+ * A connection is borrowed from the {@link com.github.fjdbc.ConnectionProvider} for each page, and given back before
+ * the page is consumed.
+ * <p>
+ * Pages are not read in a single transaction: rows inserted or modified while pages are read may or may not be
+ * returned. Rows whose key is {@code null} are never returned.
+ * <p>
+ * The position of the last object returned is available as a checkpoint, see {@link #getCheckpoint()}, so that the
+ * scan can be resumed later, see {@link #startAfter(String)}.
+ * <p>
+ * This class is not thread safe.
+ * @param <T>
+ *        The type of objects to be extracted from the {@link java.sql.ResultSet}.
+ */
+public class KeysetQuery<T> {
+	private final Query<T> query;
+	private final String keyColumn;
+	private final int pageSize;
+	private Object lastKey;
+
+	/**
+	 * @param keyColumn
+	 *        A column of the query whose values are unique and not {@code null}.
+	 */
+	KeysetQuery(Query<T> query, String keyColumn, int pageSize) {
+		assert query != null;
+		assert keyColumn != null;
+		assert pageSize > 0;
+		assert query.getExtractor().autoCallNext() : "the extractor must map each object to a single row";
+		this.query = query;
+		this.keyColumn = keyColumn;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Resume the scan after the position of the specified checkpoint.
+	 * @param checkpoint
+	 *        A checkpoint returned by {@link #getCheckpoint()}, or {@code null} to start from the first row.
+	 * @throws IllegalArgumentException
+	 *         if the checkpoint is not valid.
+	 */
+	public KeysetQuery<T> startAfter(String checkpoint) {
+		this.lastKey = checkpoint == null ? null : decodeKey(checkpoint);
+		return this;
+	}
+
+	/**
+	 * Return the position of the last object returned, or {@code null} if no object was returned yet.
+	 * <p>
+	 * The checkpoint is a string that can be persisted, then passed to {@link #startAfter(String)} to resume the
+	 * scan.
+	 */
+	public String getCheckpoint() {
+		return lastKey == null ? null : encodeKey(lastKey);
+	}
+
+	/**
+	 * Read all pages, then calls the specified callback for each object extracted.
+	 */
+	public void forEach(Consumer<? super T> callback) {
+		new PageIterator().forEachRemaining(callback);
+	}
+
+	/**
+	 * Return a stream of the objects of all pages. Pages are read lazily, when the stream is consumed.
+	 * <p>
+	 * No resources are held between pages: the stream does not need to be closed.
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new PageIterator(), Spliterator.ORDERED),
+				false);
+	}
+
+	/**
+	 * Read the page following the specified key.
+	 * @param afterKey
+	 *        The last key of the previous page, or {@code null} to read the first page.
+	 */
+	private List<Row<T>> readPage(Object afterKey) {
+		final String predicate = afterKey == null ? keyColumn + " is not null" : keyColumn + " > ?";
+		final String sql = String.format("select * from (\n%s\n) p where %s order by %s", query.getSql(), predicate,
+				keyColumn);
+		final PreparedStatementBinder binder = query.getBinder();
+		final ResultSetExtractor<T> extractor = query.getExtractor();
+		final SingleRowExtractor<Row<T>> rowExtractor = rs -> {
+			final T value = extractor.extract(rs);
+			return value == null ? null : new Row<>(value, normalizeKey(rs.getObject(keyColumn)));
+		};
+		final Query<Row<T>> page = query.derive(sql, (ps, seq) -> {
+			if (binder != null) binder.bind(ps, seq);
+			if (afterKey != null) bindKey(ps, seq.next(), afterKey);
+		}, rowExtractor);
+		page.doBeforeExecution(st -> st.setMaxRows(pageSize));
+		return page.toList();
+	}
+
+	private static Object normalizeKey(Object key) {
+		if (key instanceof Integer || key instanceof Short || key instanceof Byte) return ((Number) key).longValue();
+		if (key instanceof BigInteger) return new BigDecimal((BigInteger) key);
+		return key;
+	}
+
+	private static void bindKey(PreparedStatement ps, int index, Object key) throws SQLException {
+		if (key instanceof String) {
+			ps.setString(index, (String) key);
+		} else if (key instanceof Long) {
+			ps.setLong(index, (Long) key);
+		} else {
+			ps.setObject(index, key);
+		}
+	}
+
+	private static String encodeKey(Object key) {
+		if (key instanceof Long) return "L:" + key;
+		if (key instanceof String) return "S:" + key;
+		if (key instanceof BigDecimal) return "N:" + ((BigDecimal) key).toPlainString();
+		if (key instanceof Timestamp) return "T:" + key;
+		if (key instanceof Date) return "D:" + key;
+		throw new IllegalStateException("Unsupported key type: " + key.getClass().getName());
+	}
+
+	private static Object decodeKey(String checkpoint) {
+		if (checkpoint.length() < 2 || checkpoint.charAt(1) != ':') {
+			throw new IllegalArgumentException("Invalid checkpoint: " + checkpoint);
+		}
+		// the parsing methods throw an IllegalArgumentException if the value is not valid.
+		final String value = checkpoint.substring(2);
+		switch (checkpoint.charAt(0)) {
+		case 'L':
+			return Long.valueOf(value);
+		case 'S':
+			return value;
+		case 'N':
+			return new BigDecimal(value);
+		case 'T':
+			return Timestamp.valueOf(value);
+		case 'D':
+			return Date.valueOf(value);
+		default:
+			throw new IllegalArgumentException("Invalid checkpoint: " + checkpoint);
+		}
+	}
+
+	/**
+	 * Iterate over the objects of all pages, reading the next page once the current page is consumed.
+	 */
+	private class PageIterator implements Iterator<T> {
+		private Iterator<Row<T>> page = Collections.emptyIterator();
+		private boolean lastPage = false;
+
+		@Override
+		public boolean hasNext() {
+			while (!page.hasNext() && !lastPage) {
+				final List<Row<T>> rows = readPage(lastKey);
+				lastPage = rows.size() < pageSize;
+				page = rows.iterator();
+			}
+			return page.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			final Row<T> row = page.next();
+			lastKey = row.key;
+			return row.value;
+		}
+	}
+
+	private static class Row<T> {
+		private final T value;
+		private final Object key;
+
+		public Row(T value, Object key) {
+			this.value = value;
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.github.fjdbc.query;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.IntSequence;
+import com.github.fjdbc.PreparedStatementBinder;
+import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.internal.StatementFuture;
+
+/**
+ * A sequence of queries executed on a single connection, in as few round trips as possible.
+ * <p>
+ * If the driver supports multiple result sets (see {@link java.sql.DatabaseMetaData#supportsMultipleResultSets()}),
+ * compatible queries are sent in a single statement, separated by {@code ;}, and the result sets are read in order
+ * using {@link Statement#getMoreResults()}. Queries are compatible if they use the default statement options, and
+ * have the same statement callbacks. Other queries are executed one by one on the same connection.
+ * <p>
+ * Some drivers must be configured to accept several queries in a single statement, e.g MySQL requires the
+ * {@code allowMultiQueries} connection property. If the combined statement is rejected with a syntax error, the
+ * queries are executed one by one instead. Outside of auto-commit mode, a savepoint is set before the combined
+ * statement, so that the transaction can continue after the error. Use {@link #setCombined(boolean)} to disable
+ * combining if the driver does not accept it, to avoid the failed round trip.
+ * <p>
+ * The query cache is not used, see {@link Query#setCache(QueryCache)}.
+ */
+public class MultiQuery {
+	private final ConnectionProvider cnxProvider;
+	private final List<Query<?>> queries;
+	private boolean combined = true;
+
+	/**
+	 * @param connectionProvider
+	 *        The provider of {@link Connection} instances.
+	 */
+	public MultiQuery(ConnectionProvider connectionProvider, Query<?>... queries) {
+		assert connectionProvider != null;
+		this.cnxProvider = connectionProvider;
+		this.queries = Arrays.asList(queries.clone());
+	}
+
+	/**
+	 * If {@code true}, compatible queries are sent in a single statement when the driver supports multiple result
+	 * sets. Otherwise, queries are executed one by one on the same connection.
+	 * <p>
+	 * The default is {@code true}.
+	 */
+	public MultiQuery setCombined(boolean combined) {
+		this.combined = combined;
+		return this;
+	}
+
+	/**
+	 * Execute the queries, then returns the objects extracted by each query.
+	 */
+	public Results execute() {
+		final List<List<Object>> res = new ArrayList<>(queries.size());
+		for (int i = 0; i < queries.size(); i++) {
+			res.add(new ArrayList<>());
+		}
+		Connection cnx = null;
+		try {
+			cnx = cnxProvider.borrow();
+			boolean combine = combined && queries.size() > 1 && cnx.getMetaData().supportsMultipleResultSets();
+			final boolean[] done = new boolean[queries.size()];
+			for (int i = 0; i < queries.size(); i++) {
+				if (done[i]) continue;
+				final List<Integer> group = new ArrayList<>();
+				group.add(i);
+				if (combine && queries.get(i).isCombinable()) {
+					for (int j = i + 1; j < queries.size(); j++) {
+						final Query<?> q = queries.get(j);
+						if (!done[j] && q.isCombinable() && q.hasSameCallbacks(queries.get(i))) group.add(j);
+					}
+				}
+				for (final int j : group) {
+					done[j] = true;
+				}
+				if (group.size() > 1 && executeCombined(cnx, group, res)) continue;
+				if (group.size() > 1) combine = false;
+				for (final int j : group) {
+					res.get(j).addAll(queries.get(j).toList(cnx));
+				}
+			}
+		} catch (final SQLException e) {
+			throw new RuntimeSQLException("Error executing queries", e);
+		} finally {
+			cnxProvider.giveBack(cnx);
+		}
+		return new Results(res);
+	}
+
+	/**
+	 * Execute the specified queries in a single statement.
+	 * @param group
+	 *        The indexes of the queries.
+	 * @return {@code false} if the statement was rejected with a syntax error, e.g because the driver does not accept
+	 *         several queries in a single statement. Nothing was extracted in this case.
+	 */
+	private boolean executeCombined(Connection cnx, List<Integer> group, List<List<Object>> res) throws SQLException {
+		final StringBuilder sql = new StringBuilder();
+		boolean prepared = false;
+		for (final int i : group) {
+			// the line break before the separator terminates a trailing -- comment.
+			if (sql.length() > 0) sql.append("\n;\n");
+			sql.append(queries.get(i).getSql());
+			prepared |= queries.get(i).getBinder() != null;
+		}
+
+		// some databases, e.g PostgreSQL, abort the transaction on error.
+		final Savepoint savepoint = cnx.getAutoCommit() ? null : setSavepoint(cnx);
+		boolean extracting = false;
+		try (Statement st = prepared ? cnx.prepareStatement(sql.toString()) : cnx.createStatement()) {
+			StatementFuture.statementCreated(st);
+			try {
+				if (prepared) {
+					final IntSequence seq = new IntSequence(1);
+					for (final int i : group) {
+						final PreparedStatementBinder binder = queries.get(i).getBinder();
+						if (binder != null) binder.bind((PreparedStatement) st, seq);
+					}
+				}
+				// all queries of the group have the same callbacks.
+				final Query<?> first = queries.get(group.get(0));
+				first.executeBeforeExecutionConsumers(st);
+				boolean isResultSet = prepared ? ((PreparedStatement) st).execute() : st.execute(sql.toString());
+				first.executeAfterExecutionConsumers(st);
+
+				extracting = true;
+				for (final int i : group) {
+					// skip update counts, if any.
+					while (!isResultSet) {
+						if (st.getUpdateCount() == -1) throw new SQLException(
+								String.format("Expected %s result sets, got fewer:\n%s", group.size(), sql));
+						isResultSet = st.getMoreResults();
+					}
+					queries.get(i).extractAll(st.getResultSet(), res.get(i));
+					isResultSet = st.getMoreResults();
+				}
+			} finally {
+				StatementFuture.statementClosing(st);
+			}
+		} catch (final SQLException e) {
+			if (extracting || !isSyntaxError(e)) throw e;
+			if (savepoint != null) cnx.rollback(savepoint);
+			return false;
+		}
+		if (savepoint != null) releaseSavepoint(cnx, savepoint);
+		return true;
+	}
+
+	/**
+	 * Return {@code true} if the exception is a syntax error, as reported by PostgreSQL, or by MySQL and Oracle when
+	 * they reject the separator. Other errors, e.g unknown tables or columns, are not.
+	 */
+	private static boolean isSyntaxError(SQLException e) {
+		final String state = e.getSQLState();
+		if ("42601".equals(state)) return true;
+		// MySQL: ER_PARSE_ERROR, Oracle: ORA-00911 invalid character.
+		return "42000".equals(state) && (e.getErrorCode() == 1064 || e.getErrorCode() == 911);
+	}
+
+	private static Savepoint setSavepoint(Connection cnx) throws SQLException {
+		try {
+			return cnx.setSavepoint();
+		} catch (final SQLFeatureNotSupportedException e) {
+			return null;
+		}
+	}
+
+	private static void releaseSavepoint(Connection cnx, Savepoint savepoint) throws SQLException {
+		try {
+			cnx.releaseSavepoint(savepoint);
+		} catch (final SQLFeatureNotSupportedException e) {
+			// released at the end of the transaction.
+		}
+	}
+
+	/**
+	 * The objects extracted by each query of a {@link MultiQuery}.
+	 */
+	public class Results {
+		private final List<List<Object>> results;
+
+		private Results(List<List<Object>> results) {
+			this.results = results;
+		}
+
+		/**
+		 * Return the objects extracted by the specified query.
+		 * @throws IllegalArgumentException
+		 *         if the query is not part of the {@link MultiQuery}.
+		 */
+		@SuppressWarnings("unchecked")
+		public <T> List<T> get(Query<T> query) {
+			for (int i = 0; i < queries.size(); i++) {
+				if (queries.get(i) == query) return (List<T>) results.get(i);
+			}
+			throw new IllegalArgumentException("The query is not part of this MultiQuery");
+		}
+
+		/**
+		 * Return the objects extracted by the query at the specified index.
+		 */
+		public List<?> get(int index) {
+			return results.get(index);
+		}
+
+		/**
+		 * The number of queries.
+		 */
+		public int size() {
+			return results.size();
+		}
+	}
+}
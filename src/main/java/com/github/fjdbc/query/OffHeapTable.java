@@ -0,0 +1,521 @@
+package com.github.fjdbc.query;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.github.fjdbc.internal.StatementFuture;
+
+/**
+ * An immutable table of rows stored outside of the heap, in direct {@link ByteBuffer} instances. The heap only holds
+ * a few objects per megabyte of data, so that large tables do not increase the duration of garbage collections.
+ * <p>
+ * The encoding of each column is derived from the {@link ResultSetMetaData}:
+ * <ul>
+ * <li>Boolean columns use 1 byte.
+ * <li>{@code TINYINT} and {@code SMALLINT} columns use 4 bytes. Other integer columns, such as {@code INTEGER} columns
+ * which hold 64-bit values in some databases, use 8 bytes. Exact numeric columns with a scale of 0 use 4 or 8 bytes
+ * depending on their precision.
+ * <li>Floating-point columns use 8 bytes.
+ * <li>Date, time and timestamp columns use 8 bytes: the number of milliseconds since the epoch.
+ * <li>Other columns are stored as variable-length UTF-8 strings, or as bytes for binary columns.
+ * </ul>
+ * Rows are read using a {@link Row} flyweight, whose primitive getters do not allocate objects. The table may be
+ * read by several threads, each using its own {@link Row}.
+ * <p>
+ * The memory is released by {@link #close()}, or once the table is garbage collected if it is not closed. The table
+ * must not be read after it is closed.
+ * @see Query#toOffHeapTable()
+ */
+public class OffHeapTable implements AutoCloseable {
+	/**
+	 * The approximate size of each buffer.
+	 */
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int NO_ROW = -1;
+	/**
+	 * Each entry of the key index is a key (8 bytes) followed by a row index (4 bytes).
+	 */
+	private static final int INDEX_ENTRY_SIZE = 12;
+	/**
+	 * The base 2 logarithm of the number of entries per key index buffer.
+	 */
+	private static final int INDEX_SHIFT = 16;
+	/**
+	 * Releases the memory of a direct buffer, or does nothing if the runtime does not allow it.
+	 */
+	private static final Consumer<ByteBuffer> deallocator = newDeallocator();
+
+	private final ColumnKind[] kinds;
+	private final int[] offsets;
+	private final String[] labels;
+	private final int rowWidth;
+	private final int rowsPerChunk;
+	private final List<ByteBuffer> rowChunks = new ArrayList<>();
+	private final List<ByteBuffer> varChunks = new ArrayList<>();
+	private int rowCount = 0;
+	private long size = 0;
+	/**
+	 * Open-addressing hash index, split into buffers of {@code 1 << INDEX_SHIFT} entries like the rows, so that it
+	 * may have more than {@code Integer.MAX_VALUE / INDEX_ENTRY_SIZE} entries.
+	 */
+	private ByteBuffer[] keyIndex;
+	private long keyIndexMask;
+	private boolean closed = false;
+
+	private enum ColumnKind {
+		BOOLEAN(1), INT(4), LONG(8), DOUBLE(8), TEMPORAL(8), STRING(12), BYTES(12);
+
+		private final int width;
+
+		private ColumnKind(int width) {
+			this.width = width;
+		}
+
+		private static ColumnKind of(ResultSetMetaData meta, int column) throws SQLException {
+			switch (meta.getColumnType(column)) {
+			case Types.BOOLEAN:
+			case Types.BIT:
+				return BOOLEAN;
+			case Types.TINYINT:
+			case Types.SMALLINT:
+				return INT;
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return LONG;
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return DOUBLE;
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				final int precision = meta.getPrecision(column);
+				if (meta.getScale(column) != 0 || precision <= 0 || precision > 18) return STRING;
+				return precision <= 9 ? INT : LONG;
+			case Types.DATE:
+			case Types.TIME:
+			case Types.TIMESTAMP:
+				return TEMPORAL;
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+			case Types.BLOB:
+				return BYTES;
+			default:
+				return STRING;
+			}
+		}
+	}
+
+	private OffHeapTable(ResultSetMetaData meta) throws SQLException {
+		final int columnCount = meta.getColumnCount();
+		kinds = new ColumnKind[columnCount + 1];
+		offsets = new int[columnCount + 1];
+		labels = new String[columnCount + 1];
+		// null flags first.
+		int offset = (columnCount + 7) / 8;
+		for (int i = 1; i <= columnCount; i++) {
+			kinds[i] = ColumnKind.of(meta, i);
+			offsets[i] = offset;
+			labels[i] = meta.getColumnLabel(i);
+			offset += kinds[i].width;
+		}
+		rowWidth = offset;
+		rowsPerChunk = Math.max(1, CHUNK_SIZE / rowWidth);
+	}
+
+	/**
+	 * Copy all rows of the specified {@link ResultSet}.
+	 * @param keyColumn
+	 *        The label of the integer column to index, or {@code null}.
+	 */
+	static OffHeapTable load(ResultSet rs, String keyColumn) throws SQLException {
+		final OffHeapTable res = new OffHeapTable(rs.getMetaData());
+		try {
+			while (rs.next()) {
+				StatementFuture.checkCancelled();
+				res.append(rs);
+			}
+			if (keyColumn != null) res.buildKeyIndex(res.getColumnIndex(keyColumn));
+		} catch (final SQLException | RuntimeException e) {
+			res.close();
+			throw e;
+		}
+		return res;
+	}
+
+	private void append(ResultSet rs) throws SQLException {
+		if (rowCount % rowsPerChunk == 0) rowChunks.add(allocate(rowsPerChunk * rowWidth));
+		final ByteBuffer chunk = rowChunks.get(rowChunks.size() - 1);
+		final int base = (rowCount % rowsPerChunk) * rowWidth;
+		for (int i = 1; i < kinds.length; i++) {
+			final int pos = base + offsets[i];
+			switch (kinds[i]) {
+			case BOOLEAN:
+				chunk.put(pos, (byte) (rs.getBoolean(i) ? 1 : 0));
+				break;
+			case INT:
+				chunk.putInt(pos, rs.getInt(i));
+				break;
+			case LONG:
+				chunk.putLong(pos, rs.getLong(i));
+				break;
+			case DOUBLE:
+				chunk.putDouble(pos, rs.getDouble(i));
+				break;
+			case TEMPORAL:
+				final java.sql.Timestamp timestamp = rs.getTimestamp(i);
+				if (timestamp != null) chunk.putLong(pos, timestamp.getTime());
+				break;
+			case STRING:
+				final String s = rs.getString(i);
+				if (s != null) putVariable(chunk, pos, s.getBytes(StandardCharsets.UTF_8));
+				break;
+			case BYTES:
+				final byte[] bytes = rs.getBytes(i);
+				if (bytes != null) putVariable(chunk, pos, bytes);
+				break;
+			}
+			if (rs.wasNull()) {
+				final int nullPos = base + (i - 1) / 8;
+				chunk.put(nullPos, (byte) (chunk.get(nullPos) | 1 << (i - 1) % 8));
+			}
+		}
+		rowCount++;
+	}
+
+	/**
+	 * Store the specified bytes in the variable-length area, then write their location at the specified position:
+	 * the index of the buffer, the offset in the buffer, and the length.
+	 */
+	private void putVariable(ByteBuffer chunk, int pos, byte[] bytes) {
+		ByteBuffer varChunk = varChunks.isEmpty() ? null : varChunks.get(varChunks.size() - 1);
+		if (varChunk == null || varChunk.remaining() < bytes.length) {
+			varChunk = allocate(Math.max(CHUNK_SIZE, bytes.length));
+			varChunks.add(varChunk);
+		}
+		chunk.putInt(pos, varChunks.size() - 1);
+		chunk.putInt(pos + 4, varChunk.position());
+		chunk.putInt(pos + 8, bytes.length);
+		varChunk.put(bytes);
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		size += capacity;
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	private void buildKeyIndex(int column) {
+		if (kinds[column] != ColumnKind.INT && kinds[column] != ColumnKind.LONG) {
+			throw new IllegalArgumentException("The key column must be an integer column: " + labels[column]);
+		}
+		// load factor <= 0.5
+		final long capacity = Long.highestOneBit(Math.max(1, rowCount) * 2L - 1) << 1;
+		keyIndexMask = capacity - 1;
+		final int entriesPerBuffer = (int) Math.min(capacity, 1 << INDEX_SHIFT);
+		keyIndex = new ByteBuffer[(int) (capacity / entriesPerBuffer)];
+		for (int b = 0; b < keyIndex.length; b++) {
+			keyIndex[b] = allocate(entriesPerBuffer * INDEX_ENTRY_SIZE);
+			for (int i = 0; i < entriesPerBuffer; i++) {
+				keyIndex[b].putInt(i * INDEX_ENTRY_SIZE + 8, NO_ROW);
+			}
+		}
+
+		final Row row = row();
+		for (int i = 0; i < rowCount; i++) {
+			row.moveTo(i);
+			if (row.isNull(column)) continue;
+			final long key = row.getLong(column);
+			long slot = hash(key) & keyIndexMask;
+			while (getIndexBuffer(slot).getInt(getIndexOffset(slot) + 8) != NO_ROW) {
+				if (getIndexBuffer(slot).getLong(getIndexOffset(slot)) == key) {
+					throw new IllegalArgumentException("Duplicate key in column " + labels[column] + ": " + key);
+				}
+				slot = (slot + 1) & keyIndexMask;
+			}
+			getIndexBuffer(slot).putLong(getIndexOffset(slot), key);
+			getIndexBuffer(slot).putInt(getIndexOffset(slot) + 8, i);
+		}
+	}
+
+	/**
+	 * Return a function releasing the memory of direct buffers: {@code Unsafe.invokeCleaner} on Java 9+, or the
+	 * cleaner of the buffer on Java 8. Both are looked up by reflection.
+	 */
+	private static Consumer<ByteBuffer> newDeallocator() {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			final Object unsafe = theUnsafe.get(null);
+			final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			return buffer -> invoke(invokeCleaner, unsafe, buffer);
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			// Java 8
+		}
+		try {
+			final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return buffer -> invoke(clean, invoke(cleaner, buffer));
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			// the memory is released once the buffers are garbage collected.
+			return buffer -> {
+			};
+		}
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long hash(long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return h ^ h >>> 32;
+	}
+
+	private ByteBuffer getIndexBuffer(long slot) {
+		return keyIndex[(int) (slot >>> INDEX_SHIFT)];
+	}
+
+	private static int getIndexOffset(long slot) {
+		return (int) (slot & (1 << INDEX_SHIFT) - 1) * INDEX_ENTRY_SIZE;
+	}
+
+	/**
+	 * Return the index of the row having the specified key, or {@code -1} if no row has this key.
+	 * @throws IllegalStateException
+	 *         if the table has no key column, see {@link Query#toOffHeapTable(String)}.
+	 */
+	public int find(long key) {
+		checkOpen();
+		if (keyIndex == null) throw new IllegalStateException("The table has no key column");
+		long slot = hash(key) & keyIndexMask;
+		int row;
+		while ((row = getIndexBuffer(slot).getInt(getIndexOffset(slot) + 8)) != NO_ROW) {
+			if (getIndexBuffer(slot).getLong(getIndexOffset(slot)) == key) return row;
+			slot = (slot + 1) & keyIndexMask;
+		}
+		return NO_ROW;
+	}
+
+	/**
+	 * Release the off-heap memory of this table. Subsequent reads throw an {@link IllegalStateException}. Closing a
+	 * table that is being read by another thread may crash the JVM.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		final List<ByteBuffer> buffers = new ArrayList<>(rowChunks);
+		buffers.addAll(varChunks);
+		if (keyIndex != null) buffers.addAll(Arrays.asList(keyIndex));
+		rowChunks.clear();
+		varChunks.clear();
+		keyIndex = null;
+		size = 0;
+		buffers.forEach(deallocator);
+	}
+
+	private void checkOpen() {
+		if (closed) throw new IllegalStateException("The table is closed");
+	}
+
+	/**
+	 * Return a new flyweight, positioned before the first row.
+	 */
+	public Row row() {
+		return new Row();
+	}
+
+	/**
+	 * Call the specified callback for each row. The same {@link Row} instance is passed each time.
+	 */
+	public void forEach(Consumer<? super Row> callback) {
+		final Row row = row();
+		while (row.next()) {
+			callback.accept(row);
+		}
+	}
+
+	/**
+	 * Return the 1-based index of the column having the specified label (case insensitive).
+	 * @throws IllegalArgumentException
+	 *         if no column has the specified label.
+	 */
+	public int getColumnIndex(String label) {
+		for (int i = 1; i < labels.length; i++) {
+			if (labels[i].equalsIgnoreCase(label)) return i;
+		}
+		throw new IllegalArgumentException("Unknown column: " + label);
+	}
+
+	public int getColumnCount() {
+		return kinds.length - 1;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * The off-heap memory allocated by this table, in bytes.
+	 */
+	public long getOffHeapSize() {
+		return size;
+	}
+
+	/**
+	 * A cursor over the rows of an {@link OffHeapTable}. Columns are identified by their 1-based index.
+	 * <p>
+	 * Like {@link ResultSet}, the primitive getters return {@code 0} or {@code false} for null values. They throw an
+	 * {@link IllegalArgumentException} if the column has an incompatible type.
+	 */
+	public class Row {
+		private ByteBuffer chunk;
+		private int base;
+		private int index = -1;
+
+		private Row() {
+		}
+
+		/**
+		 * Move to the next row. Return {@code false} if there are no more rows.
+		 */
+		public boolean next() {
+			if (index + 1 >= rowCount) return false;
+			moveTo(index + 1);
+			return true;
+		}
+
+		/**
+		 * Move to the row at the specified 0-based index.
+		 */
+		public Row moveTo(int row) {
+			checkOpen();
+			if (row < 0 || row >= rowCount) throw new IndexOutOfBoundsException("Row: " + row + ", Rows: " + rowCount);
+			index = row;
+			chunk = rowChunks.get(row / rowsPerChunk);
+			base = (row % rowsPerChunk) * rowWidth;
+			return this;
+		}
+
+		/**
+		 * Move to the row having the specified key. Return {@code false}, and leave the position unchanged, if no row
+		 * has this key.
+		 * @see OffHeapTable#find(long)
+		 */
+		public boolean moveToKey(long key) {
+			final int row = find(key);
+			if (row == NO_ROW) return false;
+			moveTo(row);
+			return true;
+		}
+
+		/**
+		 * The 0-based index of the current row.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public boolean isNull(int column) {
+			checkRow();
+			return (chunk.get(base + (column - 1) / 8) & 1 << (column - 1) % 8) != 0;
+		}
+
+		public boolean getBoolean(int column) {
+			check(column, ColumnKind.BOOLEAN);
+			return chunk.get(base + offsets[column]) != 0;
+		}
+
+		/**
+		 * Also applies to 8-byte integer columns.
+		 * @throws ArithmeticException
+		 *         if the value does not fit in an {@code int}.
+		 */
+		public int getInt(int column) {
+			if (kinds[column] == ColumnKind.LONG) return Math.toIntExact(getLong(column));
+			check(column, ColumnKind.INT);
+			return chunk.getInt(base + offsets[column]);
+		}
+
+		/**
+		 * Also applies to integer columns, and to date, time and timestamp columns, which return the number of
+		 * milliseconds since the epoch.
+		 */
+		public long getLong(int column) {
+			if (kinds[column] == ColumnKind.INT) return getInt(column);
+			if (kinds[column] == ColumnKind.TEMPORAL) checkRow();
+			else check(column, ColumnKind.LONG);
+			return chunk.getLong(base + offsets[column]);
+		}
+
+		/**
+		 * Also applies to integer columns.
+		 */
+		public double getDouble(int column) {
+			if (kinds[column] == ColumnKind.INT || kinds[column] == ColumnKind.LONG) return getLong(column);
+			check(column, ColumnKind.DOUBLE);
+			return chunk.getDouble(base + offsets[column]);
+		}
+
+		/**
+		 * Return the value as a string, or {@code null}. A new string is allocated at each call.
+		 */
+		public String getString(int column) {
+			if (isNull(column)) return null;
+			switch (kinds[column]) {
+			case BOOLEAN:
+				return String.valueOf(getBoolean(column));
+			case INT:
+			case LONG:
+			case TEMPORAL:
+				return String.valueOf(getLong(column));
+			case DOUBLE:
+				return String.valueOf(getDouble(column));
+			default:
+				return new String(getBytes(column), StandardCharsets.UTF_8);
+			}
+		}
+
+		/**
+		 * Return the value of a string or binary column, or {@code null}. A new array is allocated at each call.
+		 */
+		public byte[] getBytes(int column) {
+			if (kinds[column] != ColumnKind.STRING) check(column, ColumnKind.BYTES);
+			if (isNull(column)) return null;
+			final int pos = base + offsets[column];
+			final ByteBuffer varChunk = varChunks.get(chunk.getInt(pos)).duplicate();
+			varChunk.position(chunk.getInt(pos + 4));
+			final byte[] res = new byte[chunk.getInt(pos + 8)];
+			varChunk.get(res);
+			return res;
+		}
+
+		private void checkRow() {
+			checkOpen();
+			if (index < 0) throw new IllegalStateException("No current row");
+		}
+
+		private void check(int column, ColumnKind expected) {
+			checkRow();
+			if (kinds[column] != expected) {
+				throw new IllegalArgumentException(
+						String.format("Column %s is of type %s, not %s", labels[column], kinds[column], expected));
+			}
+		}
+	}
+}
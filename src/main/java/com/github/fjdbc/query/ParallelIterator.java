@@ -0,0 +1,276 @@
+package com.github.fjdbc.query;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+
+import com.github.fjdbc.Deadline;
+import com.github.fjdbc.internal.RoutingSession;
+import com.github.fjdbc.internal.ShardContext;
+
+/**
+ * An iterator over the results of several queries executed concurrently, each on its own connection.
+ * <p>
+ * If {@code ordered} is {@code true}, all objects of query {@code i} are returned before the objects of query
+ * {@code i + 1}. Otherwise, objects are returned as soon as they are extracted, in no particular order.
+ * <p>
+ * If a query fails, the other queries are cancelled, and the exception is rethrown to the consumer, unless a failure
+ * handler is specified: the objects already extracted by the failed query are kept, and the other queries go on.
+ * <p>
+ * The queries inherit the deadline, the shards and the routing session of the thread creating the iterator.
+ * <p>
+ * {@link #close()} must be called when the iterator is no longer used: it cancels the queries that are still running
+ * and waits for them to release their connection.
+ * @param <T>
+ *        The type of objects to be extracted from the queries.
+ */
+class ParallelIterator<T> implements Iterator<T>, AutoCloseable {
+	private static final Object END = new Object();
+	/**
+	 * Wakes up the consumer once a query failed, see {@link #failure}.
+	 */
+	private static final Object FAILED = new Object();
+	private static final int BUFFER_SIZE = 256;
+
+	private final List<BlockingQueue<Object>> queues;
+	private final ExecutorService executor;
+	private final Set<Statement> runningStatements = ConcurrentHashMap.newKeySet();
+	private final int nQueries;
+	private final ObjIntConsumer<RuntimeException> failureHandler;
+	private volatile boolean cancelled = false;
+	/**
+	 * The exception of the first failed query. Once set, the consumer rethrows it instead of reading the queues.
+	 */
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private int currentQueue = 0;
+	private int nEndReached = 0;
+	private Object nextValue;
+	private boolean endReached = false;
+
+	/**
+	 * Start executing the queries.
+	 * @param parallelism
+	 *        The maximum number of queries executed at the same time.
+	 */
+	public ParallelIterator(List<Query<T>> queries, int parallelism, boolean ordered, ThreadFactory threadFactory) {
+		this(queries, parallelism, ordered, threadFactory, null);
+	}
+
+	/**
+	 * Start executing the queries.
+	 * @param parallelism
+	 *        The maximum number of queries executed at the same time.
+	 * @param failureHandler
+	 *        Called with the exception and the index of each failed query, from the thread executing the query, or
+	 *        {@code null} to cancel all queries when one fails.
+	 */
+	public ParallelIterator(List<Query<T>> queries, int parallelism, boolean ordered, ThreadFactory threadFactory,
+			ObjIntConsumer<RuntimeException> failureHandler) {
+		assert parallelism > 0;
+		this.failureHandler = failureHandler;
+		nQueries = queries.size();
+		queues = new ArrayList<>(ordered ? nQueries : 1);
+		for (int i = 0; i < (ordered ? nQueries : 1); i++) {
+			queues.add(new ArrayBlockingQueue<>(BUFFER_SIZE));
+		}
+		executor = Executors.newFixedThreadPool(parallelism, threadFactory);
+		// the queries inherit the deadline, the shards and the routing session of the current thread.
+		final Deadline deadline = Deadline.current();
+		final ShardContext shards = ShardContext.current();
+		final RoutingSession session = RoutingSession.current();
+		for (int i = 0; i < nQueries; i++) {
+			final Query<T> query = queries.get(i);
+			final BlockingQueue<Object> queue = queues.get(ordered ? i : 0);
+			final int index = i;
+			final Supplier<Void> operation = () -> {
+				execute(query, index, queue);
+				return null;
+			};
+			final Supplier<Void> withDeadline = deadline == null ? operation : () -> deadline.call(operation);
+			executor.execute(() -> ShardContext.call(shards, () -> RoutingSession.call(session, withDeadline)));
+		}
+		executor.shutdown();
+		if (nQueries == 0) endReached = true;
+	}
+
+	private void execute(Query<T> query, int index, BlockingQueue<Object> queue) {
+		try {
+			if (cancelled) return;
+			try {
+				query.forEach(t -> put(queue, t), runningStatements::add, runningStatements::remove);
+			} catch (final RuntimeException e) {
+				if (failureHandler == null || e instanceof CancellationException) throw e;
+				failureHandler.accept(e, index);
+			}
+			put(queue, END);
+		} catch (final RuntimeException | Error e) {
+			// the iterator was closed, or another query failed.
+			if (cancelled && e instanceof CancellationException) return;
+			if (!failure.compareAndSet(null, e)) return;
+			cancelled = true;
+			cancelRunningStatements();
+			// the consumer may be waiting on any queue. The queues are cleared by close() if it stops reading them.
+			for (final BlockingQueue<Object> q : queues) {
+				q.clear();
+				putUninterruptibly(q, FAILED);
+			}
+		}
+	}
+
+	private static void putUninterruptibly(BlockingQueue<Object> queue, Object value) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(value);
+				break;
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private void put(BlockingQueue<Object> queue, Object value) {
+		try {
+			while (!cancelled) {
+				if (queue.offer(value, 100, TimeUnit.MILLISECONDS)) return;
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		throw new CancellationException();
+	}
+
+	private void cancelRunningStatements() {
+		for (final Statement st : runningStatements) {
+			try {
+				st.cancel();
+			} catch (final SQLException e) {
+				// the query will be stopped by the cancellation flag anyway.
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		maybeTakeNext();
+		return !endReached;
+	}
+
+	@Override
+	public T next() {
+		maybeTakeNext();
+		if (endReached) throw new NoSuchElementException();
+		@SuppressWarnings("unchecked") final T res = (T) nextValue;
+		nextValue = null;
+		return res;
+	}
+
+	private void maybeTakeNext() {
+		while (!endReached && nextValue == null) {
+			final Object value = take(currentQueue);
+			if (value == END) {
+				nEndReached++;
+				if (queues.size() > 1) currentQueue++;
+				if (nEndReached == nQueries) endReached = true;
+			} else {
+				nextValue = value;
+			}
+		}
+	}
+
+	/**
+	 * Take the next object of a queue, or {@link #END}. The exception of a failed query is rethrown.
+	 */
+	private Object take(int queue) {
+		final Object value;
+		try {
+			value = queues.get(queue).take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new IllegalStateException("Interrupted while waiting for the next element", e);
+		}
+		// the value may have been put before the failure.
+		final Throwable cause = failure.get();
+		if (cause != null) {
+			close();
+			if (cause instanceof Error) throw (Error) cause;
+			throw (RuntimeException) cause;
+		}
+		return value;
+	}
+
+	/**
+	 * Return an iterator over the objects of a single query. This iterator must be created with {@code ordered =
+	 * true}, and must not be iterated directly.
+	 */
+	Iterator<T> queryIterator(int query) {
+		assert queues.size() == nQueries;
+		return new Iterator<T>() {
+			private Object nextValue;
+			private boolean endReached = false;
+
+			@Override
+			public boolean hasNext() {
+				if (nextValue == null && !endReached) {
+					final Object value = take(query);
+					if (value == END) {
+						endReached = true;
+					} else {
+						nextValue = value;
+					}
+				}
+				return !endReached;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				@SuppressWarnings("unchecked") final T res = (T) nextValue;
+				nextValue = null;
+				return res;
+			}
+		};
+	}
+
+	/**
+	 * Cancel the queries that are still running, and wait for them to terminate.
+	 */
+	@Override
+	public void close() {
+		endReached = true;
+		nextValue = null;
+		if (executor.isTerminated()) return;
+		cancelled = true;
+		cancelRunningStatements();
+		boolean interrupted = false;
+		while (!executor.isTerminated()) {
+			// unblock a failed query waiting for room in a queue.
+			for (final BlockingQueue<Object> q : queues) {
+				q.clear();
+			}
+			try {
+				executor.awaitTermination(100, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,174 @@
+package com.github.fjdbc.query;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.github.fjdbc.PreparedStatementBinder;
+import com.github.fjdbc.internal.Threads;
+
+/**
+ * A {@link Query} split in several queries, each one reading a range of values of a column. The queries are executed
+ * concurrently, each on its own connection borrowed from the {@link com.github.fjdbc.ConnectionProvider}.
+ * <p>
+ * If one of the queries fails, the other queries are cancelled.
+ * @param <T>
+ *        The type of objects to be extracted from the {@link java.sql.ResultSet}.
+ */
+public class PartitionedQuery<T> {
+	private final Query<T> query;
+	private final String column;
+	private final long[] boundaries;
+	private final int nPartitions;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private boolean ordered = false;
+	private ThreadFactory threadFactory = Threads.newThreadFactory("fjdbc-partition");
+
+	/**
+	 * Partition the query in {@code nPartitions} ranges of equal size, between the min and max values of the column.
+	 */
+	PartitionedQuery(Query<T> query, String column, int nPartitions) {
+		assert nPartitions > 0;
+		this.query = query;
+		this.column = column;
+		this.boundaries = null;
+		this.nPartitions = nPartitions;
+	}
+
+	/**
+	 * Partition the query using the specified boundaries.
+	 */
+	PartitionedQuery(Query<T> query, String column, long[] boundaries) {
+		this.query = query;
+		this.column = column;
+		this.boundaries = boundaries.clone();
+		Arrays.sort(this.boundaries);
+		this.nPartitions = boundaries.length + 1;
+	}
+
+	/**
+	 * Set the maximum number of partitions queried at the same time, i.e the maximum number of borrowed connections.
+	 * <p>
+	 * The default is the number of available processors.
+	 */
+	public PartitionedQuery<T> setParallelism(int parallelism) {
+		assert parallelism > 0;
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * If {@code true}, all objects of partition {@code i} are returned before the objects of partition {@code i + 1}.
+	 * Otherwise, objects are returned as soon as they are extracted, in no particular order.
+	 * <p>
+	 * The default is {@code false}.
+	 */
+	public PartitionedQuery<T> setOrdered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+	/**
+	 * Set the factory of the threads executing the partitions.
+	 */
+	public PartitionedQuery<T> setThreadFactory(ThreadFactory threadFactory) {
+		assert threadFactory != null;
+		this.threadFactory = threadFactory;
+		return this;
+	}
+
+	/**
+	 * Execute the partitions, then calls the specified callback for each object extracted.
+	 * <p>
+	 * The callback is always called from the calling thread.
+	 */
+	public void forEach(Consumer<? super T> callback) {
+		try (ParallelIterator<T> it = iterator()) {
+			it.forEachRemaining(callback);
+		}
+	}
+
+	/**
+	 * Execute the partitions, then returns a list of objects extracted.
+	 */
+	public List<T> toList() {
+		final List<T> res = new ArrayList<>();
+		forEach(res::add);
+		return res;
+	}
+
+	/**
+	 * Warning: the returned stream must be closed manually by the caller.
+	 */
+	public Stream<T> stream() {
+		final ParallelIterator<T> it = iterator();
+		final Stream<T> res = StreamSupport
+				.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false);
+		return res.onClose(it::close);
+	}
+
+	private ParallelIterator<T> iterator() {
+		final List<Query<T>> partitions = getPartitions();
+		return new ParallelIterator<>(partitions, Math.min(parallelism, partitions.size()), ordered, threadFactory);
+	}
+
+	/**
+	 * Create one query per partition.
+	 */
+	List<Query<T>> getPartitions() {
+		final long[] _boundaries = boundaries != null ? boundaries : computeBoundaries();
+		if (_boundaries.length == 0) return Arrays.asList(query);
+
+		final List<Query<T>> res = new ArrayList<>(_boundaries.length + 1);
+		res.add(partition(String.format("%s < ? or %s is null", column, column), _boundaries[0]));
+		for (int i = 1; i < _boundaries.length; i++) {
+			res.add(partition(String.format("%s >= ? and %s < ?", column, column), _boundaries[i - 1],
+					_boundaries[i]));
+		}
+		res.add(partition(String.format("%s >= ?", column), _boundaries[_boundaries.length - 1]));
+		return res;
+	}
+
+	private Query<T> partition(String predicate, long... values) {
+		final String sql = "select * from (\n" + query.getSql() + "\n) p where " + predicate;
+		final PreparedStatementBinder binder = query.getBinder();
+		return query.derive(sql, (ps, seq) -> {
+			if (binder != null) binder.bind(ps, seq);
+			for (final long value : values) {
+				ps.setLong(seq.next(), value);
+			}
+		}, query.getExtractor());
+	}
+
+	/**
+	 * Split the range of values of the column in {@code nPartitions} ranges of equal size.
+	 */
+	private long[] computeBoundaries() {
+		if (nPartitions == 1) return new long[0];
+		final String sql = String.format("select min(%s), max(%s) from (\n%s\n) p", column, column, query.getSql());
+		final SingleRowExtractor<long[]> extractor = rs -> {
+			final long min = rs.getLong(1);
+			return rs.wasNull() ? new long[0] : new long[] { min, rs.getLong(2) };
+		};
+		final long[] minMax = query.derive(sql, query.getBinder(), extractor).toSingleResult();
+		if (minMax == null || minMax.length == 0) return new long[0];
+
+		final BigInteger min = BigInteger.valueOf(minMax[0]);
+		final BigInteger span = BigInteger.valueOf(minMax[1]).subtract(min).add(BigInteger.ONE);
+		final List<Long> res = new ArrayList<>(nPartitions - 1);
+		for (int i = 1; i < nPartitions; i++) {
+			final long boundary = min.add(span.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(nPartitions)))
+					.longValue();
+			// skip empty partitions, when there are less values than partitions.
+			if (boundary > minMax[0] && (res.isEmpty() || boundary > res.get(res.size() - 1))) res.add(boundary);
+		}
+		return res.stream().mapToLong(Long::longValue).toArray();
+	}
+}
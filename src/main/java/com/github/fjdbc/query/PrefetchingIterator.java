@@ -0,0 +1,157 @@
+package com.github.fjdbc.query;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An iterator that reads the elements of another iterator in a background thread, ahead of the consumer.
+ * <p>
+ * The producer thread reads elements into a bounded buffer, so that fetching rows from the database overlaps with
+ * processing them. If the source iterator throws an exception, it is rethrown to the consumer.
+ * <p>
+ * {@link #close()} must be called when the iterator is no longer used, even if it was not read until the end: it stops
+ * the producer thread and waits for it to terminate, so that the underlying {@link java.sql.ResultSet} may be closed
+ * safely afterwards.
+ * @param <T>
+ *        The type of elements.
+ */
+public class PrefetchingIterator<T> implements Iterator<T>, AutoCloseable {
+	private static final Object END = new Object();
+
+	private final BlockingQueue<Object> buffer;
+	private final CountDownLatch producerDone = new CountDownLatch(1);
+	private volatile boolean cancelled = false;
+	private Object nextValue;
+	private boolean endReached = false;
+
+	/**
+	 * Start reading the source iterator in a background thread.
+	 * @param source
+	 *        The iterator to read from. It is only accessed from the producer thread.
+	 * @param bufferSize
+	 *        The maximum number of elements read ahead of the consumer.
+	 * @param threadFactory
+	 *        Creates the producer thread.
+	 */
+	public PrefetchingIterator(Iterator<? extends T> source, int bufferSize, ThreadFactory threadFactory) {
+		assert bufferSize > 0;
+		this.buffer = new ArrayBlockingQueue<>(bufferSize);
+		final Thread producer = threadFactory.newThread(() -> produce(source));
+		producer.start();
+	}
+
+	private void produce(Iterator<? extends T> source) {
+		Object last = END;
+		try {
+			while (!cancelled && source.hasNext()) {
+				if (!put(source.next())) break;
+			}
+		} catch (final InterruptedException e) {
+			last = new Failure(new IllegalStateException("Interrupted while reading ahead", e));
+		} catch (final RuntimeException | Error e) {
+			last = new Failure(e);
+		} finally {
+			putLast(last);
+			producerDone.countDown();
+		}
+	}
+
+	/**
+	 * Put a value in the buffer, waiting for free space until the iterator is closed.
+	 * @return {@code false} if the iterator was closed.
+	 */
+	private boolean put(Object value) throws InterruptedException {
+		while (!cancelled) {
+			if (buffer.offer(value, 100, TimeUnit.MILLISECONDS)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Put the end or the failure in the buffer, ignoring interrupts: the consumer waits for it.
+	 */
+	private void putLast(Object value) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				put(value);
+				break;
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	@Override
+	public boolean hasNext() {
+		maybeTakeNext();
+		return !endReached;
+	}
+
+	@Override
+	public T next() {
+		maybeTakeNext();
+		if (endReached) throw new NoSuchElementException();
+		@SuppressWarnings("unchecked") final T res = (T) nextValue;
+		nextValue = null;
+		return res;
+	}
+
+	private void maybeTakeNext() {
+		if (endReached || nextValue != null) return;
+		final Object value;
+		try {
+			value = buffer.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new IllegalStateException("Interrupted while waiting for the next element", e);
+		}
+		if (value == END) {
+			endReached = true;
+		} else if (value instanceof Failure) {
+			endReached = true;
+			final Throwable cause = ((Failure) value).cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw (RuntimeException) cause;
+		} else {
+			nextValue = value;
+		}
+	}
+
+	/**
+	 * Stop the producer thread, and wait for it to terminate.
+	 */
+	@Override
+	public void close() {
+		cancelled = true;
+		endReached = true;
+		nextValue = null;
+		boolean interrupted = false;
+		while (producerDone.getCount() > 0) {
+			// unblock the producer if it is waiting for free space in the buffer.
+			buffer.clear();
+			try {
+				producerDone.await();
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		buffer.clear();
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private static class Failure {
+		private final Throwable cause;
+
+		public Failure(Throwable cause) {
+			this.cause = cause;
+		}
+	}
+}
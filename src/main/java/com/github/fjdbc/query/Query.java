@@ -1,24 +1,59 @@
 package com.github.fjdbc.query;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.BaseStream;
 import java.util.stream.Collector;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
+import java.util.zip.GZIPOutputStream;
+
+import org.reactivestreams.Publisher;
 
 import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.Deadline;
 import com.github.fjdbc.IntSequence;
 import com.github.fjdbc.PreparedStatementBinder;
 import com.github.fjdbc.RuntimeSQLException;
 import com.github.fjdbc.SQLConsumer;
+import com.github.fjdbc.internal.ColumnIndexCachingResultSet;
+import com.github.fjdbc.internal.ParameterRecorder;
+import com.github.fjdbc.internal.ResultSetDelegate;
+import com.github.fjdbc.internal.ShardContext;
+import com.github.fjdbc.internal.SqlTables;
+import com.github.fjdbc.internal.StatementFuture;
+import com.github.fjdbc.internal.Threads;
 
 /**
  * Represent an SQL SELECT statement.
@@ -26,12 +61,26 @@ import com.github.fjdbc.SQLConsumer;
  *        The type of objects to be extracted from the {@link ResultSet}}.
  */
 public class Query<T> {
+	private static final LongAdder autoReleasedStreams = new LongAdder();
+
 	private final String sql;
 	private PreparedStatementBinder binder;
 	private final ResultSetExtractor<T> extractor;
 	private ConnectionProvider cnxProvider;
 	private final List<SQLConsumer<Statement>> beforeExecutionConsumers = new ArrayList<>(2);
 	private final List<SQLConsumer<Statement>> afterExecutionConsumers = new ArrayList<>(2);
+	private int resultSetType = ResultSet.TYPE_FORWARD_ONLY;
+	private int resultSetConcurrency = ResultSet.CONCUR_READ_ONLY;
+	private int resultSetHoldability = 0;
+	private int fetchSize = 0;
+	private int fetchDirection = 0;
+	private StreamingDialect streamingDialect;
+	private int prefetchSize = 0;
+	private ThreadFactory prefetchThreadFactory;
+	private boolean columnIndexCache = false;
+	private QueryCache cache;
+	private Set<String> cacheTables;
+	private Object cacheKey;
 
 	/**
 	 * Create a new query.
@@ -101,13 +150,13 @@ public class Query<T> {
 		return this;
 	}
 
-	private void executeBeforeExecutionConsumers(Statement st) throws SQLException {
+	void executeBeforeExecutionConsumers(Statement st) throws SQLException {
 		for (final SQLConsumer<Statement> c : beforeExecutionConsumers) {
 			c.accept(st);
 		}
 	}
 
-	private void executeAfterExecutionConsumers(Statement st) throws SQLException {
+	void executeAfterExecutionConsumers(Statement st) throws SQLException {
 		for (final SQLConsumer<Statement> c : afterExecutionConsumers) {
 			c.accept(st);
 		}
@@ -127,28 +176,628 @@ public class Query<T> {
 		return binder != null;
 	}
 
+	/**
+	 * Set the type and concurrency of the {@link ResultSet}.
+	 * <p>
+	 * The default is {@link ResultSet#TYPE_FORWARD_ONLY}, {@link ResultSet#CONCUR_READ_ONLY}.
+	 */
+	public Query<T> setResultSetType(int resultSetType, int resultSetConcurrency) {
+		this.resultSetType = resultSetType;
+		this.resultSetConcurrency = resultSetConcurrency;
+		return this;
+	}
+
+	/**
+	 * Set the holdability of the {@link ResultSet}: {@link ResultSet#HOLD_CURSORS_OVER_COMMIT} or
+	 * {@link ResultSet#CLOSE_CURSORS_AT_COMMIT}.
+	 * <p>
+	 * By default, the holdability of the connection is used.
+	 */
+	public Query<T> setHoldability(int resultSetHoldability) {
+		this.resultSetHoldability = resultSetHoldability;
+		return this;
+	}
+
+	/**
+	 * Set the number of rows fetched from the database each time more rows are needed.
+	 * <p>
+	 * By default, the fetch size is chosen by the driver.
+	 * @see Statement#setFetchSize(int)
+	 */
+	public Query<T> setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+		return this;
+	}
+
+	/**
+	 * Set the direction in which rows are processed: {@link ResultSet#FETCH_FORWARD}, {@link ResultSet#FETCH_REVERSE}
+	 * or {@link ResultSet#FETCH_UNKNOWN}.
+	 * <p>
+	 * By default, the fetch direction is chosen by the driver.
+	 * @see Statement#setFetchDirection(int)
+	 */
+	public Query<T> setFetchDirection(int fetchDirection) {
+		this.fetchDirection = fetchDirection;
+		return this;
+	}
+
+	/**
+	 * Stream rows from the database, instead of letting the driver decide whether the whole {@link ResultSet} is
+	 * buffered in memory.
+	 * <p>
+	 * The ResultSet is {@link ResultSet#TYPE_FORWARD_ONLY} and {@link ResultSet#CONCUR_READ_ONLY}, and rows are read
+	 * {@code fetchSize} rows at a time, so that memory usage does not depend on the size of the ResultSet.
+	 * <p>
+	 * Equivalent to {@code streaming(fetchSize, StreamingDialect.DEFAULT)}.
+	 */
+	public Query<T> streaming(int fetchSize) {
+		return streaming(fetchSize, StreamingDialect.DEFAULT);
+	}
+
+	/**
+	 * Stream rows from the database, using the specified driver-specific settings.
+	 * @see #streaming(int)
+	 */
+	public Query<T> streaming(int fetchSize, StreamingDialect dialect) {
+		assert fetchSize > 0;
+		assert dialect != null;
+		setResultSetType(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		setFetchSize(fetchSize);
+		this.streamingDialect = dialect;
+		return this;
+	}
+
+	/**
+	 * Read rows in a background thread, ahead of the consumer, so that fetching rows from the database overlaps with
+	 * processing them.
+	 * <p>
+	 * Rows are extracted in the background thread, and buffered until they are consumed. The extractor must therefore
+	 * not rely on being called from the consumer thread.
+	 * @param bufferSize
+	 *        The maximum number of objects extracted ahead of the consumer.
+	 */
+	public Query<T> prefetch(int bufferSize) {
+		return prefetch(bufferSize, Threads.newThreadFactory("fjdbc-prefetch"));
+	}
+
+	/**
+	 * Read rows in a background thread created by the specified factory.
+	 * @see #prefetch(int)
+	 */
+	public Query<T> prefetch(int bufferSize, ThreadFactory threadFactory) {
+		assert bufferSize > 0;
+		assert threadFactory != null;
+		this.prefetchSize = bufferSize;
+		this.prefetchThreadFactory = threadFactory;
+		return this;
+	}
+
+	/**
+	 * If {@code true}, each column label is resolved to a column index only once per execution, instead of letting the
+	 * driver resolve it on each call to a getter such as {@code rs.getString("name")}.
+	 * <p>
+	 * This can speed up extractors that access columns by label. The default is {@code false}.
+	 */
+	public Query<T> setColumnIndexCache(boolean columnIndexCache) {
+		this.columnIndexCache = columnIndexCache;
+		return this;
+	}
+
+	/**
+	 * Cache the objects extracted by this query in the specified cache, or disable caching if {@code cache} is
+	 * {@code null}.
+	 * <p>
+	 * The tables read by the query are found by analyzing the SQL string. If no table can be found, the query is not
+	 * cached: use {@link #setCache(QueryCache, String...)} instead.
+	 * <p>
+	 * Only {@link #forEach(Consumer)} and the methods based on it ({@link #toList()}, {@link #collect(Collector)},
+	 * etc.) use the cache. The query is not cached either if the binder sets parameters that cannot be compared, such
+	 * as streams or LOBs.
+	 * <p>
+	 * Cached results are shared by the queries with the same SQL string, parameters, cache key (see
+	 * {@link #setCacheKey(Object)}) and {@link #doBeforeExecution(SQLConsumer)} consumers, since they may change the
+	 * result, e.g by setting the maximum number of rows. Queries executed on different shards (see
+	 * {@link com.github.fjdbc.connection.ShardedConnectionProvider}) do not share results.
+	 * @see QueryCache
+	 */
+	public Query<T> setCache(QueryCache cache) {
+		return setCache(cache, SqlTables.getReadTables(sql));
+	}
+
+	/**
+	 * Cache the objects extracted by this query in the specified cache. The cached objects are invalidated when one of
+	 * the specified tables is invalidated.
+	 * @see #setCache(QueryCache)
+	 */
+	public Query<T> setCache(QueryCache cache, String... tables) {
+		return setCache(cache, new LinkedHashSet<>(Arrays.asList(tables)));
+	}
+
+	private Query<T> setCache(QueryCache cache, Set<String> tables) {
+		this.cache = tables.isEmpty() ? null : cache;
+		this.cacheTables = SqlTables.normalize(tables);
+		return this;
+	}
+
+	/**
+	 * Set the key identifying the extraction in the cache: queries with the same SQL string, parameters and cache key
+	 * share their cached results. By default, the extractor itself is the key, so that extractors capturing different
+	 * values, e.g a column name, do not share results.
+	 * @see #setCache(QueryCache)
+	 */
+	public Query<T> setCacheKey(Object cacheKey) {
+		this.cacheKey = cacheKey;
+		return this;
+	}
+
+	private ResultSet executeQuery(Statement st) throws SQLException {
+		final ResultSet rs = isPrepared() ? ((PreparedStatement) st).executeQuery() : st.executeQuery(sql);
+		return columnIndexCache ? new ColumnIndexCachingResultSet(rs) : rs;
+	}
+
+	private Iterator<T> iterator(ResultSet rs) {
+		final Iterator<T> res = extractor.iterator(rs);
+		return prefetchSize == 0 ? res : new PrefetchingIterator<>(res, prefetchSize, prefetchThreadFactory);
+	}
+
+	private static void close(Iterator<?> it) {
+		if (it instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) it).close();
+			} catch (final RuntimeException e) {
+				throw e;
+			} catch (final Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private Statement createStatement(Connection cnx) throws SQLException {
+		final Statement st;
+		if (isPrepared()) {
+			st = resultSetHoldability == 0 ? cnx.prepareStatement(sql, resultSetType, resultSetConcurrency)
+					: cnx.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+		} else {
+			st = resultSetHoldability == 0 ? cnx.createStatement(resultSetType, resultSetConcurrency)
+					: cnx.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+		}
+		if (streamingDialect != null) {
+			streamingDialect.configure(st, fetchSize);
+		} else if (fetchSize != 0) {
+			st.setFetchSize(fetchSize);
+		}
+		if (fetchDirection != 0) st.setFetchDirection(fetchDirection);
+		return st;
+	}
+
+	private SQLConsumer<Connection> prepareConnection(Connection cnx) throws SQLException {
+		return streamingDialect == null ? null : streamingDialect.prepareConnection(cnx);
+	}
+
+	private static void restoreConnection(Connection cnx, SQLConsumer<Connection> restoreAction) {
+		if (restoreAction == null) return;
+		try {
+			restoreAction.accept(cnx);
+		} catch (final SQLException e) {
+			throw new RuntimeSQLException(e);
+		}
+	}
+
 	/**
 	 * Execute the query, then calls the specified callback for each object extracted from the {@link ResultSet}.
 	 */
 	public void forEach(Consumer<? super T> callback) {
-		Statement st = null;
+		if (cache == null) {
+			forEach(callback, null, null);
+			return;
+		}
+		// the binder is called once: its calls are replayed on the actual statement.
+		final ParameterRecorder recorder = ParameterRecorder.record(binder);
+		final PreparedStatementBinder replayBinder = recorder == null ? null : recorder.getReplayBinder();
+		final Query<T> replayQuery = binder == null || replayBinder == null ? this
+				: derive(sql, replayBinder, extractor);
+		final List<Object> parameters = recorder == null ? null : recorder.getFingerprint();
+		if (parameters == null) {
+			replayQuery.forEach(callback, null, null);
+			return;
+		}
+
+		// the same query returns different results on each shard.
+		final List<Object> key = Arrays.asList(sql, cacheKey == null ? extractor : cacheKey, parameters,
+				new ArrayList<>(beforeExecutionConsumers), ShardContext.current());
+		@SuppressWarnings("unchecked") final List<T> cached = (List<T>) cache.get(key);
+		if (cached != null) {
+			cached.forEach(callback);
+			return;
+		}
+		final long version = cache.getVersion(cacheTables);
+		final List<T> res = new ArrayList<>();
+		replayQuery.forEach(t -> {
+			res.add(t);
+			callback.accept(t);
+		}, null, null);
+		cache.put(key, cacheTables, version, res);
+	}
+
+	/**
+	 * Execute the query, then calls the specified callback for each object extracted from the {@link ResultSet}.
+	 * @param onStatementCreated
+	 *        Called once the statement is created, or {@code null}.
+	 * @param onStatementClosing
+	 *        Called before the statement is closed, or {@code null}.
+	 */
+	void forEach(Consumer<? super T> callback, Consumer<Statement> onStatementCreated,
+			Consumer<Statement> onStatementClosing) {
+		execute(rs -> {
+			final Iterator<T> it = iterator(rs);
+			try {
+				it.forEachRemaining(callback);
+			} finally {
+				close(it);
+			}
+		}, onStatementCreated, onStatementClosing);
+	}
+
+	/**
+	 * Execute the query, then pass the {@link ResultSet} to the specified consumer. Resources are released once the
+	 * consumer returns.
+	 * @param onStatementCreated
+	 *        Called once the statement is created, or {@code null}.
+	 * @param onStatementClosing
+	 *        Called before the statement is closed, or {@code null}.
+	 */
+	private void execute(SQLConsumer<ResultSet> resultSetConsumer, Consumer<Statement> onStatementCreated,
+			Consumer<Statement> onStatementClosing) {
 		Connection cnx = null;
 		try {
 			cnx = cnxProvider.borrow();
-			st = isPrepared() ? cnx.prepareStatement(sql) : cnx.createStatement();
+			execute(cnx, resultSetConsumer, onStatementCreated, onStatementClosing);
+		} catch (final SQLException e) {
+			throw new RuntimeSQLException("Error executing query:\n" + sql, e);
+		} finally {
+			cnxProvider.giveBack(cnx);
+		}
+	}
+
+	/**
+	 * Execute the query using the specified connection, then pass the {@link ResultSet} to the specified consumer.
+	 * The statement is closed once the consumer returns, but the connection is left open.
+	 */
+	private void execute(Connection cnx, SQLConsumer<ResultSet> resultSetConsumer,
+			Consumer<Statement> onStatementCreated, Consumer<Statement> onStatementClosing) throws SQLException {
+		Statement st = null;
+		SQLConsumer<Connection> restoreAction = null;
+		try {
+			restoreAction = prepareConnection(cnx);
+			st = createStatement(cnx);
+			StatementFuture.statementCreated(st);
+			if (onStatementCreated != null) onStatementCreated.accept(st);
 			if (isPrepared()) binder.bind((PreparedStatement) st, new IntSequence(1));
 			executeBeforeExecutionConsumers(st);
-			final ResultSet rs = isPrepared() ? ((PreparedStatement) st).executeQuery() : st.executeQuery(sql);
+			final ResultSet rs = executeQuery(st);
 			executeAfterExecutionConsumers(st);
-			extractor.iterator(rs).forEachRemaining(callback);
-		} catch (final SQLException e) {
-			throw new RuntimeSQLException("Error executing query:\n" + sql, e);
+			resultSetConsumer.accept(rs);
 		} finally {
+			if (st != null && onStatementClosing != null) onStatementClosing.accept(st);
+			if (st != null) StatementFuture.statementClosing(st);
 			close(st);
-			cnxProvider.giveBack(cnx);
+			restoreConnection(cnx, restoreAction);
+		}
+	}
+
+	/**
+	 * Execute the query using the specified connection, then returns a list of objects extracted from the
+	 * {@link ResultSet}. The connection is left open. The cache is not used.
+	 */
+	List<T> toList(Connection cnx) throws SQLException {
+		final List<T> res = new ArrayList<>();
+		execute(cnx, rs -> extractAll(rs, res), null, null);
+		return res;
+	}
+
+	/**
+	 * Add the objects extracted from the specified {@link ResultSet} to the specified list. The statement options of
+	 * this query are not used. The ResultSet is closed once all objects are extracted.
+	 */
+	void extractAll(ResultSet rs, List<? super T> res) {
+		final Iterator<T> it = extractor.iterator(columnIndexCache ? new ColumnIndexCachingResultSet(rs) : rs);
+		while (it.hasNext()) {
+			StatementFuture.checkCancelled();
+			res.add(it.next());
 		}
 	}
 
+	/**
+	 * Return {@code true} if this query can be executed in the same statement as other queries, i.e if it uses the
+	 * default statement options.
+	 */
+	boolean isCombinable() {
+		return resultSetType == ResultSet.TYPE_FORWARD_ONLY && resultSetConcurrency == ResultSet.CONCUR_READ_ONLY
+				&& resultSetHoldability == 0 && fetchSize == 0 && fetchDirection == 0 && streamingDialect == null;
+	}
+
+	/**
+	 * Return {@code true} if this query and the specified query have the same statement callbacks, see
+	 * {@link #doBeforeExecution(SQLConsumer)} and {@link #doAfterExecution(SQLConsumer)}.
+	 */
+	boolean hasSameCallbacks(Query<?> other) {
+		return beforeExecutionConsumers.equals(other.beforeExecutionConsumers)
+				&& afterExecutionConsumers.equals(other.afterExecutionConsumers);
+	}
+
+	/**
+	 * Execute the query asynchronously, then calls the specified callback for each object extracted from the
+	 * {@link ResultSet}.
+	 * <p>
+	 * The query is executed by the default executor, which uses virtual threads if the runtime supports them.
+	 * @see #forEachAsync(Consumer, Executor)
+	 */
+	public CompletableFuture<Void> forEachAsync(Consumer<? super T> callback) {
+		return forEachAsync(callback, Threads.getDefaultExecutor());
+	}
+
+	/**
+	 * Execute the query asynchronously using the specified executor, then calls the specified callback for each
+	 * object extracted from the {@link ResultSet}. The callback is called from the thread executing the query.
+	 * <p>
+	 * Cancelling the returned future cancels the statement, see {@link Statement#cancel()}, and stops the iteration
+	 * before the next object. The connection is given back in all cases.
+	 */
+	public CompletableFuture<Void> forEachAsync(Consumer<? super T> callback, Executor executor) {
+		return StatementFuture.supplyAsync(() -> {
+			forEach(t -> {
+				StatementFuture.checkCancelled();
+				callback.accept(t);
+			});
+			return null;
+		}, executor);
+	}
+
+	/**
+	 * Execute the query asynchronously, then returns a list of objects extracted from the {@link ResultSet}.
+	 * <p>
+	 * The query is executed by the default executor, which uses virtual threads if the runtime supports them.
+	 * @see #toListAsync(Executor)
+	 */
+	public CompletableFuture<List<T>> toListAsync() {
+		return toListAsync(Threads.getDefaultExecutor());
+	}
+
+	/**
+	 * Execute the query asynchronously using the specified executor, then returns a list of objects extracted from
+	 * the {@link ResultSet}.
+	 * <p>
+	 * Cancelling the returned future cancels the statement, see {@link Statement#cancel()}. The connection is given
+	 * back in all cases.
+	 */
+	public CompletableFuture<List<T>> toListAsync(Executor executor) {
+		return StatementFuture.supplyAsync(() -> {
+			final List<T> res = new ArrayList<>();
+			forEach(t -> {
+				StatementFuture.checkCancelled();
+				res.add(t);
+			});
+			return res;
+		}, executor);
+	}
+
+	/**
+	 * Return a publisher of the objects extracted from the {@link ResultSet}. Rows are read when subscribers signal
+	 * demand, and each subscriber executes the query on its own connection. Prefetching is not used.
+	 * <p>
+	 * On Java 9+, use {@code org.reactivestreams.FlowAdapters.toFlowPublisher} to get a
+	 * {@code java.util.concurrent.Flow.Publisher}.
+	 * <p>
+	 * Equivalent to {@code publisher(1000, executor)}, where {@code executor} is the default executor, which uses
+	 * virtual threads if the runtime supports them.
+	 */
+	public Publisher<T> publisher() {
+		return publisher(1000, Threads.getDefaultExecutor());
+	}
+
+	/**
+	 * Return a publisher of the objects extracted from the {@link ResultSet}.
+	 * <p>
+	 * The fetch size of the ResultSet is set to the demand of the subscriber, so that rows are not fetched before they
+	 * are requested.
+	 * @param maxFetchSize
+	 *        The maximum fetch size, for subscribers requesting many objects at a time.
+	 * @param executor
+	 *        The executor from which the subscribers are called.
+	 * @see #publisher()
+	 */
+	public Publisher<T> publisher(int maxFetchSize, Executor executor) {
+		return new QueryPublisher<>(this, maxFetchSize, executor);
+	}
+
+	/**
+	 * Execute the query, then calls the specified callback for each {@code int} extracted from the {@link ResultSet}.
+	 * <p>
+	 * Values are not boxed.
+	 */
+	public void forEachInt(IntRowExtractor intExtractor, IntConsumer callback) {
+		execute(rs -> {
+			while (rs.next()) {
+				StatementFuture.checkCancelled();
+				callback.accept(intExtractor.extract(rs));
+			}
+		}, null, null);
+	}
+
+	/**
+	 * Execute the query, then calls the specified callback for each {@code long} extracted from the
+	 * {@link ResultSet}.
+	 * <p>
+	 * Values are not boxed.
+	 */
+	public void forEachLong(LongRowExtractor longExtractor, LongConsumer callback) {
+		execute(rs -> {
+			while (rs.next()) {
+				StatementFuture.checkCancelled();
+				callback.accept(longExtractor.extract(rs));
+			}
+		}, null, null);
+	}
+
+	/**
+	 * Execute the query, then calls the specified callback for each {@code double} extracted from the
+	 * {@link ResultSet}.
+	 * <p>
+	 * Values are not boxed.
+	 */
+	public void forEachDouble(DoubleRowExtractor doubleExtractor, DoubleConsumer callback) {
+		execute(rs -> {
+			while (rs.next()) {
+				StatementFuture.checkCancelled();
+				callback.accept(doubleExtractor.extract(rs));
+			}
+		}, null, null);
+	}
+
+	/**
+	 * Execute the query, then returns an array of the {@code int} values extracted from the {@link ResultSet}.
+	 */
+	public int[] toIntArray(IntRowExtractor intExtractor) {
+		final IntStream.Builder res = IntStream.builder();
+		forEachInt(intExtractor, res);
+		return res.build().toArray();
+	}
+
+	/**
+	 * Execute the query, then returns an array of the {@code long} values extracted from the {@link ResultSet}.
+	 */
+	public long[] toLongArray(LongRowExtractor longExtractor) {
+		final LongStream.Builder res = LongStream.builder();
+		forEachLong(longExtractor, res);
+		return res.build().toArray();
+	}
+
+	/**
+	 * Execute the query, then returns an array of the {@code double} values extracted from the {@link ResultSet}.
+	 */
+	public double[] toDoubleArray(DoubleRowExtractor doubleExtractor) {
+		final DoubleStream.Builder res = DoubleStream.builder();
+		forEachDouble(doubleExtractor, res);
+		return res.build().toArray();
+	}
+
+	/**
+	 * Execute the query, then returns a stream of the {@code int} values extracted from the {@link ResultSet}.
+	 * <p>
+	 * Warning: the returned stream must be closed manually by the caller.
+	 */
+	public IntStream intStream(IntRowExtractor intExtractor) {
+		return stream(rs -> StreamSupport
+				.intStream(Spliterators.spliteratorUnknownSize(intExtractor.iterator(rs), Spliterator.ORDERED), false));
+	}
+
+	/**
+	 * Execute the query, then returns a stream of the {@code long} values extracted from the {@link ResultSet}.
+	 * <p>
+	 * Warning: the returned stream must be closed manually by the caller.
+	 */
+	public LongStream longStream(LongRowExtractor longExtractor) {
+		return stream(rs -> StreamSupport.longStream(
+				Spliterators.spliteratorUnknownSize(longExtractor.iterator(rs), Spliterator.ORDERED), false));
+	}
+
+	/**
+	 * Execute the query, then returns a stream of the {@code double} values extracted from the {@link ResultSet}.
+	 * <p>
+	 * Warning: the returned stream must be closed manually by the caller.
+	 */
+	public DoubleStream doubleStream(DoubleRowExtractor doubleExtractor) {
+		return stream(rs -> StreamSupport.doubleStream(
+				Spliterators.spliteratorUnknownSize(doubleExtractor.iterator(rs), Spliterator.ORDERED), false));
+	}
+
+	/**
+	 * Split this query in several queries, each one reading a range of values of the specified column. The queries
+	 * are executed concurrently, each on its own connection.
+	 * <p>
+	 * The range of values is computed by querying the min and max values of the column, then split in
+	 * {@code nPartitions} ranges of equal size.
+	 * @param column
+	 *        A column of the query, of integer type.
+	 */
+	public PartitionedQuery<T> partitionedBy(String column, int nPartitions) {
+		return new PartitionedQuery<>(this, column, nPartitions);
+	}
+
+	/**
+	 * Split this query in several queries, each one reading a range of values of the specified column. The queries
+	 * are executed concurrently, each on its own connection.
+	 * <p>
+	 * {@code n} boundaries define {@code n + 1} partitions: values lower than {@code boundaries[0]} (including
+	 * {@code null} values), values from {@code boundaries[0]} (inclusive) to {@code boundaries[1]} (exclusive), etc.
+	 * @param column
+	 *        A column of the query, of integer type.
+	 * @param boundaries
+	 *        The partition boundaries, in increasing order.
+	 */
+	public PartitionedQuery<T> partitionedBy(String column, long... boundaries) {
+		return new PartitionedQuery<>(this, column, boundaries);
+	}
+
+	/**
+	 * Execute this query on each of the specified shards, and gather the results.
+	 * @param shards
+	 *        The providers of connections to each shard.
+	 * @see com.github.fjdbc.connection.ShardedConnectionProvider#getShards()
+	 */
+	public ShardedQuery<T> scatter(List<? extends ConnectionProvider> shards) {
+		return new ShardedQuery<>(this, shards);
+	}
+
+	/**
+	 * Read this query page by page, using keyset pagination: each page is read by a separate query, on a connection
+	 * borrowed for this page only.
+	 * <p>
+	 * The extractor must map each object to a single row, see {@link SingleRowExtractor}.
+	 * @param keyColumn
+	 *        A column of the query whose values are unique and not {@code null}, ideally indexed. Pages are sorted by
+	 *        this column.
+	 * @param pageSize
+	 *        The maximum number of rows per page.
+	 */
+	public KeysetQuery<T> keyset(String keyColumn, int pageSize) {
+		return new KeysetQuery<>(this, keyColumn, pageSize);
+	}
+
+	/**
+	 * Create a query with the same settings as this query, but with a different SQL string and binder.
+	 */
+	<U> Query<U> derive(String _sql, PreparedStatementBinder _binder, ResultSetExtractor<U> _extractor) {
+		final Query<U> res = new Query<>(cnxProvider, _sql, _binder, _extractor);
+		res.beforeExecutionConsumers.addAll(beforeExecutionConsumers);
+		res.afterExecutionConsumers.addAll(afterExecutionConsumers);
+		res.resultSetType = resultSetType;
+		res.resultSetConcurrency = resultSetConcurrency;
+		res.resultSetHoldability = resultSetHoldability;
+		res.fetchSize = fetchSize;
+		res.fetchDirection = fetchDirection;
+		res.streamingDialect = streamingDialect;
+		res.columnIndexCache = columnIndexCache;
+		return res;
+	}
+
+	/**
+	 * Create a query with the same settings as this query, executed using another connection provider.
+	 */
+	Query<T> withConnectionProvider(ConnectionProvider _cnxProvider) {
+		final Query<T> res = derive(sql, binder, extractor);
+		res.cnxProvider = _cnxProvider;
+		return res;
+	}
+
+	ResultSetExtractor<T> getExtractor() {
+		return extractor;
+	}
+
+	PreparedStatementBinder getBinder() {
+		return binder;
+	}
+
 	/**
 	 * Execute the query, then loop through the ResultSet, discarding the extracted objects.
 	 */
@@ -156,26 +805,95 @@ public class Query<T> {
 		forEach(c -> {});
 	}
 
+	/**
+	 * Execute the query, then calls the specified callback for each chunk of {@code chunkSize} rows read from the
+	 * {@link ResultSet}.
+	 * <p>
+	 * The extractor of this query is not used: values are read according to the column types from
+	 * {@link java.sql.ResultSetMetaData}.
+	 * <p>
+	 * To avoid allocations, the same {@link ColumnChunk} instance is filled again after each call to the callback: it
+	 * must not be used after the callback returns.
+	 */
+	public void forEachChunk(int chunkSize, Consumer<ColumnChunk> callback) {
+		assert chunkSize > 0;
+		execute(rs -> {
+			final ColumnChunk chunk = ColumnChunk.create(rs.getMetaData(), chunkSize);
+			boolean moreRows = true;
+			while (moreRows) {
+				moreRows = chunk.fill(rs);
+				if (chunk.getRowCount() > 0) callback.accept(chunk);
+			}
+		}, null, null);
+	}
+
+	/**
+	 * Execute the query, then returns a stream of chunks of {@code chunkSize} rows read from the {@link ResultSet}.
+	 * <p>
+	 * The extractor of this query is not used: values are read according to the column types from
+	 * {@link java.sql.ResultSetMetaData}. Each chunk is a new instance.
+	 * <p>
+	 * Warning: the returned stream must be closed manually by the caller.
+	 */
+	public Stream<ColumnChunk> chunkStream(int chunkSize) {
+		assert chunkSize > 0;
+		return stream(rs -> StreamSupport.stream(Spliterators
+				.spliteratorUnknownSize(new ColumnChunk.ChunkIterator(rs, chunkSize), Spliterator.ORDERED), false));
+	}
+
 	/**
 	 * Warning: the returned stream must be closed manually by the caller.
 	 */
 	public Stream<T> stream() {
+		return stream(rs -> {
+			final Iterator<T> it = iterator(rs);
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false)
+					.onClose(() -> close(it));
+		});
+	}
+
+	/**
+	 * Execute the query, then create a stream from the {@link ResultSet}. The stream keeps the deadline of the current
+	 * thread, if any.
+	 * <p>
+	 * Resources are released when the stream is closed, or as soon as the {@link ResultSet} is closed, i.e when the
+	 * last row is read or reading fails.
+	 */
+	<S extends BaseStream<?, S>> S stream(Function<ResultSet, S> streamFactory) {
+		final Deadline deadline = Deadline.current();
+		Connection cnx = null;
+		Statement st = null;
+		SQLConsumer<Connection> restoreAction = null;
 		try {
-			final Connection cnx = cnxProvider.borrow();
-			final Statement st = isPrepared() ? cnx.prepareStatement(sql) : cnx.createStatement();
+			cnx = cnxProvider.borrow();
+			restoreAction = prepareConnection(cnx);
+			st = createStatement(cnx);
+			if (deadline != null) deadline.statementCreated(st);
 			if (isPrepared()) binder.bind((PreparedStatement) st, new IntSequence(1));
 			executeBeforeExecutionConsumers(st);
-			final ResultSet rs = isPrepared() ? ((PreparedStatement) st).executeQuery() : st.executeQuery(sql);
+			final StreamResources resources = new StreamResources(cnxProvider, cnx, st, restoreAction, deadline);
+			final ResultSet rs = new ResultSetDelegate(executeQuery(st)) {
+				@Override
+				public void close() throws SQLException {
+					try {
+						super.close();
+					} finally {
+						if (resources.release()) autoReleasedStreams.increment();
+					}
+				}
+			};
 			executeAfterExecutionConsumers(st);
-			final Stream<T> res = StreamSupport
-					.stream(Spliterators.spliteratorUnknownSize(extractor.iterator(rs), Spliterator.ORDERED), false);
-			res.onClose(() -> {
-				closeStatement(rs);
+			return streamFactory.apply(rs).onClose(resources::release);
+		} catch (final SQLException | RuntimeException e) {
+			if (st != null && deadline != null) deadline.statementClosing(st);
+			closeQuietly(st);
+			try {
+				restoreConnection(cnx, restoreAction);
+			} finally {
 				cnxProvider.giveBack(cnx);
-			});
-			return res;
-		} catch (final SQLException e) {
-			throw new RuntimeSQLException(e);
+			}
+			if (e instanceof RuntimeException) throw (RuntimeException) e;
+			throw new RuntimeSQLException("Error executing query:\n" + sql, (SQLException) e);
 		}
 	}
 
@@ -220,6 +938,20 @@ public class Query<T> {
 		}
 	}
 
+	/**
+	 * Check the specified deadline, if not {@code null}. The ResultSet is closed if the deadline is exceeded or
+	 * cancelled.
+	 */
+	static void checkDeadline(Deadline deadline, ResultSet rs) {
+		if (deadline == null) return;
+		try {
+			deadline.check();
+		} catch (final RuntimeException e) {
+			close(rs);
+			throw e;
+		}
+	}
+
 	static void close(ResultSet rs) {
 		try {
 			if (rs != null) rs.close();
@@ -228,9 +960,54 @@ public class Query<T> {
 		}
 	}
 
-	private static void closeStatement(ResultSet rs) {
+	/**
+	 * Return the number of streams whose connection was released before the stream was closed, because all rows were
+	 * read or reading failed. Streams that are never closed nor fully read hold their connection; see
+	 * {@link com.github.fjdbc.connection.LeakDetectingConnectionProvider} to find them.
+	 */
+	public static long getAutoReleasedStreamCount() {
+		return autoReleasedStreams.sum();
+	}
+
+	/**
+	 * The resources held by a stream, released only once.
+	 */
+	private static class StreamResources {
+		private final ConnectionProvider cnxProvider;
+		private final Connection cnx;
+		private final Statement st;
+		private final SQLConsumer<Connection> restoreAction;
+		private final Deadline deadline;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		public StreamResources(ConnectionProvider cnxProvider, Connection cnx, Statement st,
+				SQLConsumer<Connection> restoreAction, Deadline deadline) {
+			this.cnxProvider = cnxProvider;
+			this.cnx = cnx;
+			this.st = st;
+			this.restoreAction = restoreAction;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return {@code true} if the resources were released by this call.
+		 */
+		public boolean release() {
+			if (!released.compareAndSet(false, true)) return false;
+			try {
+				if (deadline != null) deadline.statementClosing(st);
+				closeQuietly(st);
+				restoreConnection(cnx, restoreAction);
+			} finally {
+				cnxProvider.giveBack(cnx);
+			}
+			return true;
+		}
+	}
+
+	private static void closeQuietly(Statement st) {
 		try {
-			if (rs != null) rs.getStatement().close();
+			if (st != null) st.close();
 		} catch (final SQLException e) {
 			// no op
 		}
@@ -252,6 +1029,107 @@ public class Query<T> {
 		return res;
 	}
 
+	/**
+	 * Execute the query, then returns a list of objects extracted from the {@link ResultSet}, stored on the heap up to
+	 * the specified memory budget, then in a temporary file. The list must be closed to delete the file.
+	 * <p>
+	 * Unlike {@link #toList()}, the heap usage is bounded regardless of the number of rows. The cache is not used.
+	 * @param codec
+	 *        Encode the objects stored in the file.
+	 * @param memoryBudget
+	 *        The maximum encoded size, in bytes, of the objects kept on the heap.
+	 * @see SpillableList
+	 */
+	public SpillableList<T> toSpillableList(RowCodec<T> codec, long memoryBudget) {
+		return toSpillableList(codec, memoryBudget, null);
+	}
+
+	/**
+	 * Same as {@link #toSpillableList(RowCodec, long)}, but the temporary file is created in the specified
+	 * directory.
+	 */
+	public SpillableList<T> toSpillableList(RowCodec<T> codec, long memoryBudget, Path directory) {
+		final SpillableList<T> res = new SpillableList<>(codec, memoryBudget, directory);
+		try {
+			forEach(t -> {
+				try {
+					res.append(t);
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, null, null);
+			res.seal();
+		} catch (final IOException e) {
+			res.close();
+			throw new UncheckedIOException(e);
+		} catch (final RuntimeException e) {
+			res.close();
+			throw e;
+		}
+		return res;
+	}
+
+	/**
+	 * Execute the query, then copy the rows of the {@link ResultSet} to an {@link OffHeapTable}. The extractor of this
+	 * query is not used. The cache is not used. The table must be closed to release its memory.
+	 * @see com.github.fjdbc.Fjdbc#offHeapTable(String, String)
+	 */
+	public OffHeapTable toOffHeapTable() {
+		return toOffHeapTable(null);
+	}
+
+	/**
+	 * Execute the query, then copy the rows of the {@link ResultSet} to an {@link OffHeapTable} indexed by the
+	 * specified column, see {@link OffHeapTable#find(long)}. The extractor of this query is not used. The cache is not
+	 * used. The table must be closed to release its memory.
+	 * @param keyColumn
+	 *        The label of an integer column with unique values. Rows with a null key are not indexed.
+	 * @throws IllegalArgumentException
+	 *         if the key column is not an integer column, or has duplicate values.
+	 */
+	public OffHeapTable toOffHeapTable(String keyColumn) {
+		final List<OffHeapTable> res = new ArrayList<>(1);
+		execute(rs -> res.add(OffHeapTable.load(rs, keyColumn)), null, null);
+		return res.get(0);
+	}
+
+	/**
+	 * Execute the query, then write the rows of the {@link ResultSet} to the specified file, which is created or
+	 * truncated. The extractor of this query is not used. The cache is not used.
+	 * @see ExportFormat
+	 */
+	public ExportStats exportTo(Path path, ExportFormat format) {
+		return exportTo(path, format, false);
+	}
+
+	/**
+	 * Same as {@link #exportTo(Path, ExportFormat)}, but the file is compressed using gzip if {@code gzip} is
+	 * {@code true}.
+	 */
+	public ExportStats exportTo(Path path, ExportFormat format, boolean gzip) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			if (!gzip) return exportTo(channel, format);
+			try (GZIPOutputStream gzipOut = new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16)) {
+				return exportTo(Channels.newChannel(gzipOut), format);
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Execute the query, then write the rows of the {@link ResultSet} to the specified channel, which is left open.
+	 * The extractor of this query is not used. The cache is not used.
+	 * @see ExportFormat
+	 */
+	public ExportStats exportTo(WritableByteChannel channel, ExportFormat format) {
+		final long start = System.nanoTime();
+		final QueryExporter exporter = new QueryExporter(channel, format);
+		execute(exporter::export, null, null);
+		return exporter.getStats(System.nanoTime() - start);
+	}
+
 	/**
 	 * Execute the query, then returns the single object extracted from the {@link ResultSet}.<br>
 	 * If no object could be extracted, returns {@code null}
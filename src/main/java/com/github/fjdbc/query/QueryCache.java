@@ -0,0 +1,324 @@
+package com.github.fjdbc.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+import com.github.fjdbc.internal.SqlTables;
+
+/**
+ * A cache of query results, bounded by number of entries, by total weight, and by age.
+ * <p>
+ * An entry is keyed by the SQL string, the extractor instance (or the cache key, see
+ * {@link Query#setCacheKey(Object)}), the parameters bound to the {@link java.sql.PreparedStatement}, the statement
+ * options and the selected shards. It depends on the tables read by the query: it is removed when one of these
+ * tables is invalidated, see {@link #invalidate(String...)}. When the cache is full, the least recently used entries
+ * are evicted first.
+ * <p>
+ * The cached objects are shared by all executions of the query: they should be immutable.
+ * <p>
+ * This class is thread safe.
+ * @see com.github.fjdbc.Fjdbc#Fjdbc(com.github.fjdbc.ConnectionProvider, QueryCache)
+ * @see Query#setCache(QueryCache)
+ */
+public class QueryCache {
+	/**
+	 * The estimated weight of a cache entry, excluding the weight of the cached objects.
+	 */
+	private static final long ENTRY_WEIGHT = 128;
+
+	private final int maxEntries;
+	private final long maxWeight;
+	private final long ttlNanos;
+	private final ToLongFunction<Object> weigher;
+	// not synchronized, which would pin the carrier of virtual threads.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, Set<List<Object>>> keysByTable = new HashMap<>();
+	private final Map<String, Long> tableVersions = new HashMap<>();
+	private long globalVersion = 0;
+	private long weight = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	/**
+	 * Create a cache using the default weigher, see {@link #estimateWeight(Object)}.
+	 * @param maxEntries
+	 *        The maximum number of cached query results.
+	 * @param maxWeight
+	 *        The maximum total weight of the cached objects.
+	 * @param ttlMillis
+	 *        The maximum age of a cached query result, in milliseconds, or {@code 0} if cached results do not expire.
+	 */
+	public QueryCache(int maxEntries, long maxWeight, long ttlMillis) {
+		this(maxEntries, maxWeight, ttlMillis, QueryCache::estimateWeight);
+	}
+
+	/**
+	 * @param maxEntries
+	 *        The maximum number of cached query results.
+	 * @param maxWeight
+	 *        The maximum total weight of the cached objects.
+	 * @param ttlMillis
+	 *        The maximum age of a cached query result, in milliseconds, or {@code 0} if cached results do not expire.
+	 * @param weigher
+	 *        Computes the weight of a cached object, typically its approximate size in bytes.
+	 */
+	public QueryCache(int maxEntries, long maxWeight, long ttlMillis, ToLongFunction<Object> weigher) {
+		assert maxEntries > 0;
+		assert maxWeight > 0;
+		assert ttlMillis >= 0;
+		assert weigher != null;
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.weigher = weigher;
+	}
+
+	/**
+	 * A rough estimate of the size of an object in bytes: strings, numbers and byte arrays are estimated from their
+	 * content, other objects weigh 64.
+	 */
+	public static long estimateWeight(Object o) {
+		if (o instanceof String) return 40 + 2 * ((String) o).length();
+		if (o instanceof Number) return 16;
+		if (o instanceof byte[]) return 16 + ((byte[]) o).length;
+		return 64;
+	}
+
+	/**
+	 * Return the cached objects, or {@code null} if the key is not cached.
+	 */
+	List<?> get(List<Object> key) {
+		lock.lock();
+		try {
+			final Entry entry = entries.get(key);
+			if (entry != null && ttlNanos != 0 && System.nanoTime() - entry.creationTime > ttlNanos) {
+				remove(key);
+				evictionCount++;
+				missCount++;
+				return null;
+			}
+			if (entry == null) {
+				missCount++;
+				return null;
+			}
+			hitCount++;
+			return entry.values;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return the current version of the specified tables. The version changes each time one of the tables is
+	 * invalidated.
+	 */
+	long getVersion(Set<String> tables) {
+		lock.lock();
+		try {
+			// versions only increase, so the sum changes each time one of the versions changes.
+			long res = globalVersion;
+			for (final String table : tables) {
+				res += tableVersions.getOrDefault(table, 0L);
+			}
+			return res;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cache the objects extracted by a query.
+	 * @param tables
+	 *        The normalized names of the tables read by the query.
+	 * @param version
+	 *        The version of the tables before the query was executed, as returned by {@link #getVersion(Set)}. If
+	 *        one of the tables was invalidated since, the objects are not cached since they may be stale.
+	 */
+	void put(List<Object> key, Set<String> tables, long version, List<?> values) {
+		lock.lock();
+		try {
+			if (getVersion(tables) != version) return;
+			long entryWeight = ENTRY_WEIGHT;
+			for (final Object o : key) {
+				entryWeight += o instanceof String ? weigher.applyAsLong(o) : 0;
+			}
+			for (final Object o : values) {
+				entryWeight += o == null ? 0 : weigher.applyAsLong(o);
+			}
+			if (entryWeight > maxWeight) return;
+
+			remove(key);
+			entries.put(key, new Entry(values, tables, entryWeight, System.nanoTime()));
+			weight += entryWeight;
+			for (final String table : tables) {
+				keysByTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+			}
+
+			final Iterator<Map.Entry<List<Object>, Entry>> it = entries.entrySet().iterator();
+			while (entries.size() > maxEntries || weight > maxWeight) {
+				final Map.Entry<List<Object>, Entry> eldest = it.next();
+				it.remove();
+				removed(eldest.getKey(), eldest.getValue());
+				evictionCount++;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void remove(List<Object> key) {
+		final Entry entry = entries.remove(key);
+		if (entry != null) removed(key, entry);
+	}
+
+	private void removed(List<Object> key, Entry entry) {
+		weight -= entry.weight;
+		for (final String table : entry.tables) {
+			final Set<List<Object>> keys = keysByTable.get(table);
+			keys.remove(key);
+			if (keys.isEmpty()) keysByTable.remove(table);
+		}
+	}
+
+	/**
+	 * Remove the cached results of the queries that read one of the specified tables.
+	 * <p>
+	 * Table names are case insensitive, and schema prefixes are ignored.
+	 */
+	public void invalidate(String... tables) {
+		invalidate(Arrays.asList(tables));
+	}
+
+	/**
+	 * Remove the cached results of the queries that read one of the specified tables.
+	 * <p>
+	 * Table names are case insensitive, and schema prefixes are ignored.
+	 */
+	public void invalidate(Collection<String> tables) {
+		lock.lock();
+		try {
+			for (final String table : tables) {
+				final String t = SqlTables.normalize(table);
+				tableVersions.merge(t, 1L, Long::sum);
+				final Set<List<Object>> keys = keysByTable.get(t);
+				if (keys == null) continue;
+				for (final List<Object> key : new ArrayList<>(keys)) {
+					remove(key);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove all cached results.
+	 */
+	public void invalidateAll() {
+		lock.lock();
+		try {
+			globalVersion++;
+			entries.clear();
+			keysByTable.clear();
+			weight = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of cached query results.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The total weight of the cached objects.
+	 */
+	public long getWeight() {
+		lock.lock();
+		try {
+			return weight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		lock.lock();
+		try {
+			return hitCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMissCount() {
+		lock.lock();
+		try {
+			return missCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of entries removed because the cache was full or because they expired. Invalidated entries are not
+	 * counted.
+	 */
+	public long getEvictionCount() {
+		lock.lock();
+		try {
+			return evictionCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The ratio of lookups that found a cached result, or {@code 0} if there was no lookup yet.
+	 */
+	public double getHitRatio() {
+		lock.lock();
+		try {
+			final long total = hitCount + missCount;
+			return total == 0 ? 0 : (double) hitCount / total;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static class Entry {
+		private final List<?> values;
+		private final Set<String> tables;
+		private final long weight;
+		private final long creationTime;
+
+		public Entry(List<?> values, Set<String> tables, long weight, long creationTime) {
+			this.values = Collections.unmodifiableList(values);
+			this.tables = tables;
+			this.weight = weight;
+			this.creationTime = creationTime;
+		}
+	}
+}
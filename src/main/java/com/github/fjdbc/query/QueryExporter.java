@@ -0,0 +1,378 @@
+package com.github.fjdbc.query;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import com.github.fjdbc.internal.FileRowReader;
+import com.github.fjdbc.internal.StatementFuture;
+import com.github.fjdbc.query.ColumnChunk.ColumnType;
+
+/**
+ * Write the rows of a {@link ResultSet} to a channel, in one of the {@link ExportFormat} formats.
+ * <p>
+ * Values are encoded directly into reusable direct buffers: numbers and strings are not converted to intermediate
+ * byte arrays, except floating-point numbers.
+ */
+class QueryExporter {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int BLOCK_SIZE = 4096;
+	private static final int VERSION = 1;
+
+	private final WritableByteChannel channel;
+	private final ExportFormat format;
+	private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final byte[] digits = new byte[20];
+	private ColumnType[] types;
+	/**
+	 * Whether each column is a boolean column, written as an int column: 1 for true, 0 for false.
+	 */
+	private boolean[] booleans;
+	private long rowCount = 0;
+	private long byteCount = 0;
+
+	public QueryExporter(WritableByteChannel channel, ExportFormat format) {
+		assert channel != null;
+		assert format != null;
+		this.channel = channel;
+		this.format = format;
+	}
+
+	public void export(ResultSet rs) throws SQLException {
+		final ResultSetMetaData meta = rs.getMetaData();
+		types = new ColumnType[meta.getColumnCount()];
+		booleans = new boolean[types.length];
+		final String[] labels = new String[types.length];
+		for (int i = 0; i < types.length; i++) {
+			final int sqlType = meta.getColumnType(i + 1);
+			// some drivers, e.g PostgreSQL, report booleans as BIT and return them as t or f.
+			booleans[i] = sqlType == Types.BIT || sqlType == Types.BOOLEAN;
+			types[i] = getColumnType(meta, i + 1);
+			labels[i] = meta.getColumnLabel(i + 1);
+		}
+		try {
+			if (format == ExportFormat.BINARY) {
+				exportBinary(rs, labels);
+			} else {
+				exportText(rs, labels);
+			}
+			flush();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Unlike {@link ColumnChunk}, exact numeric columns with a scale are written as strings, so that no precision is
+	 * lost.
+	 */
+	private static ColumnType getColumnType(ResultSetMetaData meta, int column) throws SQLException {
+		switch (meta.getColumnType(column)) {
+		case Types.BIT:
+		case Types.BOOLEAN:
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+			return ColumnType.INT;
+		case Types.BIGINT:
+			return ColumnType.LONG;
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+			final int precision = meta.getPrecision(column);
+			if (meta.getScale(column) != 0 || precision <= 0 || precision > 18) return ColumnType.STRING;
+			return precision <= 9 ? ColumnType.INT : ColumnType.LONG;
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return ColumnType.DOUBLE;
+		default:
+			return ColumnType.STRING;
+		}
+	}
+
+	public ExportStats getStats(long elapsedNanos) {
+		return new ExportStats(rowCount, byteCount, elapsedNanos);
+	}
+
+	private void exportText(ResultSet rs, String[] labels) throws SQLException, IOException {
+		final boolean csv = format == ExportFormat.CSV;
+		final byte separator = (byte) (csv ? ',' : '\t');
+		for (int i = 0; i < labels.length; i++) {
+			if (i > 0) put(separator);
+			putText(labels[i], csv);
+		}
+		putLineEnd(csv);
+
+		while (rs.next()) {
+			StatementFuture.checkCancelled();
+			for (int i = 0; i < types.length; i++) {
+				if (i > 0) put(separator);
+				final int column = i + 1;
+				switch (types[i]) {
+				case INT:
+				case LONG:
+					final long l = booleans[i] ? (rs.getBoolean(column) ? 1 : 0) : rs.getLong(column);
+					if (rs.wasNull()) {
+						putNull(csv);
+					} else {
+						putLong(l);
+					}
+					break;
+				case DOUBLE:
+					final double d = rs.getDouble(column);
+					if (rs.wasNull()) {
+						putNull(csv);
+					} else {
+						putText(Double.toString(d), csv);
+					}
+					break;
+				default:
+					final String s = rs.getString(column);
+					if (s == null) {
+						putNull(csv);
+					} else {
+						putText(s, csv);
+					}
+				}
+			}
+			putLineEnd(csv);
+			rowCount++;
+		}
+	}
+
+	private void putText(String s, boolean csv) throws IOException {
+		if (csv) {
+			final boolean quoted = needsQuotes(s);
+			if (quoted) put((byte) '"');
+			for (int i = 0; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				if (c == '"') put((byte) '"');
+				i = putChar(s, i);
+			}
+			if (quoted) put((byte) '"');
+		} else {
+			for (int i = 0; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				final char escaped = c == '\t' ? 't' : c == '\n' ? 'n' : c == '\r' ? 'r' : c == '\\' ? '\\' : 0;
+				if (escaped == 0) {
+					i = putChar(s, i);
+				} else {
+					put((byte) '\\');
+					put((byte) escaped);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The empty string is quoted, since an empty value is null.
+	 */
+	private static boolean needsQuotes(String s) {
+		if (s.isEmpty()) return true;
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') return true;
+		}
+		return false;
+	}
+
+	private void putNull(boolean csv) throws IOException {
+		if (!csv) {
+			put((byte) '\\');
+			put((byte) 'N');
+		}
+	}
+
+	private void putLineEnd(boolean csv) throws IOException {
+		if (csv) put((byte) '\r');
+		put((byte) '\n');
+	}
+
+	private void putLong(long l) throws IOException {
+		if (l == Long.MIN_VALUE) {
+			putText(Long.toString(l), true);
+			return;
+		}
+		if (l < 0) {
+			put((byte) '-');
+			l = -l;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (byte) ('0' + l % 10);
+			l /= 10;
+		} while (l != 0);
+		while (n > 0) {
+			put(digits[--n]);
+		}
+	}
+
+	/**
+	 * Write the UTF-8 encoding of the character at the specified index.
+	 * @return the index of the last character consumed, which differs from {@code index} for surrogate pairs.
+	 */
+	private int putChar(String s, int index) throws IOException {
+		if (out.remaining() < 4) flush();
+		return encodeChar(s, index, out);
+	}
+
+	/**
+	 * Write the UTF-8 encoding of the character at the specified index. The buffer must have at least 4 bytes
+	 * remaining. Unpaired surrogates are replaced by {@code ?}.
+	 * @return the index of the last character consumed.
+	 */
+	private static int encodeChar(String s, int index, ByteBuffer buffer) {
+		final char c = s.charAt(index);
+		if (c < 0x80) {
+			buffer.put((byte) c);
+		} else if (c < 0x800) {
+			buffer.put((byte) (0xC0 | c >> 6));
+			buffer.put((byte) (0x80 | c & 0x3F));
+		} else if (Character.isSurrogate(c)) {
+			if (Character.isHighSurrogate(c) && index + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(index + 1))) {
+				final int cp = Character.toCodePoint(c, s.charAt(index + 1));
+				buffer.put((byte) (0xF0 | cp >> 18));
+				buffer.put((byte) (0x80 | cp >> 12 & 0x3F));
+				buffer.put((byte) (0x80 | cp >> 6 & 0x3F));
+				buffer.put((byte) (0x80 | cp & 0x3F));
+				return index + 1;
+			}
+			buffer.put((byte) '?');
+		} else {
+			buffer.put((byte) (0xE0 | c >> 12));
+			buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+			buffer.put((byte) (0x80 | c & 0x3F));
+		}
+		return index;
+	}
+
+	private void exportBinary(ResultSet rs, String[] labels) throws SQLException, IOException {
+		out.put(new byte[] { 'F', 'J', 'D', 'B' });
+		out.putInt(VERSION);
+		out.putInt(types.length);
+		for (int i = 0; i < types.length; i++) {
+			ensureRemaining(1);
+			out.put(FileRowReader.getTypeCode(types[i]));
+			putString(labels[i]);
+		}
+
+		final int nullBytes = (BLOCK_SIZE + 7) / 8;
+		final ByteBuffer[] nulls = new ByteBuffer[types.length];
+		final ByteBuffer[] values = new ByteBuffer[types.length];
+		for (int i = 0; i < types.length; i++) {
+			nulls[i] = ByteBuffer.allocateDirect(nullBytes);
+			values[i] = ByteBuffer.allocateDirect(BLOCK_SIZE * (types[i] == ColumnType.INT ? 4 : 8));
+		}
+
+		int row = 0;
+		while (rs.next()) {
+			StatementFuture.checkCancelled();
+			for (int i = 0; i < types.length; i++) {
+				final int column = i + 1;
+				switch (types[i]) {
+				case INT:
+					values[i].putInt(booleans[i] ? (rs.getBoolean(column) ? 1 : 0) : rs.getInt(column));
+					break;
+				case LONG:
+					values[i].putLong(rs.getLong(column));
+					break;
+				case DOUBLE:
+					values[i].putDouble(rs.getDouble(column));
+					break;
+				default:
+					final String s = rs.getString(column);
+					if (s == null) break;
+					// 4 bytes for the length, at most 3 bytes per char.
+					values[i] = ensureRemaining(values[i], 4 + 3 * s.length());
+					final int lengthPosition = values[i].position();
+					values[i].putInt(0);
+					for (int c = 0; c < s.length(); c++) {
+						c = encodeChar(s, c, values[i]);
+					}
+					values[i].putInt(lengthPosition, values[i].position() - lengthPosition - 4);
+				}
+				if (rs.wasNull()) {
+					final int pos = row / 8;
+					nulls[i].put(pos, (byte) (nulls[i].get(pos) | 1 << row % 8));
+				}
+			}
+			row++;
+			rowCount++;
+			if (row == BLOCK_SIZE) {
+				writeBlock(row, nulls, values);
+				row = 0;
+			}
+		}
+		if (row > 0) writeBlock(row, nulls, values);
+		ensureRemaining(4);
+		out.putInt(0);
+	}
+
+	private void writeBlock(int rows, ByteBuffer[] nulls, ByteBuffer[] values) throws IOException {
+		ensureRemaining(4);
+		out.putInt(rows);
+		flush();
+		for (int i = 0; i < types.length; i++) {
+			nulls[i].clear().limit((rows + 7) / 8);
+			write(nulls[i]);
+			values[i].flip();
+			write(values[i]);
+			// reset the null flags for the next block.
+			nulls[i].clear();
+			while (nulls[i].hasRemaining()) {
+				nulls[i].put((byte) 0);
+			}
+			values[i].clear();
+		}
+	}
+
+	private void putString(String s) throws IOException {
+		ensureRemaining(4 + 3 * s.length());
+		final int lengthPosition = out.position();
+		out.putInt(0);
+		for (int i = 0; i < s.length(); i++) {
+			i = encodeChar(s, i, out);
+		}
+		out.putInt(lengthPosition, out.position() - lengthPosition - 4);
+	}
+
+	/**
+	 * Return the specified buffer if it has enough remaining bytes, or a larger copy otherwise.
+	 */
+	private static ByteBuffer ensureRemaining(ByteBuffer buffer, int n) {
+		if (buffer.remaining() >= n) return buffer;
+		final ByteBuffer res = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + n));
+		buffer.flip();
+		res.put(buffer);
+		return res;
+	}
+
+	private void ensureRemaining(int n) throws IOException {
+		if (out.remaining() < n) flush();
+		if (out.remaining() < n) throw new IOException("Value too large: " + n + " bytes");
+	}
+
+	private void put(byte b) throws IOException {
+		if (!out.hasRemaining()) flush();
+		out.put(b);
+	}
+
+	private void flush() throws IOException {
+		out.flip();
+		write(out);
+		out.clear();
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		byteCount += buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
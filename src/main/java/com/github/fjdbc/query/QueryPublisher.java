@@ -0,0 +1,189 @@
+package com.github.fjdbc.query;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.github.fjdbc.internal.RoutingSession;
+import com.github.fjdbc.internal.ShardContext;
+
+/**
+ * A {@link Publisher} of the objects extracted by a {@link Query}. Each subscriber executes the query on its own
+ * connection.
+ * <p>
+ * Rows are only read when the subscriber signals demand: the fetch size of the {@link ResultSet} follows the
+ * outstanding demand, up to a maximum. The statement and connection are released when the last object is published,
+ * when the query fails, or when the subscription is cancelled.
+ * <p>
+ * Signals are emitted from threads of the specified executor, one at a time.
+ * @param <T>
+ *        The type of objects to be extracted from the {@link ResultSet}.
+ */
+class QueryPublisher<T> implements Publisher<T> {
+	private final Query<T> query;
+	private final int maxFetchSize;
+	private final Executor executor;
+	/**
+	 * The subscribers inherit the shards and the routing session of the thread creating the publisher.
+	 */
+	private final ShardContext shards = ShardContext.current();
+	private final RoutingSession session = RoutingSession.current();
+
+	/**
+	 * @param maxFetchSize
+	 *        The maximum number of rows fetched from the database at a time.
+	 */
+	public QueryPublisher(Query<T> query, int maxFetchSize, Executor executor) {
+		assert query != null;
+		assert maxFetchSize > 0;
+		assert executor != null;
+		this.query = query;
+		this.maxFetchSize = maxFetchSize;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber) {
+		if (subscriber == null) throw new NullPointerException("subscriber");
+		subscriber.onSubscribe(new QuerySubscription(subscriber));
+	}
+
+	private class QuerySubscription implements Subscription {
+		private final Subscriber<? super T> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		/**
+		 * The number of signals (requests, cancellation) not processed yet by {@link #drain()}.
+		 */
+		private final AtomicInteger pendingSignals = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		private volatile Throwable invalidRequest;
+		// the following fields are only accessed by drain(), which is never executed concurrently.
+		private boolean done = false;
+		private Stream<T> stream;
+		private Iterator<T> iterator;
+		private ResultSet rs;
+
+		public QuerySubscription(Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				invalidRequest = new IllegalArgumentException("The number of requested elements must be positive: "
+						+ n);
+			} else {
+				requested.getAndUpdate(r -> r + n < 0 ? Long.MAX_VALUE : r + n);
+			}
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			signal();
+		}
+
+		private void signal() {
+			if (pendingSignals.getAndIncrement() != 0) return;
+			try {
+				executor.execute(this::drain);
+			} catch (final RuntimeException e) {
+				done = true;
+				subscriber.onError(e);
+			}
+		}
+
+		private void drain() {
+			int missed = 1;
+			do {
+				if (!done) {
+					try {
+						drainOnce();
+					} catch (final RuntimeException e) {
+						done = true;
+						release();
+						subscriber.onError(e);
+					}
+				}
+				missed = pendingSignals.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void drainOnce() {
+			if (cancelled) {
+				done = true;
+				release();
+				return;
+			}
+			if (invalidRequest != null) {
+				done = true;
+				release();
+				subscriber.onError(invalidRequest);
+				return;
+			}
+			final long demand = requested.get();
+			if (demand == 0) return;
+			if (iterator == null) open();
+			adjustFetchSize(demand);
+
+			long emitted = 0;
+			while (emitted < demand && !cancelled) {
+				if (!iterator.hasNext()) {
+					done = true;
+					release();
+					subscriber.onComplete();
+					return;
+				}
+				subscriber.onNext(iterator.next());
+				emitted++;
+			}
+			if (demand != Long.MAX_VALUE) requested.addAndGet(-emitted);
+		}
+
+		private void open() {
+			final Supplier<Stream<T>> openStream = () -> query.stream(_rs -> {
+				rs = _rs;
+				// rows are not prefetched: they are read on demand.
+				final Iterator<T> it = query.getExtractor().iterator(_rs);
+				return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false);
+			});
+			stream = ShardContext.call(shards, () -> RoutingSession.call(session, openStream));
+			iterator = stream.iterator();
+		}
+
+		/**
+		 * Set the fetch size to the outstanding demand, so that no more rows than needed are fetched.
+		 */
+		private void adjustFetchSize(long demand) {
+			final int fetchSize = (int) Math.min(demand, maxFetchSize);
+			try {
+				if (rs.isClosed()) return;
+				final int current = rs.getFetchSize();
+				// a negative fetch size is a driver-specific setting, such as MySQL streaming.
+				if (current >= 0 && current != fetchSize) rs.setFetchSize(fetchSize);
+			} catch (final SQLException e) {
+				// the fetch size is only a hint.
+			}
+		}
+
+		private void release() {
+			if (stream != null) stream.close();
+			stream = null;
+			iterator = null;
+			rs = null;
+		}
+	}
+}
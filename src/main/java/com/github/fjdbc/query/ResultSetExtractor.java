@@ -5,6 +5,7 @@ import java.sql.SQLException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
+import com.github.fjdbc.Deadline;
 import com.github.fjdbc.RuntimeSQLException;
 
 /**
@@ -38,11 +39,14 @@ public interface ResultSetExtractor<T> {
 
 	/**
 	 * An iterator backed by a ResultSet. The ResultSet is closed when the last element is read.
+	 * <p>
+	 * The deadline of the thread creating the iterator is checked before each row.
 	 * @param <T>
 	 */
 	static class ResultSetIterator<T> implements Iterator<T> {
 		private final ResultSet rs;
 		private final ResultSetExtractor<T> extractor;
+		private final Deadline deadline = Deadline.current();
 		private T nextValue;
 		private boolean endReached = false;
 
@@ -59,16 +63,17 @@ public interface ResultSetExtractor<T> {
 
 		private void maybeReadNext() {
 			if (endReached || nextValue != null) return;
+			Query.checkDeadline(deadline, rs);
 			try {
-				if (rs.isAfterLast()) {
-					endReached();
-					return;
-				}
 				if (extractor.autoCallNext()) {
+					// no need to call isAfterLast(): next() already tells whether the end is reached.
 					if (!rs.next()) {
 						endReached();
 						return;
 					}
+				} else if (rs.isAfterLast()) {
+					endReached();
+					return;
 				}
 				nextValue = extractor.extract(rs);
 				if (nextValue == null) {
@@ -79,6 +84,9 @@ public interface ResultSetExtractor<T> {
 			} catch (final SQLException e) {
 				Query.close(rs);
 				throw new RuntimeSQLException(e);
+			} catch (final RuntimeException e) {
+				Query.close(rs);
+				throw e;
 			}
 		}
 
@@ -0,0 +1,212 @@
+package com.github.fjdbc.query;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encode objects extracted from a {@link java.sql.ResultSet} in a compact binary format, so that they can be stored
+ * outside of the heap.
+ * @param <T>
+ *        The type of the encoded objects.
+ * @see Query#toSpillableList(RowCodec, long)
+ */
+public interface RowCodec<T> {
+	void encode(T value, DataOutput out) throws IOException;
+
+	/**
+	 * Decode an object encoded by {@link #encode(Object, DataOutput)}.
+	 */
+	T decode(DataInput in) throws IOException;
+
+	/**
+	 * A codec of {@link String} objects, {@code null} included.
+	 */
+	static RowCodec<String> ofStrings() {
+		return new RowCodec<String>() {
+			@Override
+			public void encode(String value, DataOutput out) throws IOException {
+				ObjectArrayCodec.writeString(value, out);
+			}
+
+			@Override
+			public String decode(DataInput in) throws IOException {
+				return ObjectArrayCodec.readString(in);
+			}
+		};
+	}
+
+	/**
+	 * A codec of {@link Long} objects, {@code null} included.
+	 */
+	static RowCodec<Long> ofLongs() {
+		return new RowCodec<Long>() {
+			@Override
+			public void encode(Long value, DataOutput out) throws IOException {
+				out.writeBoolean(value != null);
+				if (value != null) out.writeLong(value);
+			}
+
+			@Override
+			public Long decode(DataInput in) throws IOException {
+				return in.readBoolean() ? in.readLong() : null;
+			}
+		};
+	}
+
+	/**
+	 * A codec of rows stored as {@code Object[]}. The elements may be {@code null}, or of the following types:
+	 * {@link Boolean}, {@link Byte}, {@link Short}, {@link Integer}, {@link Long}, {@link Float}, {@link Double},
+	 * {@link BigDecimal}, {@link String}, {@code byte[]}, {@link java.sql.Date}, {@link java.sql.Time},
+	 * {@link java.sql.Timestamp}.
+	 */
+	static RowCodec<Object[]> ofObjectArrays() {
+		return new ObjectArrayCodec();
+	}
+
+	/**
+	 * Each element is encoded as a type tag followed by the value.
+	 */
+	static class ObjectArrayCodec implements RowCodec<Object[]> {
+		private static final byte NULL = 0, BOOLEAN = 1, BYTE = 2, SHORT = 3, INT = 4, LONG = 5, FLOAT = 6, DOUBLE = 7,
+				DECIMAL = 8, STRING = 9, BYTES = 10, DATE = 11, TIME = 12, TIMESTAMP = 13;
+
+		@Override
+		public void encode(Object[] value, DataOutput out) throws IOException {
+			out.writeInt(value.length);
+			for (final Object o : value) {
+				writeElement(o, out);
+			}
+		}
+
+		private static void writeElement(Object o, DataOutput out) throws IOException {
+			if (o == null) {
+				out.writeByte(NULL);
+			} else if (o instanceof Boolean) {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean((Boolean) o);
+			} else if (o instanceof Byte) {
+				out.writeByte(BYTE);
+				out.writeByte((Byte) o);
+			} else if (o instanceof Short) {
+				out.writeByte(SHORT);
+				out.writeShort((Short) o);
+			} else if (o instanceof Integer) {
+				out.writeByte(INT);
+				out.writeInt((Integer) o);
+			} else if (o instanceof Long) {
+				out.writeByte(LONG);
+				out.writeLong((Long) o);
+			} else if (o instanceof Float) {
+				out.writeByte(FLOAT);
+				out.writeFloat((Float) o);
+			} else if (o instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) o);
+			} else if (o instanceof BigDecimal) {
+				out.writeByte(DECIMAL);
+				final BigDecimal d = (BigDecimal) o;
+				out.writeInt(d.scale());
+				writeBytes(d.unscaledValue().toByteArray(), out);
+			} else if (o instanceof String) {
+				out.writeByte(STRING);
+				writeString((String) o, out);
+			} else if (o instanceof byte[]) {
+				out.writeByte(BYTES);
+				writeBytes((byte[]) o, out);
+			} else if (o instanceof java.sql.Date) {
+				out.writeByte(DATE);
+				out.writeLong(((java.sql.Date) o).getTime());
+			} else if (o instanceof java.sql.Time) {
+				out.writeByte(TIME);
+				out.writeLong(((java.sql.Time) o).getTime());
+			} else if (o instanceof java.sql.Timestamp) {
+				out.writeByte(TIMESTAMP);
+				out.writeLong(((java.sql.Timestamp) o).getTime());
+				out.writeInt(((java.sql.Timestamp) o).getNanos());
+			} else {
+				throw new IllegalArgumentException("Unsupported type: " + o.getClass().getName());
+			}
+		}
+
+		@Override
+		public Object[] decode(DataInput in) throws IOException {
+			final Object[] res = new Object[in.readInt()];
+			for (int i = 0; i < res.length; i++) {
+				res[i] = readElement(in);
+			}
+			return res;
+		}
+
+		private static Object readElement(DataInput in) throws IOException {
+			final byte type = in.readByte();
+			switch (type) {
+			case NULL:
+				return null;
+			case BOOLEAN:
+				return in.readBoolean();
+			case BYTE:
+				return in.readByte();
+			case SHORT:
+				return in.readShort();
+			case INT:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case FLOAT:
+				return in.readFloat();
+			case DOUBLE:
+				return in.readDouble();
+			case DECIMAL:
+				final int scale = in.readInt();
+				return new BigDecimal(new BigInteger(readBytes(in)), scale);
+			case STRING:
+				return readString(in);
+			case BYTES:
+				return readBytes(in);
+			case DATE:
+				return new java.sql.Date(in.readLong());
+			case TIME:
+				return new java.sql.Time(in.readLong());
+			case TIMESTAMP:
+				final java.sql.Timestamp ts = new java.sql.Timestamp(in.readLong());
+				ts.setNanos(in.readInt());
+				return ts;
+			default:
+				throw new IOException("Invalid type: " + type);
+			}
+		}
+
+		/**
+		 * Unlike {@link DataOutput#writeUTF(String)}, strings are not limited to 65535 bytes.
+		 */
+		static void writeString(String s, DataOutput out) throws IOException {
+			if (s == null) {
+				out.writeInt(-1);
+			} else {
+				writeBytes(s.getBytes(StandardCharsets.UTF_8), out);
+			}
+		}
+
+		static String readString(DataInput in) throws IOException {
+			final byte[] bytes = readBytes(in);
+			return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private static void writeBytes(byte[] bytes, DataOutput out) throws IOException {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private static byte[] readBytes(DataInput in) throws IOException {
+			final int length = in.readInt();
+			if (length < 0) return null;
+			final byte[] res = new byte[length];
+			in.readFully(res);
+			return res;
+		}
+	}
+}
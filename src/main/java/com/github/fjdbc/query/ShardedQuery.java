@@ -0,0 +1,167 @@
+package com.github.fjdbc.query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.internal.Threads;
+
+/**
+ * A {@link Query} executed on several databases, e.g the shards of a table. The query is executed concurrently on all
+ * shards, and the results are gathered.
+ * <p>
+ * By default, objects are returned as soon as they are extracted, in no particular order. If a merge order is set,
+ * the results of the shards are merged: if the query returns objects sorted in this order, e.g using an
+ * {@code order by} clause, all objects are returned in this order.
+ * <p>
+ * By default, if the query fails on one shard, the queries on the other shards are cancelled. Otherwise, failures are
+ * reported to the failure listener, and the objects of the other shards are returned.
+ * @param <T>
+ *        The type of objects to be extracted from the {@link java.sql.ResultSet}.
+ * @see com.github.fjdbc.connection.ShardedConnectionProvider
+ */
+public class ShardedQuery<T> {
+	private final Query<T> query;
+	private final List<ConnectionProvider> shards;
+	private int parallelism;
+	private Comparator<? super T> mergeOrder;
+	private ObjIntConsumer<RuntimeException> failureListener;
+	private ThreadFactory threadFactory = Threads.newThreadFactory("fjdbc-shard");
+
+	ShardedQuery(Query<T> query, List<? extends ConnectionProvider> shards) {
+		assert !shards.isEmpty();
+		this.query = query;
+		this.shards = new ArrayList<>(shards);
+		this.parallelism = shards.size();
+	}
+
+	/**
+	 * Set the maximum number of shards queried at the same time. The default is the number of shards. It is ignored if
+	 * a merge order is set.
+	 */
+	public ShardedQuery<T> setParallelism(int parallelism) {
+		assert parallelism > 0;
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Merge the results of the shards in the specified order, or {@code null} to return objects as soon as they are
+	 * extracted. The query must return objects sorted in this order.
+	 */
+	public ShardedQuery<T> setMergeOrder(Comparator<? super T> mergeOrder) {
+		this.mergeOrder = mergeOrder;
+		return this;
+	}
+
+	/**
+	 * Report the failures of the query on a shard to the specified listener, with the index of the shard, instead of
+	 * cancelling the queries on the other shards. The listener is called from the thread querying the shard. Use
+	 * {@code null} to cancel the queries on all shards when one fails, which is the default.
+	 */
+	public ShardedQuery<T> setFailureListener(ObjIntConsumer<RuntimeException> failureListener) {
+		this.failureListener = failureListener;
+		return this;
+	}
+
+	/**
+	 * Set the factory of the threads querying the shards.
+	 */
+	public ShardedQuery<T> setThreadFactory(ThreadFactory threadFactory) {
+		assert threadFactory != null;
+		this.threadFactory = threadFactory;
+		return this;
+	}
+
+	/**
+	 * Execute the query on all shards, then calls the specified callback for each object extracted.
+	 * <p>
+	 * The callback is always called from the calling thread.
+	 */
+	public void forEach(Consumer<? super T> callback) {
+		try (Stream<T> stream = stream()) {
+			stream.forEach(callback);
+		}
+	}
+
+	/**
+	 * Execute the query on all shards, then returns a list of objects extracted.
+	 */
+	public List<T> toList() {
+		final List<T> res = new ArrayList<>();
+		forEach(res::add);
+		return res;
+	}
+
+	/**
+	 * Warning: the returned stream must be closed manually by the caller.
+	 */
+	public Stream<T> stream() {
+		final List<Query<T>> queries = new ArrayList<>(shards.size());
+		for (final ConnectionProvider shard : shards) {
+			queries.add(query.withConnectionProvider(shard));
+		}
+		final int _parallelism = mergeOrder != null ? queries.size() : Math.min(parallelism, queries.size());
+		final ParallelIterator<T> it = new ParallelIterator<>(queries, _parallelism, mergeOrder != null, threadFactory,
+				failureListener);
+		final Iterator<T> res = mergeOrder == null ? it : new MergeIterator<>(it, queries.size(), mergeOrder);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(res, Spliterator.ORDERED), false)
+				.onClose(it::close);
+	}
+
+	/**
+	 * A k-way merge of the results of the shards, using a heap of the next object of each shard.
+	 * <p>
+	 * The merge waits for the next object of each shard, so all shards must be queried at the same time: the
+	 * parallelism is ignored.
+	 */
+	private static class MergeIterator<T> implements Iterator<T> {
+		private final PriorityQueue<Head<T>> heads;
+
+		public MergeIterator(ParallelIterator<T> it, int nQueries, Comparator<? super T> order) {
+			heads = new PriorityQueue<>(nQueries, (h1, h2) -> order.compare(h1.value, h2.value));
+			for (int i = 0; i < nQueries; i++) {
+				final Iterator<T> queryIterator = it.queryIterator(i);
+				if (queryIterator.hasNext()) heads.add(new Head<>(queryIterator.next(), queryIterator));
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			final Head<T> head = heads.poll();
+			if (head == null) throw new NoSuchElementException();
+			final T res = head.value;
+			if (head.iterator.hasNext()) {
+				head.value = head.iterator.next();
+				heads.add(head);
+			}
+			return res;
+		}
+	}
+
+	private static class Head<T> {
+		private T value;
+		private final Iterator<T> iterator;
+
+		public Head(T value, Iterator<T> iterator) {
+			this.value = value;
+			this.iterator = iterator;
+		}
+	}
+}
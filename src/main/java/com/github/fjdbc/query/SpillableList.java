@@ -0,0 +1,299 @@
+package com.github.fjdbc.query;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An unmodifiable list that keeps its first elements on the heap, up to a memory budget, and the remaining elements
+ * in a temporary file. Elements stored in the file are decoded each time they are read, using a {@link RowCodec}.
+ * <p>
+ * The memory budget is compared to the encoded size of the elements, which is usually smaller than their size on
+ * the heap. The temporary file is memory-mapped, and deleted by {@link #close()}. The list must not be used once
+ * closed.
+ * <p>
+ * {@link #iterator()} reads the file sequentially and should be preferred to {@link #get(int)}, which must skip up to
+ * {@value #INDEX_INTERVAL} elements to find the requested one. Once created, the list may be read by several threads.
+ * @see Query#toSpillableList(RowCodec, long)
+ */
+public class SpillableList<T> extends AbstractList<T> implements AutoCloseable {
+	/**
+	 * The file is mapped in segments of this size. Elements do not span several segments.
+	 */
+	private static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+	/**
+	 * Written at the end of a segment when the next element does not fit. Zeroes are an invalid length.
+	 */
+	private static final byte[] PADDING = new byte[8192];
+	/**
+	 * The position in the file of one element every {@code INDEX_INTERVAL} elements is kept on the heap.
+	 */
+	private static final int INDEX_INTERVAL = 64;
+
+	private final RowCodec<T> codec;
+	private final long memoryBudget;
+	private final Path directory;
+	private final int segmentSize;
+	private final List<T> memoryElements = new ArrayList<>();
+	private long memorySize = 0;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+
+	private Path file;
+	private DataOutputStream fileOut;
+	private long fileSize = 0;
+	private int fileElementCount = 0;
+	private long[] positions = new long[16];
+	private MappedByteBuffer[] segments;
+	private boolean closed = false;
+
+	/**
+	 * @param memoryBudget
+	 *        The maximum encoded size, in bytes, of the elements kept on the heap.
+	 * @param directory
+	 *        The directory of the temporary file, or {@code null} to use the default temporary-file directory.
+	 */
+	SpillableList(RowCodec<T> codec, long memoryBudget, Path directory) {
+		this(codec, memoryBudget, directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param segmentSize
+	 *        The size of the mapped segments of the file. Smaller segments are only useful for testing.
+	 */
+	SpillableList(RowCodec<T> codec, long memoryBudget, Path directory, int segmentSize) {
+		assert codec != null;
+		assert memoryBudget >= 0;
+		assert segmentSize > 4;
+		this.codec = codec;
+		this.memoryBudget = memoryBudget;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Append an element. Once an element is stored in the file, the following ones are too.
+	 */
+	void append(T element) throws IOException {
+		buffer.reset();
+		codec.encode(element, bufferOut);
+		final int length = buffer.size();
+		if (file == null && memorySize + length <= memoryBudget) {
+			memoryElements.add(element);
+			memorySize += length;
+			return;
+		}
+
+		if (file == null) openFile();
+		// 4 bytes for the length.
+		if (length > segmentSize - 4) throw new IOException("Element too large: " + length + " bytes");
+		final long remaining = segmentSize - fileSize % segmentSize;
+		if (remaining < length + 4) {
+			// start a new segment. The padding is filled with zeroes, i.e an invalid length.
+			for (long written = 0; written < remaining; written += PADDING.length) {
+				fileOut.write(PADDING, 0, (int) Math.min(PADDING.length, remaining - written));
+			}
+			fileSize += remaining;
+		}
+		if (fileElementCount % INDEX_INTERVAL == 0) {
+			final int i = fileElementCount / INDEX_INTERVAL;
+			if (i == positions.length) positions = Arrays.copyOf(positions, positions.length * 2);
+			positions[i] = fileSize;
+		}
+		// the length is shifted by 1 so that it is never 0.
+		fileOut.writeInt(length + 1);
+		buffer.writeTo(fileOut);
+		fileSize += length + 4;
+		fileElementCount++;
+	}
+
+	private void openFile() throws IOException {
+		file = directory == null ? Files.createTempFile("fjdbc-", ".spill")
+				: Files.createTempFile(directory, "fjdbc-", ".spill");
+		fileOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+	}
+
+	/**
+	 * Called once all elements are appended. Map the file in memory.
+	 */
+	void seal() throws IOException {
+		if (file == null) return;
+		fileOut.close();
+		fileOut = null;
+		segments = new MappedByteBuffer[(int) ((fileSize + segmentSize - 1) / segmentSize)];
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int i = 0; i < segments.length; i++) {
+				final long position = (long) i * segmentSize;
+				segments[i] = channel.map(MapMode.READ_ONLY, position, Math.min(segmentSize, fileSize - position));
+			}
+		}
+	}
+
+	@Override
+	public T get(int index) {
+		checkOpen();
+		if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		if (index < memoryElements.size()) return memoryElements.get(index);
+
+		final int fileIndex = index - memoryElements.size();
+		final FileReader reader = new FileReader(positions[fileIndex / INDEX_INTERVAL]);
+		for (int i = 0; i < fileIndex % INDEX_INTERVAL; i++) {
+			reader.skip();
+		}
+		return reader.read();
+	}
+
+	@Override
+	public int size() {
+		return memoryElements.size() + fileElementCount;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		checkOpen();
+		final Iterator<T> memoryIterator = memoryElements.iterator();
+		final FileReader reader = new FileReader(0);
+		return new Iterator<T>() {
+			private int remaining = fileElementCount;
+
+			@Override
+			public boolean hasNext() {
+				return memoryIterator.hasNext() || remaining > 0;
+			}
+
+			@Override
+			public T next() {
+				checkOpen();
+				if (memoryIterator.hasNext()) return memoryIterator.next();
+				if (remaining == 0) throw new NoSuchElementException();
+				remaining--;
+				return reader.read();
+			}
+		};
+	}
+
+	/**
+	 * Return {@code true} if some elements are stored in the temporary file.
+	 */
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * The number of elements stored in the temporary file.
+	 */
+	public int getSpilledCount() {
+		return fileElementCount;
+	}
+
+	/**
+	 * The size of the temporary file, in bytes.
+	 */
+	public long getSpilledSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Delete the temporary file. If the file cannot be deleted, e.g because it is still mapped on Windows, it is
+	 * deleted when the virtual machine terminates.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		segments = null;
+		if (file == null) return;
+		try {
+			if (fileOut != null) fileOut.close();
+			Files.deleteIfExists(file);
+		} catch (final IOException e) {
+			file.toFile().deleteOnExit();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) throw new IllegalStateException("The list is closed");
+	}
+
+	/**
+	 * Read elements sequentially from the temporary file, starting at the specified position.
+	 */
+	private class FileReader {
+		private long position;
+
+		public FileReader(long position) {
+			this.position = position;
+		}
+
+		/**
+		 * Move to the next element, and returns a buffer positioned at its first byte.
+		 */
+		private ByteBuffer next() {
+			ByteBuffer segment = segments[(int) (position / segmentSize)];
+			int offset = (int) (position % segmentSize);
+			if (segment.limit() - offset < 4 || segment.getInt(offset) == 0) {
+				// padding: skip to the next segment.
+				position += segmentSize - offset;
+				segment = segments[(int) (position / segmentSize)];
+				offset = 0;
+			}
+			final int length = segment.getInt(offset) - 1;
+			position += length + 4;
+			final ByteBuffer res = segment.duplicate();
+			res.limit(offset + 4 + length);
+			res.position(offset + 4);
+			return res;
+		}
+
+		public void skip() {
+			next();
+		}
+
+		public T read() {
+			try {
+				return codec.decode(new DataInputStream(new ByteBufferInputStream(next())));
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			final int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+}
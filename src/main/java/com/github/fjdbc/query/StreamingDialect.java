@@ -0,0 +1,63 @@
+package com.github.fjdbc.query;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.github.fjdbc.SQLConsumer;
+
+/**
+ * Driver-specific settings required to stream a {@link java.sql.ResultSet}, i.e to read it without buffering all rows
+ * in memory.
+ * <p>
+ * See {@link Query#streaming(int, StreamingDialect)}.
+ */
+public interface StreamingDialect {
+	/**
+	 * Works with drivers that stream rows as soon as a fetch size is set.
+	 */
+	StreamingDialect DEFAULT = new StreamingDialect() {
+		// all default methods
+	};
+
+	/**
+	 * PostgreSQL only uses server-side cursors when auto-commit is off.
+	 */
+	StreamingDialect POSTGRESQL = new StreamingDialect() {
+		@Override
+		public SQLConsumer<Connection> prepareConnection(Connection cnx) throws SQLException {
+			if (!cnx.getAutoCommit()) return c -> {};
+			cnx.setAutoCommit(false);
+			return c -> {
+				c.rollback();
+				c.setAutoCommit(true);
+			};
+		}
+	};
+
+	/**
+	 * MySQL only streams rows when the fetch size is {@link Integer#MIN_VALUE}.
+	 */
+	StreamingDialect MYSQL = new StreamingDialect() {
+		@Override
+		public void configure(Statement st, int fetchSize) throws SQLException {
+			st.setFetchSize(Integer.MIN_VALUE);
+		}
+	};
+
+	/**
+	 * Prepare the connection before the statement is created.
+	 * @return The action that restores the connection in its original state. It is called once the
+	 *         {@link java.sql.ResultSet} has been read, before the connection is given back.
+	 */
+	default SQLConsumer<Connection> prepareConnection(Connection cnx) throws SQLException {
+		return c -> {};
+	}
+
+	/**
+	 * Configure the statement before it is executed.
+	 */
+	default void configure(Statement st, int fetchSize) throws SQLException {
+		st.setFetchSize(fetchSize);
+	}
+}
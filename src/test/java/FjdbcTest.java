@@ -2,19 +2,81 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
+import com.github.fjdbc.ConnectionProvider;
+import com.github.fjdbc.Deadline;
 import com.github.fjdbc.Fjdbc;
+import com.github.fjdbc.PreparedStatementBinder;
 import com.github.fjdbc.RuntimeSQLException;
+import com.github.fjdbc.connection.LeakDetectingConnectionProvider;
+import com.github.fjdbc.connection.PooledConnectionProvider;
+import com.github.fjdbc.connection.ReplicaBalancer;
+import com.github.fjdbc.connection.RoutingConnectionProvider;
+import com.github.fjdbc.connection.ShardedConnectionProvider;
 import com.github.fjdbc.connection.SingleConnectionProvider;
+import com.github.fjdbc.connection.StateTrackingConnectionProvider;
+import com.github.fjdbc.connection.StatementCachingConnectionProvider;
+import com.github.fjdbc.connection.ThrottlingConnectionProvider;
+import com.github.fjdbc.internal.Threads;
+import com.github.fjdbc.mapping.Extractors;
+import com.github.fjdbc.mapping.Mapped;
 import com.github.fjdbc.op.NoOperation;
 import com.github.fjdbc.op.StatementOperation;
+import com.github.fjdbc.query.ExportFormat;
+import com.github.fjdbc.query.KeysetQuery;
+import com.github.fjdbc.query.MultiQuery;
+import com.github.fjdbc.query.OffHeapTable;
+import com.github.fjdbc.query.PartitionedQuery;
+import com.github.fjdbc.query.PrefetchingIterator;
 import com.github.fjdbc.query.Query;
+import com.github.fjdbc.query.QueryCache;
+import com.github.fjdbc.query.RowCodec;
 import com.github.fjdbc.query.SingleRowExtractor;
+import com.github.fjdbc.query.SpillableList;
 
 /**
  * This class conforms to the POJO convention of maven surefire.
@@ -33,10 +95,11 @@ public class FjdbcTest {
 	private final Writer writer;
 	private final Fjdbc fjdbc;
 	private final Connection conn;
+	private final String url;
 
 	public FjdbcTest() throws Exception {
 		writer = new BufferedWriter(new FileWriter(last));
-		final String url = "jdbc:sqlite:" + db.getAbsolutePath();
+		url = "jdbc:sqlite:" + db.getAbsolutePath();
 		conn = DriverManager.getConnection(url);
 		final SingleConnectionProvider connProvider = new SingleConnectionProvider(conn);
 		fjdbc = new Fjdbc(connProvider);
@@ -50,6 +113,21 @@ public class FjdbcTest {
 		insert();
 		query();
 		queryWithLimit();
+		queryWithColumnIndexCache();
+		queryStreaming();
+		queryPrefetch();
+		queryPartitioned();
+		queryPrimitive();
+		queryChunks();
+		queryKeyset();
+		queryAsync();
+		queryPublisher();
+		queryMulti();
+		queryWithRuntimeMapping();
+		querySpillable();
+		queryOffHeap();
+		queryExport();
+		bulkLoad();
 		writer.flush();
 		assert FileUtils.contentEquals(last, ref);
 		delete();
@@ -83,6 +161,255 @@ public class FjdbcTest {
 		writeQuery(query);
 	}
 
+	private void queryWithColumnIndexCache() throws IOException {
+		final SingleRowExtractor<String> extractor = rs -> rs.getInt("id") + " " + rs.getString("name");
+		writeQuery(fjdbc.query("select id, name from user order by id", extractor).setColumnIndexCache(true));
+	}
+
+	private void queryStreaming() throws IOException {
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt("id");
+
+		final Query<Integer> query = fjdbc.query("select id from user order by id desc", extractor).streaming(2);
+		writeln(query.getSql());
+		try (Stream<Integer> stream = query.stream()) {
+			stream.forEach(this::writeln);
+		}
+	}
+
+	private void queryPrefetch() throws IOException {
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt("id");
+		writeQuery(fjdbc.query("select id from user order by id", extractor).prefetch(2));
+	}
+
+	private void queryPartitioned() throws IOException {
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt("id");
+		// each partition is read on its own connection.
+		final Fjdbc multiConnectionFjdbc = new Fjdbc(() -> DriverManager.getConnection(url));
+		final Query<Integer> query = multiConnectionFjdbc.query("select id from user", extractor);
+		writeln(query.getSql());
+		query.partitionedBy("id", 3).setOrdered(true).forEach(this::writeln);
+	}
+
+	private void queryPrimitive() throws IOException {
+		final Query<Void> query = fjdbc.query("select id from user order by id", rs -> null);
+		writeln(query.getSql());
+		writeln(Arrays.toString(query.toIntArray(rs -> rs.getInt("id"))));
+		try (LongStream stream = query.longStream(rs -> rs.getLong("id"))) {
+			writeln(stream.sum());
+		}
+	}
+
+	private void queryChunks() throws IOException {
+		final Query<Void> query = fjdbc.query("select id, name from user order by id", rs -> null);
+		writeln(query.getSql());
+		query.forEachChunk(2, chunk -> {
+			for (int row = 0; row < chunk.getRowCount(); row++) {
+				writeln(chunk.getString(1, row));
+			}
+			// the dictionary only contains the values of the chunk.
+			assert chunk.getDictionary(1).size() == chunk.getRowCount();
+		});
+	}
+
+	private void queryKeyset() throws IOException {
+		final SingleRowExtractor<String> extractor = rs -> rs.getString("name");
+		final Query<String> query = fjdbc.query("select id, name from user", extractor);
+		final KeysetQuery<String> pages = query.keyset("id", 2);
+		try (Stream<String> stream = pages.stream()) {
+			stream.limit(2).forEach(this::writeln);
+		}
+		writeln(pages.getCheckpoint());
+		// resume the scan.
+		query.keyset("id", 2).startAfter(pages.getCheckpoint()).forEach(this::writeln);
+	}
+
+	private void queryAsync() throws IOException {
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt("id");
+		final CompletableFuture<List<Integer>> ids = fjdbc.query("select id from user order by id", extractor)
+				.toListAsync();
+		final CompletableFuture<Integer> nRows = fjdbc.statement("update user set name = name where id = 1")
+				.executeAndCommitAsync();
+		writeln(ids.join());
+		writeln(nRows.join());
+
+		// a cancelled operation is not executed.
+		final List<Runnable> tasks = new ArrayList<>();
+		final CompletableFuture<Integer> cancelled = fjdbc.statement("delete from user")
+				.executeAndCommitAsync(tasks::add);
+		cancelled.cancel(true);
+		tasks.forEach(Runnable::run);
+		writeln(cancelled.isCancelled());
+	}
+
+	private void queryPublisher() throws IOException {
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt("id");
+		// signals are emitted synchronously, from the thread calling request().
+		final Publisher<Integer> publisher = fjdbc.query("select id from user order by id", extractor)
+				.publisher(10, Runnable::run);
+		// request one element at a time, cancel after the second one.
+		final List<Object> signals = new ArrayList<>();
+		publisher.subscribe(new Subscriber<Integer>() {
+			private Subscription subscription;
+
+			@Override
+			public void onSubscribe(Subscription s) {
+				subscription = s;
+				s.request(1);
+			}
+
+			@Override
+			public void onNext(Integer t) {
+				signals.add(t);
+				if (signals.size() == 2) {
+					subscription.cancel();
+				} else {
+					subscription.request(1);
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				signals.add(t);
+			}
+
+			@Override
+			public void onComplete() {
+				signals.add("complete");
+			}
+		});
+		writeln(signals);
+	}
+
+	private void queryMulti() throws IOException {
+		final SingleRowExtractor<Integer> idExtractor = rs -> rs.getInt("id");
+		final SingleRowExtractor<String> nameExtractor = rs -> rs.getString("name");
+		final Query<Integer> ids = fjdbc.query("select id from user order by id", idExtractor);
+		final Query<String> names = fjdbc.query("select name from user where id = ?", PreparedStatementBinder.create(2),
+				nameExtractor);
+		final MultiQuery.Results results = fjdbc.multiQuery(ids, names).execute();
+		writeln(results.get(ids));
+		writeln(results.get(names));
+	}
+
+	private void queryWithRuntimeMapping() throws IOException {
+		final SingleRowExtractor<UserBean> extractor = Extractors.forType(UserBean.class);
+		final Query<UserBean> query = fjdbc.query("select id as user_id, name from user order by id", extractor);
+		for (final UserBean user : query.toList()) {
+			writeln(user.userId + " " + user.name);
+		}
+	}
+
+	private void querySpillable() throws IOException {
+		final SingleRowExtractor<String> extractor = rs -> rs.getString("name");
+		final Query<String> query = fjdbc.query("select name from user order by id", extractor);
+		// only the first name fits in 9 bytes.
+		try (SpillableList<String> names = query.toSpillableList(RowCodec.ofStrings(), 9)) {
+			writeln(names);
+			writeln(names.getSpilledCount() + " " + names.get(2));
+		}
+	}
+
+	private void queryOffHeap() throws IOException {
+		final OffHeapTable.Row row;
+		try (OffHeapTable table = fjdbc.offHeapTable("select id, name from user order by id", "id")) {
+			table.forEach(r -> writeln(r.getLong(1) + " " + r.getString(2)));
+			row = table.row();
+			writeln(row.moveToKey(2) + " " + row.getString(2) + " " + row.moveToKey(4));
+		}
+		try {
+			row.getString(2);
+			assert false;
+		} catch (final IllegalStateException e) {
+			// closed
+		}
+
+		// the key index spans several buffers.
+		try (OffHeapTable large = fjdbc.offHeapTable(
+				"with recursive r(x) as (select 1 union all select x + 1 from r where x < 40000) select x from r",
+				"x")) {
+			assert large.find(1) == 0;
+			assert large.find(40000) == 39999;
+			assert large.find(40001) == -1;
+		}
+
+		// 64-bit integers are not truncated.
+		final String sql = "select id, id * 5000000000 as big from user order by id";
+		try (OffHeapTable large = fjdbc.offHeapTable(sql, "big")) {
+			final OffHeapTable.Row r = large.row();
+			assert r.moveToKey(10000000000L) && r.getLong(2) == 10000000000L && r.getInt(1) == 2;
+			try {
+				r.getInt(2);
+				assert false;
+			} catch (final ArithmeticException e) {
+				// out of range
+			}
+		}
+	}
+
+	private void queryExport() throws IOException {
+		final SingleRowExtractor<String> extractor = rs -> rs.getString("name");
+		final Query<String> query = fjdbc.query("select id, name || ',\"' as name from user order by id", extractor);
+		final File file = File.createTempFile("fjdbc-export", ".csv");
+		try {
+			writeln(query.exportTo(file.toPath(), ExportFormat.CSV).getRowCount());
+			writeln(FileUtils.readFileToString(file, StandardCharsets.UTF_8).replace("\r\n", "|"));
+			query.exportTo(file.toPath(), ExportFormat.BINARY, true);
+			writeln(file.length() > 0);
+			// empty strings are distinguished from null values.
+			fjdbc.query("select '' as e, null as n", extractor).exportTo(file.toPath(), ExportFormat.CSV);
+			assert FileUtils.readFileToString(file, StandardCharsets.UTF_8).equals("e,n\r\n\"\",\r\n");
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void bulkLoad() throws IOException {
+		final SingleRowExtractor<String> extractor = rs -> rs.getString("name");
+		final Query<String> names = fjdbc.query("select name from user where id > 10 order by id", extractor);
+		final File file = File.createTempFile("fjdbc-load", ".csv");
+		try {
+			for (final ExportFormat format : ExportFormat.values()) {
+				fjdbc.query("select id + 10, name || ',\"' from user where id <= 3", extractor)
+						.exportTo(file.toPath(), format, true);
+				final List<Long> progress = new ArrayList<>();
+				final int rows = fjdbc.bulkLoad("insert into user values(?, ?)", file.toPath(), format, 2, 2)
+						.setCompressed(true).setProgressListener(progress::add).executeAndCommit();
+				writeln(format + " " + rows + " " + progress + " " + names.toList());
+				fjdbc.statement("delete from user where id > 10").executeAndCommit();
+			}
+
+			// blank lines are skipped.
+			FileUtils.writeStringToFile(file, "id,name\n11,a\n12,b\n\n", StandardCharsets.UTF_8);
+			assert fjdbc.bulkLoad("insert into user values(?, ?)", file.toPath(), ExportFormat.CSV, 10, 0)
+					.executeAndCommit() == 2;
+			assert names.toList().equals(Arrays.asList("a", "b"));
+			fjdbc.statement("delete from user where id > 10").executeAndCommit();
+
+			// short rows are rejected, instead of reusing the values of the previous row.
+			FileUtils.writeStringToFile(file, "id,name\n11,a\n12\n", StandardCharsets.UTF_8);
+			boolean rejected = false;
+			try {
+				fjdbc.bulkLoad("insert into user values(?, ?)", file.toPath(), ExportFormat.CSV, 10, 0)
+						.executeAndCommit();
+			} catch (final UncheckedIOException e) {
+				rejected = e.getCause().getMessage().equals("Line 3 has 1 fields, expected 2");
+			}
+			assert rejected;
+			fjdbc.statement("delete from user where id > 10").executeAndCommit();
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static class UserBean {
+		private Integer userId;
+		private String name;
+
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+
 	public void testInvalidStatement() {
 		boolean exception = false;
 		try {
@@ -93,6 +420,863 @@ public class FjdbcTest {
 		assert exception;
 	}
 
+	/**
+	 * Test that prepared statements are reused by the StatementCachingConnectionProvider.
+	 */
+	public void testStatementCache() {
+		final StatementCachingConnectionProvider cachingProvider = new StatementCachingConnectionProvider(
+				new SingleConnectionProvider(conn), 10, false);
+		final Fjdbc cachingFjdbc = new Fjdbc(cachingProvider);
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt("id");
+		for (int i = 0; i < 3; i++) {
+			cachingFjdbc.query("select id from user where id > ?", PreparedStatementBinder.create(i), extractor)
+					.toList();
+		}
+		cachingFjdbc.statement("delete from user where id = ?", PreparedStatementBinder.create(-1))
+				.executeAndCommit();
+		assert cachingProvider.getMissCount() == 2;
+		assert cachingProvider.getHitCount() == 2;
+		cachingProvider.clear();
+
+		// connections closed on give back are dropped with their cache, not reused.
+		final StatementCachingConnectionProvider closingProvider = new StatementCachingConnectionProvider(
+				() -> DriverManager.getConnection(url), 10, false);
+		final Fjdbc closingFjdbc = new Fjdbc(closingProvider);
+		for (int i = 0; i < 2; i++) {
+			closingFjdbc.query("select id from user where id > ?", PreparedStatementBinder.create(i), extractor)
+					.toList();
+		}
+		assert closingProvider.getMissCount() == 2;
+		assert closingProvider.getHitCount() == 0;
+	}
+
+	/**
+	 * Test that query results are cached, and invalidated when the table is modified.
+	 */
+	public void testQueryCache() throws SQLException {
+		final QueryCache cache = new QueryCache(10, 1 << 20, 0);
+		final Fjdbc cachingFjdbc = new Fjdbc(new SingleConnectionProvider(conn), cache);
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt("id");
+		final Query<Integer> query = cachingFjdbc.query("select id from user where id >= ?",
+				PreparedStatementBinder.create(100), extractor);
+		assert query.toList().isEmpty();
+		assert query.toList().isEmpty();
+		cachingFjdbc.statement("insert into user values(100, 'name100')").executeAndCommit();
+		assert cache.size() == 0;
+		assert query.toList().size() == 1;
+		assert query.toList().size() == 1;
+		cachingFjdbc.statement("delete from user where id >= 100").executeAndCommit();
+		assert cache.size() == 0;
+		assert cache.getHitCount() == 2;
+		assert cache.getMissCount() == 2;
+
+		cachingFjdbc.statement("insert into user values(100, 'name100')").executeAndCommit();
+		cachingFjdbc.statement("insert into user values(101, 'name101')").executeAndCommit();
+		try {
+			// extractors capturing different values do not share results.
+			final List<String> values = new ArrayList<>();
+			for (final String column : Arrays.asList("id", "name")) {
+				final SingleRowExtractor<String> columnExtractor = rs -> rs.getString(column);
+				values.addAll(cachingFjdbc.query("select id, name from user where id = 100", columnExtractor).toList());
+			}
+			assert values.equals(Arrays.asList("100", "name100"));
+			// statement options may change the result.
+			assert cachingFjdbc.query("select id from user where id >= 100", extractor).toList().size() == 2;
+			assert cachingFjdbc.query("select id from user where id >= 100", extractor)
+					.doBeforeExecution(st -> st.setMaxRows(1)).toList().size() == 1;
+			// the binder is called once, even if the result is not cached yet.
+			final AtomicInteger binds = new AtomicInteger();
+			final PreparedStatementBinder countingBinder = (ps, seq) -> {
+				binds.incrementAndGet();
+				ps.setInt(seq.next(), 101);
+			};
+			assert cachingFjdbc.query("select id from user where id >= ?", countingBinder, extractor).toList()
+					.size() == 1;
+			assert binds.get() == 1;
+		} finally {
+			cachingFjdbc.statement("delete from user where id >= 100").executeAndCommit();
+		}
+
+		// tables written in a transaction are invalidated when it ends, even if statements are created by a wrapper.
+		try (Connection txCnx = DriverManager.getConnection(url)) {
+			txCnx.setAutoCommit(false);
+			final Fjdbc txFjdbc = new Fjdbc(
+					new StatementCachingConnectionProvider(new SingleConnectionProvider(txCnx), 10, false),
+					new QueryCache(10, 1 << 20, 0));
+			final Query<Integer> txQuery = txFjdbc.query("select id from user where id >= 100", extractor);
+			final ConnectionProvider provider = txFjdbc.getConnectionProvider();
+			final Connection cnx = provider.borrow();
+			try {
+				txFjdbc.statement("insert into user values(100, 'name100')").execute(cnx);
+				assert txQuery.toList().size() == 1;
+				provider.rollback(cnx);
+			} finally {
+				provider.giveBack(cnx);
+			}
+			assert txQuery.toList().isEmpty();
+		}
+	}
+
+	/**
+	 * Test the mapping generated by the annotation processor.
+	 */
+	public void testMapping() {
+		final User user = new User(200, "name200");
+		fjdbc.statement("insert into user values(?, ?)", FjdbcTest_UserMapping.binder(user)).executeAndCommit();
+		final User res = fjdbc.query("select id, name from user where id = 200", FjdbcTest_UserMapping.extractor())
+				.toSingleResult();
+		fjdbc.statement("delete from user where id = 200").executeAndCommit();
+		assert res.getId() == 200;
+		assert res.getName().equals("name200");
+	}
+
+	/**
+	 * Test that overloaded setters are selected by the SQL type of the column, and rejected if ambiguous.
+	 */
+	public void testRuntimeMappingOverloads() {
+		final Query<OverloadedBean> query = fjdbc.query("select 1 as user_id, 'name1' as name",
+				Extractors.forType(OverloadedBean.class));
+		final OverloadedBean bean = query.toSingleResult();
+		assert bean.userId == 1 && bean.name.equals("name1");
+		try {
+			fjdbc.query("select 1 as id", Extractors.forType(AmbiguousBean.class)).toSingleResult();
+			assert false;
+		} catch (final IllegalArgumentException e) {
+			assert e.getMessage().contains("Ambiguous setters");
+		}
+	}
+
+	public static class OverloadedBean {
+		private int userId;
+		private String name;
+
+		public void setUserId(int userId) {
+			this.userId = userId;
+		}
+
+		public void setUserId(String userId) {
+			this.userId = -1;
+		}
+
+		public void setName(Object name) {
+			this.name = "object";
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+
+	public static class AmbiguousBean {
+		public void setId(long id) {
+			// ambiguous with the other overload
+		}
+
+		public void setId(String id) {
+			// ambiguous with the other overload
+		}
+	}
+
+	@Mapped
+	public static class User {
+		private final int id;
+		private final String name;
+
+		public User(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Spill rows of mixed types to a file mapped in small segments, so that rows do not fit at the end of segments.
+	 */
+	public void testSpillableSegments() throws Throwable {
+		final Constructor<?> constructor = SpillableList.class.getDeclaredConstructor(RowCodec.class, long.class,
+				Path.class, int.class);
+		constructor.setAccessible(true);
+		final Method append = SpillableList.class.getDeclaredMethod("append", Object.class);
+		append.setAccessible(true);
+		final Method seal = SpillableList.class.getDeclaredMethod("seal");
+		seal.setAccessible(true);
+
+		final List<Object[]> rows = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			final String name = new String(new char[i % 20]).replace('\0', 'x');
+			rows.add(new Object[] { i, name, i * 1000000000L, null, BigDecimal.valueOf(i, 2) });
+		}
+		@SuppressWarnings("unchecked") final SpillableList<Object[]> list = (SpillableList<Object[]>) constructor
+				.newInstance(RowCodec.ofObjectArrays(), 0L, null, 64);
+		try {
+			for (final Object[] row : rows) {
+				invoke(append, list, new Object[] { row });
+			}
+			invoke(seal, list, new Object[0]);
+			// each segment holds a single row, followed by padding.
+			assert list.getSpilledCount() == 100 && list.getSpilledSize() > 64 * 99;
+			int i = 0;
+			for (final Object[] row : list) {
+				assert Arrays.equals(row, rows.get(i++));
+			}
+			assert Arrays.equals(list.get(99), rows.get(99)) && Arrays.equals(list.get(70), rows.get(70));
+		} finally {
+			list.close();
+		}
+	}
+
+	/**
+	 * Test that deadlines set the query timeout, and stop operations once expired or cancelled.
+	 */
+	public void testDeadline() {
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt(1);
+		final Query<Integer> query = fjdbc.query("select 1 union all select 2 union all select 3", extractor);
+		final List<Integer> timeouts = new ArrayList<>();
+		query.doBeforeExecution(st -> timeouts.add(st.getQueryTimeout()));
+		query.toList();
+		assert Deadline.after(1, TimeUnit.MINUTES).call(query::toList).size() == 3;
+		// the unit of the query timeout is not standard with sqlite.
+		assert !timeouts.get(0).equals(timeouts.get(1));
+		// the timer is cancelled once the operation completes.
+		final ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor) Threads.getScheduler();
+		final long timers = scheduler.getQueue().stream().filter(r -> ((Delayed) r).getDelay(TimeUnit.MINUTES) > 30)
+				.count();
+		assert Deadline.after(1, TimeUnit.HOURS).call(query::toList).size() == 3;
+		assert scheduler.getQueue().stream().filter(r -> ((Delayed) r).getDelay(TimeUnit.MINUTES) > 30)
+				.count() == timers;
+
+		boolean timedOut = false;
+		try {
+			Deadline.after(0, TimeUnit.SECONDS).call(query::toList);
+		} catch (final RuntimeSQLException e) {
+			timedOut = e.get() instanceof SQLTimeoutException;
+		}
+		assert timedOut;
+
+		// the statement is cancelled by the timer, before its query timeout.
+		timedOut = false;
+		final Query<Integer> slowQuery = fjdbc.query(
+				"with recursive r(x) as (select 1 union all select x + 1 from r) select count(*) from r where x < 1e9",
+				extractor);
+		final long start = System.nanoTime();
+		try {
+			Deadline.after(100, TimeUnit.MILLISECONDS).call(slowQuery::toList);
+		} catch (final RuntimeSQLException e) {
+			timedOut = e.get() instanceof SQLTimeoutException && e.get().getCause() != null;
+		}
+		assert timedOut && System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900);
+
+		// the partitions inherit the deadline.
+		timedOut = false;
+		final Fjdbc multiConnectionFjdbc = new Fjdbc(() -> DriverManager.getConnection(url));
+		final PartitionedQuery<Integer> partitioned = multiConnectionFjdbc.query(slowQuery.getSql().replace(
+				"count(*)", "count(*) as id"), extractor).partitionedBy("id", 0L);
+		final long partitionedStart = System.nanoTime();
+		try {
+			Deadline.after(100, TimeUnit.MILLISECONDS).call(partitioned::toList);
+		} catch (final RuntimeSQLException e) {
+			timedOut = e.get() instanceof SQLTimeoutException;
+		}
+		assert timedOut && System.nanoTime() - partitionedStart < TimeUnit.MILLISECONDS.toNanos(900);
+
+		final Deadline deadline = Deadline.none();
+		final List<Integer> res = new ArrayList<>();
+		boolean cancelled = false;
+		try {
+			deadline.run(() -> query.forEach(i -> {
+				res.add(i);
+				deadline.cancel();
+			}));
+		} catch (final CancellationException e) {
+			cancelled = true;
+		}
+		assert cancelled && res.size() == 1;
+	}
+
+	public void testLeakDetection() throws Exception {
+		final List<Exception> leaks = new CopyOnWriteArrayList<>();
+		try (LeakDetectingConnectionProvider provider = new LeakDetectingConnectionProvider(
+				new SingleConnectionProvider(conn), 10, leaks::add)) {
+			final SingleRowExtractor<Integer> extractor = rs -> rs.getInt(1);
+			final Query<Integer> query = new Fjdbc(provider).query("select 1 union all select 2", extractor);
+
+			// the connection is released when the last row is read, even if the stream is not closed.
+			final long autoReleased = Query.getAutoReleasedStreamCount();
+			assert query.stream().count() == 2;
+			assert provider.getBorrowedCount() == 0;
+			assert Query.getAutoReleasedStreamCount() == autoReleased + 1;
+
+			try (Stream<Integer> stream = query.stream()) {
+				assert stream.iterator().next() == 1;
+				Thread.sleep(20);
+				provider.check();
+				// the leak may be reported concurrently by a periodic check.
+				for (int i = 0; i < 100 && leaks.isEmpty(); i++) {
+					Thread.sleep(10);
+				}
+				assert provider.getLeakCount() == 1 && provider.getBorrowedCount() == 1;
+			}
+			assert provider.getBorrowedCount() == 0;
+		}
+		assert leaks.size() == 1 && leaks.get(0).getStackTrace().length > 0;
+
+		// periodic checks do not run the listener in the scheduler thread.
+		final CompletableFuture<String> listenerThread = new CompletableFuture<>();
+		try (LeakDetectingConnectionProvider provider = new LeakDetectingConnectionProvider(
+				new SingleConnectionProvider(conn), 10,
+				e -> listenerThread.complete(Thread.currentThread().getName()))) {
+			final Connection cnx = provider.borrow();
+			try {
+				assert !listenerThread.get(10, TimeUnit.SECONDS).startsWith("fjdbc-scheduler");
+			} finally {
+				provider.giveBack(cnx);
+			}
+		}
+	}
+
+	public void testPool() throws Exception {
+		try (PooledConnectionProvider pool = new PooledConnectionProvider(() -> DriverManager.getConnection(url), 2,
+				20)) {
+			final Connection cnx1 = pool.borrow();
+			final Connection cnx2 = pool.borrow();
+			assert pool.getActiveCount() == 2 && pool.getIdleCount() == 0;
+			boolean timedOut = false;
+			try {
+				pool.borrow();
+			} catch (final SQLTransientConnectionException e) {
+				timedOut = true;
+			}
+			assert timedOut && pool.getTimeoutCount() == 1;
+
+			// the connection given back last by the thread is borrowed again.
+			pool.giveBack(cnx1);
+			cnx2.close();
+			assert pool.getActiveCount() == 0 && pool.getIdleCount() == 2;
+			final Connection cnx3 = pool.borrow();
+			assert cnx3 == cnx2;
+			pool.giveBack(cnx3);
+
+			final Fjdbc pooledFjdbc = new Fjdbc(pool);
+			final SingleRowExtractor<Integer> extractor = rs -> rs.getInt(1);
+			final List<CompletableFuture<List<Integer>>> futures = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				futures.add(CompletableFuture.supplyAsync(() -> pooledFjdbc.query("select 1", extractor).toList()));
+			}
+			for (final CompletableFuture<List<Integer>> f : futures) {
+				assert f.join().equals(Arrays.asList(1));
+			}
+			assert pool.getCreatedCount() == 2 && pool.getSize() == 2 && pool.getBorrowCount() == 23;
+
+			pool.setIdleTimeout(1);
+			Thread.sleep(5);
+			pool.evict();
+			assert pool.getSize() == 0 && pool.getDiscardedCount() == 2;
+		}
+
+		// the only connection is being validated by the evictor for longer than the borrow timeout.
+		final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+		final CountDownLatch validating = new CountDownLatch(1);
+		final ConnectionProvider factory = () -> {
+			final Connection rawCnx = DriverManager.getConnection(url);
+			return (Connection) Proxy.newProxyInstance(FjdbcTest.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+						calls.computeIfAbsent(method.getName(), k -> new AtomicInteger()).incrementAndGet();
+						if (method.getName().equals("isValid")) {
+							validating.countDown();
+							Thread.sleep(1000);
+						}
+						return invoke(method, rawCnx, args);
+					});
+		};
+		try (PooledConnectionProvider pool = new PooledConnectionProvider(factory, 1, 50)) {
+			for (int i = 0; i < 3; i++) {
+				pool.giveBack(pool.borrow());
+			}
+			// the auto-commit mode is queried once.
+			assert calls.get("getAutoCommit").get() == 1;
+
+			pool.setValidationInterval(0);
+			final Thread evictor = new Thread(pool::evict);
+			evictor.start();
+			validating.await();
+			final long start = System.nanoTime();
+			boolean timedOut = false;
+			try {
+				pool.borrow();
+			} catch (final SQLTransientConnectionException e) {
+				timedOut = true;
+			}
+			assert timedOut && pool.getTimeoutCount() == 1;
+			assert System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500);
+			evictor.join();
+		}
+	}
+
+	/**
+	 * Run many threads (virtual threads if the runtime supports them) against a few connections.
+	 */
+	public void testConcurrency() throws InterruptedException {
+		final int threadCount = 2000;
+		final int maxConcurrency = 8;
+		final AtomicInteger concurrency = new AtomicInteger();
+		final AtomicInteger maxObservedConcurrency = new AtomicInteger();
+		final ConnectionProvider cnxProvider = new ConnectionProvider() {
+			@Override
+			public Connection borrow() throws SQLException {
+				maxObservedConcurrency.accumulateAndGet(concurrency.incrementAndGet(), Math::max);
+				return conn;
+			}
+
+			@Override
+			public void giveBack(Connection cnx) {
+				concurrency.decrementAndGet();
+			}
+		};
+		final ThrottlingConnectionProvider throttling = new ThrottlingConnectionProvider(cnxProvider, maxConcurrency,
+				60_000);
+		final QueryCache cache = new QueryCache(10, 1 << 20, 0);
+
+		// the baseline runs the same threads without throttling, after a warm-up run.
+		final Fjdbc baselineFjdbc = new Fjdbc(new SingleConnectionProvider(conn));
+		runConcurrently(baselineFjdbc, new QueryCache(10, 1 << 20, 0), threadCount);
+		final long baselineNanos = runConcurrently(baselineFjdbc, new QueryCache(10, 1 << 20, 0), threadCount);
+		final long throttledNanos = runConcurrently(new Fjdbc(throttling), cache, threadCount);
+		assert maxObservedConcurrency.get() <= maxConcurrency && throttling.getActiveCount() == 0;
+		assert cache.getHitCount() + cache.getMissCount() == threadCount;
+		// the threads queue cheaply: the throughput is of the same order of magnitude. The margin avoids flaky runs.
+		assert throttledNanos < 4 * baselineNanos : throttledNanos + " ns vs " + baselineNanos + " ns";
+	}
+
+	/**
+	 * Run one query in each of many threads, and return the elapsed time in nanoseconds.
+	 */
+	private static long runConcurrently(Fjdbc fjdbc, QueryCache cache, int threadCount) throws InterruptedException {
+		final SingleRowExtractor<Integer> extractor = rs -> rs.getInt(1);
+		final ThreadFactory threadFactory = Threads.newThreadFactory("fjdbc-test");
+		final CountDownLatch done = new CountDownLatch(threadCount);
+		final AtomicInteger errors = new AtomicInteger();
+		final long start = System.nanoTime();
+		for (int i = 0; i < threadCount; i++) {
+			final int n = i % 100;
+			threadFactory.newThread(() -> {
+				try {
+					final List<Integer> res = fjdbc.query("select " + n, extractor).setCache(cache, "dual").toList();
+					if (!res.equals(Arrays.asList(n))) errors.incrementAndGet();
+				} catch (final RuntimeException e) {
+					errors.incrementAndGet();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		// a deadlock would make the test fail instead of hanging.
+		assert done.await(60, TimeUnit.SECONDS);
+		assert errors.get() == 0;
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Use sqlite databases as primary and replicas. Each database contains its own name.
+	 */
+	public void testRouting() throws IOException, SQLException {
+		final List<File> files = new ArrayList<>();
+		final List<ConnectionProvider> providers = new ArrayList<>();
+		try {
+			for (final String name : Arrays.asList("primary", "replica0", "replica1")) {
+				final File file = File.createTempFile("fjdbc-" + name, ".db");
+				files.add(file);
+				final ConnectionProvider provider = () -> DriverManager.getConnection("jdbc:sqlite:" + file);
+				providers.add(provider);
+				final Fjdbc dbFjdbc = new Fjdbc(provider);
+				dbFjdbc.statement("create table db(name varchar(10))").executeAndCommit();
+				dbFjdbc.statement("insert into db values('" + name + "')").executeAndCommit();
+			}
+			final RoutingConnectionProvider routing = new RoutingConnectionProvider(providers.get(0),
+					providers.subList(1, 3), ReplicaBalancer.roundRobin());
+			final Fjdbc routingFjdbc = new Fjdbc(routing);
+			final SingleRowExtractor<String> extractor = rs -> rs.getString(1);
+			final Query<String> query = routingFjdbc.query("select name from db", extractor);
+			final List<String> names = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				names.addAll(query.toList());
+			}
+			assert names.equals(Arrays.asList("replica0", "replica1", "replica0"));
+
+			// read your writes.
+			routingFjdbc.statement("update db set name = 'primary2'").executeAndCommit();
+			assert query.toList().equals(Arrays.asList("primary2")) && routing.getPrimaryReadCount() == 1;
+			// asynchronous queries inherit the writes of the thread.
+			assert query.toListAsync().join().equals(Arrays.asList("primary2")) && routing.getPrimaryReadCount() == 2;
+			routing.setStickyWindow(0);
+			assert query.toList().equals(Arrays.asList("replica1"));
+			// the latency is the execution time, not the time the connection is held.
+			final Connection held = routing.getReadProvider().borrow();
+			final double latency = routing.getReplicas().get(0).getLatencyNanos();
+			assert latency > 0;
+			try {
+				Thread.sleep(50);
+			} catch (final InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			routing.getReadProvider().giveBack(held);
+			assert routing.getReplicas().get(0).getLatencyNanos() == latency;
+
+			// e.g in a transaction.
+			final Connection primaryCnx = routing.borrow();
+			try {
+				assert query.toList().equals(Arrays.asList("primary2"));
+			} finally {
+				routing.giveBack(primaryCnx);
+			}
+			// a connection given back by another thread updates the thread that borrowed it.
+			final Connection otherCnx = routing.borrow();
+			CompletableFuture.runAsync(() -> routing.giveBack(otherCnx)).join();
+			assert query.toList().get(0).startsWith("replica");
+
+			// decorators forward reads to the replicas.
+			final ConnectionProvider caching = new StatementCachingConnectionProvider(routing, 10, true);
+			try (LeakDetectingConnectionProvider decorated = new LeakDetectingConnectionProvider(
+					new ThrottlingConnectionProvider(caching, 2, 1000), 60_000)) {
+				final Query<String> decoratedQuery = new Fjdbc(decorated).query("select name from db", extractor);
+				final List<String> decoratedNames = decoratedQuery.toList();
+				assert decoratedNames.size() == 1 && decoratedNames.get(0).startsWith("replica");
+				assert routing.getPrimaryReadCount() == 3 && decorated.getBorrowedCount() == 0;
+			}
+
+			final ConnectionProvider down = () -> {
+				throw new SQLException("The database is down");
+			};
+			final RoutingConnectionProvider ejecting = new RoutingConnectionProvider(providers.get(0),
+					Arrays.asList(down, providers.get(2)), ReplicaBalancer.roundRobin());
+			final Query<String> ejectingQuery = new Fjdbc(ejecting).query("select name from db", extractor);
+			for (int i = 0; i < 4; i++) {
+				assert ejectingQuery.toList().equals(Arrays.asList("replica1"));
+			}
+			assert ejecting.getReplicas().get(0).isEjected() && ejecting.getReplicas().get(0).getEjectionCount() == 1;
+			assert ejecting.getReplicas().get(1).getBorrowCount() == 4;
+
+			// a replica failing to execute a query is ejected.
+			final ConnectionProvider broken = () -> (Connection) Proxy.newProxyInstance(
+					FjdbcTest.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+						if (method.getName().endsWith("Statement")) {
+							throw new SQLNonTransientConnectionException("Connection reset", "08006");
+						}
+						return method.getReturnType() == boolean.class ? false : null;
+					});
+			final RoutingConnectionProvider failing = new RoutingConnectionProvider(providers.get(0),
+					Arrays.asList(broken, providers.get(2)), ReplicaBalancer.roundRobin());
+			final Query<String> failingQuery = new Fjdbc(failing).query("select name from db", extractor);
+			boolean failed = false;
+			try {
+				failingQuery.toList();
+			} catch (final RuntimeSQLException e) {
+				failed = true;
+			}
+			assert failed && failing.getReplicas().get(0).isEjected();
+			assert failingQuery.toList().equals(Arrays.asList("replica1"));
+			assert failingQuery.toList().equals(Arrays.asList("replica1"));
+		} finally {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Use sqlite databases as shards of a table of tenants.
+	 */
+	public void testSharding() throws IOException {
+		final List<File> files = new ArrayList<>();
+		final List<ConnectionProvider> shards = new ArrayList<>();
+		try {
+			for (int i = 0; i < 3; i++) {
+				final File file = File.createTempFile("fjdbc-shard" + i, ".db");
+				files.add(file);
+				shards.add(() -> DriverManager.getConnection("jdbc:sqlite:" + file));
+				new Fjdbc(shards.get(i)).statement("create table tenant(id integer)").executeAndCommit();
+			}
+			final ShardedConnectionProvider<Integer> sharded = new ShardedConnectionProvider<>(shards);
+			final Fjdbc shardedFjdbc = new Fjdbc(sharded);
+			for (int id = 1; id <= 9; id++) {
+				final StatementOperation insert = shardedFjdbc.statement("insert into tenant values(" + id + ")");
+				sharded.run(id, insert::executeAndCommit);
+			}
+			final SingleRowExtractor<Integer> extractor = rs -> rs.getInt(1);
+			final Query<Integer> query = shardedFjdbc.query("select id from tenant order by id", extractor);
+			assert sharded.call(4, query::toList).equals(Arrays.asList(1, 4, 7));
+			// asynchronous queries inherit the shard.
+			assert sharded.call(5, query::toListAsync).join().equals(Arrays.asList(2, 5, 8));
+			// each shard has its own cached results.
+			final Fjdbc cachingFjdbc = new Fjdbc(sharded, new QueryCache(10, 1 << 20, 0));
+			final Query<Integer> cachedQuery = cachingFjdbc.query("select id from tenant order by id", extractor);
+			assert sharded.call(4, cachedQuery::toList).equals(Arrays.asList(1, 4, 7));
+			assert sharded.call(5, cachedQuery::toList).equals(Arrays.asList(2, 5, 8));
+
+			final List<Integer> all = query.scatter(sharded.getShards()).toList();
+			Collections.sort(all);
+			assert all.equals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9));
+			assert query.scatter(sharded.getShards()).setMergeOrder(Comparator.naturalOrder()).toList()
+					.equals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9));
+
+			final List<ConnectionProvider> failingShards = new ArrayList<>(shards);
+			failingShards.set(1, () -> {
+				throw new SQLException("The shard is down");
+			});
+			boolean failed = false;
+			try {
+				query.scatter(failingShards).toList();
+			} catch (final RuntimeSQLException e) {
+				failed = true;
+			}
+			assert failed;
+			final List<Integer> failures = new CopyOnWriteArrayList<>();
+			assert query.scatter(failingShards).setMergeOrder(Comparator.naturalOrder())
+					.setFailureListener((e, shard) -> failures.add(shard)).toList()
+					.equals(Arrays.asList(2, 3, 5, 6, 8, 9));
+			assert failures.equals(Arrays.asList(1));
+		} finally {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	public void testStateTracking() throws IOException, SQLException {
+		final File file = File.createTempFile("fjdbc-state", ".db");
+		try (Connection rawCnx = DriverManager.getConnection("jdbc:sqlite:" + file)) {
+			rawCnx.setAutoCommit(false);
+			final StateTrackingConnectionProvider tracking = new StateTrackingConnectionProvider(
+					new SingleConnectionProvider(rawCnx));
+			final Fjdbc trackingFjdbc = new Fjdbc(tracking);
+			trackingFjdbc.statement("create table tenant(id integer)").executeAndCommit();
+			trackingFjdbc.statement("insert into tenant values(1)").executeAndCommit();
+
+			Connection cnx = tracking.borrow();
+			try {
+				cnx.setAutoCommit(false);
+				// nothing was executed since the last commit, and auto-commit is already disabled.
+				final long skipped = tracking.getSkippedCallCount();
+				tracking.rollback(cnx);
+				tracking.commit(cnx);
+				cnx.setAutoCommit(false);
+				assert tracking.getSkippedCallCount() == skipped + 3;
+			} finally {
+				tracking.giveBack(cnx);
+			}
+
+			cnx = tracking.borrow();
+			try {
+				trackingFjdbc.statement("insert into tenant values(2)").execute(cnx);
+				tracking.rollback(cnx);
+			} finally {
+				tracking.giveBack(cnx);
+			}
+
+			// a statement executed after a commit starts a new transaction.
+			cnx = tracking.borrow();
+			try (PreparedStatement ps = cnx.prepareStatement("insert into tenant values(?)")) {
+				ps.setInt(1, 3);
+				ps.executeUpdate();
+				tracking.commit(cnx);
+				ps.setInt(1, 4);
+				ps.executeUpdate();
+				tracking.commit(cnx);
+			} finally {
+				tracking.giveBack(cnx);
+			}
+			// same with statements cached above the tracking provider.
+			final StatementCachingConnectionProvider caching = new StatementCachingConnectionProvider(tracking, 10,
+					false);
+			final Fjdbc cachingFjdbc = new Fjdbc(caching);
+			for (int id = 5; id <= 6; id++) {
+				final int _id = id;
+				cachingFjdbc.statement("insert into tenant values(?)", (ps, seq) -> ps.setInt(seq.next(), _id))
+						.executeAndCommit();
+			}
+			assert caching.getHitCount() == 1;
+			rawCnx.rollback();
+
+			final SingleRowExtractor<Integer> extractor = rs -> rs.getInt(1);
+			assert trackingFjdbc.query("select id from tenant order by id", extractor).toList()
+					.equals(Arrays.asList(1, 3, 4, 5, 6));
+
+			// the auto-commit mode is read from the database only once.
+			final Map<String, AtomicInteger> rawCalls = new ConcurrentHashMap<>();
+			final Connection countingCnx = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+						rawCalls.computeIfAbsent(method.getName(), k -> new AtomicInteger()).incrementAndGet();
+						try {
+							return method.invoke(rawCnx, args);
+						} catch (final InvocationTargetException e) {
+							throw e.getCause();
+						}
+					});
+			final StateTrackingConnectionProvider countingTracking = new StateTrackingConnectionProvider(
+					new SingleConnectionProvider(countingCnx));
+			for (int id = 7; id <= 11; id++) {
+				new Fjdbc(countingTracking).statement("insert into tenant values(" + id + ")").executeAndCommit();
+			}
+			assert rawCalls.get("getAutoCommit").get() == 1;
+			assert rawCalls.get("commit").get() == 5;
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that a failure of the source is delivered to the consumer even if the buffer is full.
+	 */
+	public void testPrefetchFailure() throws InterruptedException {
+		final CountDownLatch failing = new CountDownLatch(1);
+		final Iterator<Integer> source = new Iterator<Integer>() {
+			private boolean read = false;
+
+			@Override
+			public boolean hasNext() {
+				if (!read) return true;
+				failing.countDown();
+				throw new IllegalStateException("The source failed");
+			}
+
+			@Override
+			public Integer next() {
+				read = true;
+				return 1;
+			}
+		};
+		try (PrefetchingIterator<Integer> it = new PrefetchingIterator<>(source, 1,
+				Threads.newThreadFactory("fjdbc-test"))) {
+			assert failing.await(10, TimeUnit.SECONDS);
+			assert it.next() == 1;
+			boolean failed = false;
+			try {
+				it.hasNext();
+			} catch (final IllegalStateException e) {
+				failed = true;
+			}
+			assert failed;
+		}
+	}
+
+	/**
+	 * Test that queries are combined in a single statement if the driver supports it, and executed one by one if the
+	 * combined statement is rejected.
+	 */
+	public void testMultiQuery() throws SQLException {
+		final SingleRowExtractor<Integer> idExtractor = rs -> rs.getInt("id");
+		final SingleRowExtractor<String> nameExtractor = rs -> rs.getString("name");
+		final Query<Integer> ids = fjdbc.query("select id from user where id >= 300 order by id", idExtractor);
+		// the separator must not be commented out.
+		final Query<String> names = fjdbc.query("select name from user where id = 301 -- comment", nameExtractor);
+		final List<SQLException> rejections = Arrays.asList(null,
+				new SQLSyntaxErrorException("syntax error", "42000", 1064),
+				new SQLSyntaxErrorException("no such table", "42P01"));
+		for (final SQLException rejection : rejections) {
+			try (Connection rawCnx = DriverManager.getConnection(url)) {
+				rawCnx.setAutoCommit(false);
+				// rolled back when the connection is closed.
+				try (Statement st = rawCnx.createStatement()) {
+					st.executeUpdate("insert into user values(300, 'name300'), (301, 'name301')");
+				}
+				final List<String> executed = new ArrayList<>();
+				final Connection cnx = multiStatementConnection(rawCnx, rejection, executed);
+				MultiQuery.Results results = null;
+				try {
+					results = new MultiQuery(new SingleConnectionProvider(cnx), ids, names).execute();
+				} catch (final RuntimeSQLException e) {
+					assert e.getCause() == rejection;
+				}
+				if (rejection == null) {
+					assert executed.size() == 1;
+				} else if (rejection.getErrorCode() == 1064) {
+					// the savepoint was rolled back, and the queries executed one by one.
+					assert executed.size() == 3;
+				} else {
+					// other errors are not hidden by a fallback.
+					assert results == null;
+					continue;
+				}
+				assert results.get(ids).equals(Arrays.asList(300, 301));
+				assert results.get(names).equals(Arrays.asList("name301"));
+			}
+		}
+	}
+
+	/**
+	 * Return a connection reporting support for multiple result sets, and executing statements made of several
+	 * queries separated by {@code ;} one query at a time.
+	 * @param rejection
+	 *        If not {@code null}, statements made of several queries throw this exception instead.
+	 * @param executed
+	 *        Receives the SQL of each executed statement.
+	 */
+	private static Connection multiStatementConnection(Connection rawCnx, SQLException rejection,
+			List<String> executed) {
+		return (Connection) Proxy.newProxyInstance(FjdbcTest.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, (cnxProxy, cnxMethod, cnxArgs) -> {
+					if (cnxMethod.getName().equals("getMetaData")) {
+						final DatabaseMetaData meta = rawCnx.getMetaData();
+						return Proxy.newProxyInstance(FjdbcTest.class.getClassLoader(),
+								new Class<?>[] { DatabaseMetaData.class }, (metaProxy, metaMethod, metaArgs) -> {
+									if (metaMethod.getName().equals("supportsMultipleResultSets")) return true;
+									return invoke(metaMethod, meta, metaArgs);
+								});
+					}
+					if (!cnxMethod.getName().equals("createStatement")) return invoke(cnxMethod, rawCnx, cnxArgs);
+					final Statement st = (Statement) invoke(cnxMethod, rawCnx, cnxArgs);
+					final List<Statement> parts = new ArrayList<>();
+					final List<ResultSet> results = new ArrayList<>();
+					final int[] current = { 0 };
+					return Proxy.newProxyInstance(FjdbcTest.class.getClassLoader(), new Class<?>[] { Statement.class },
+							(stProxy, stMethod, stArgs) -> {
+								switch (stMethod.getName()) {
+								case "executeQuery":
+									executed.add((String) stArgs[0]);
+									return st.executeQuery((String) stArgs[0]);
+								case "execute":
+									executed.add((String) stArgs[0]);
+									final String[] queries = ((String) stArgs[0]).split("\n;\n");
+									if (queries.length > 1 && rejection != null) throw rejection;
+									for (final String query : queries) {
+										final Statement part = rawCnx.createStatement();
+										parts.add(part);
+										results.add(part.executeQuery(query));
+									}
+									return true;
+								case "getResultSet":
+									return results.get(current[0]);
+								case "getMoreResults":
+									return ++current[0] < parts.size();
+								case "getUpdateCount":
+									return -1;
+								case "close":
+									for (final Statement part : parts) {
+										part.close();
+									}
+									st.close();
+									return null;
+								default:
+									return invoke(stMethod, st, stArgs);
+								}
+							});
+				});
+	}
+
+	private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
 	/**
 	 * Test the NoOperation class
 	 */